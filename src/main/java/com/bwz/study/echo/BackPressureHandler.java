@@ -0,0 +1,125 @@
+package com.bwz.study.echo;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 出站缓冲区超过WRITE_BUFFER_WATER_MARK的高水位(channel不可写)时关闭autoRead，不再从socket读取新的请求；
+ * 降到低水位以下重新打开。这样对端只发不收时，每个连接占用的内存不会超过高水位加上一次读取的大小。
+ *
+ * 每个连接一个实例，统计这个连接暂停读取的次数和总时长，只在所属的EventLoop中修改；
+ * 同时累加到所有连接共享的{@link Stats}，用来观察整个服务的背压情况。
+ */
+public class BackPressureHandler extends ChannelInboundHandlerAdapter {
+
+    private final Stats stats;          //所有连接共享，可能为null
+    private long pausedAtNanos;       //正在暂停时为暂停开始的时间，否则为0
+    private long pausedNanos;         //已经结束的暂停累计的时长
+    private long pauses;
+
+    public BackPressureHandler() {
+        this(null);
+    }
+
+    public BackPressureHandler(Stats stats) {
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            resume(ctx);
+        } else {
+            pause(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        endPause();
+        ctx.fireChannelInactive();
+    }
+
+    private void pause(ChannelHandlerContext ctx) {
+        if (pausedAtNanos == 0) {
+            pausedAtNanos = System.nanoTime();
+            pauses ++;
+            if (stats != null) {
+                stats.pauses.increment();
+                stats.pausedChannels.incrementAndGet();
+            }
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        if (endPause()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    //结束正在进行的暂停，累计时长，没有在暂停时返回false
+    private boolean endPause() {
+        if (pausedAtNanos == 0) {
+            return false;
+        }
+        long nanos = System.nanoTime() - pausedAtNanos;
+        pausedNanos += nanos;
+        pausedAtNanos = 0;
+        if (stats != null) {
+            stats.pausedNanos.add(nanos);
+            stats.pausedChannels.decrementAndGet();
+        }
+        return true;
+    }
+
+    public boolean isPaused() {
+        return pausedAtNanos != 0;
+    }
+
+    //因为不可写而暂停读取的次数
+    public long pauses() {
+        return pauses;
+    }
+
+    //暂停读取的总时长，包括正在进行的这一次
+    public long pausedNanos() {
+        long pausedAtNanos = this.pausedAtNanos;
+        return pausedAtNanos == 0 ? pausedNanos : pausedNanos + System.nanoTime() - pausedAtNanos;
+    }
+
+    /**
+     * 所有连接的背压统计，可以被多个EventLoop同时修改
+     */
+    public static final class Stats {
+        private final LongAdder pauses = new LongAdder();
+        private final LongAdder pausedNanos = new LongAdder();
+        private final AtomicInteger pausedChannels = new AtomicInteger();
+
+        //所有连接因为不可写而暂停读取的次数
+        public long pauses() {
+            return pauses.sum();
+        }
+
+        //所有连接已经结束的暂停累计的时长，不包括正在进行的
+        public long pausedNanos() {
+            return pausedNanos.sum();
+        }
+
+        //当前正在暂停读取的连接数
+        public int pausedChannels() {
+            return pausedChannels.get();
+        }
+
+        @Override
+        public String toString() {
+            return "BackPressure(pauses: " + pauses() + ", paused: " + TimeUnit.NANOSECONDS.toMillis(pausedNanos())
+                    + "ms, pausedChannels: " + pausedChannels() + ')';
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package com.bwz.study.echo;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.SystemPropertyUtil;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class EchoClient {
     private final String host;
@@ -20,11 +28,12 @@ public class EchoClient {
     }
 
     public void start() throws Exception {
-        EventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup();
         try {
             Bootstrap b = new Bootstrap();
             b.group(group)
-                    .channel(NioSocketChannel.class)
+                    .channel(transport.socketChannel())
                     .remoteAddress(new InetSocketAddress(host, port))
                     .handler(new ChannelInitializer<SocketChannel>() {
                         @Override
@@ -41,6 +50,70 @@ public class EchoClient {
         }
     }
 
+    /**
+     * 压测持久连接模式的EchoServer：在同一个EventLoopGroup上建立config.connections()个连接，
+     * 预热warmupSeconds秒后统计durationSeconds秒，结束时打印吞吐量和延迟分布
+     *
+     * @return 所有连接合并后的延迟直方图
+     */
+    public LatencyHistogram runLoad(final EchoLoadConfig config) throws Exception {
+        int payloadSize = config.payloadSize();
+        //所有连接共享同一个请求帧，每次发送只duplicate，不分配也不复制
+        ByteBuf frame = Unpooled.directBuffer(EchoServer.LENGTH_FIELD_LENGTH + payloadSize)
+                .writeInt(payloadSize).writeZero(payloadSize);
+        final ByteBuf request = Unpooled.unreleasableBuffer(frame);
+        final long intervalNanos = config.rate() == 0 ? 0
+                : Math.max(1, TimeUnit.SECONDS.toNanos(config.connections()) / config.rate());
+        final List<EchoLoadHandler> handlers = new CopyOnWriteArrayList<EchoLoadHandler>();
+        List<Channel> channels = new ArrayList<Channel>(config.connections());
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup();
+        try {
+            Bootstrap b = new Bootstrap();
+            b.group(group)
+                    .channel(transport.socketChannel())
+                    .remoteAddress(new InetSocketAddress(host, port))
+                    .option(ChannelOption.TCP_NODELAY, true)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        public void initChannel(SocketChannel socketChannel) throws Exception {
+                            EchoLoadHandler handler = new EchoLoadHandler(request, config.pipeline(), intervalNanos);
+                            handlers.add(handler);
+                            socketChannel.pipeline()
+                                    .addLast(EchoServer.newFrameDecoder())
+                                    .addLast(handler);
+                        }
+                    });
+            for (int i = 0; i < config.connections(); i++) {
+                channels.add(b.connect().sync().channel());
+            }
+
+            long from = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.warmupSeconds());
+            long until = from + TimeUnit.SECONDS.toNanos(config.durationSeconds());
+            for (EchoLoadHandler handler : handlers) {
+                handler.measure(from, until);
+            }
+            //多等一秒，让统计窗口末尾发出的请求收到响应
+            TimeUnit.NANOSECONDS.sleep(until - System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+            for (Channel channel : channels) {
+                channel.close();
+            }
+        } finally {
+            group.shutdownGracefully().sync();
+            frame.release();
+        }
+
+        //EventLoop都已经结束，可以安全读取每个连接的直方图
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (EchoLoadHandler handler : handlers) {
+            histogram.add(handler.histogram());
+        }
+        System.out.println(config + ", transport: " + transport);
+        System.out.printf("throughput: %.1f req/s%n", (double) histogram.count() / config.durationSeconds());
+        histogram.print(System.out);
+        return histogram;
+    }
+
     public static void main(String[] args) throws Exception {
         /*if(args.length != 2){
             System.out.println("Usage: " + EchoClient.class.getSimpleName() +
@@ -52,6 +125,11 @@ public class EchoClient {
         String host = "localhost";
         //int port = Integer.parseInt(args[1]);
         int port = 9999;
-        new EchoClient(host,port).start();
+        //-Decho.load=true 按EchoLoadConfig.fromSystemProperties()的参数压测，服务端需要-Decho.persistent=true
+        if (SystemPropertyUtil.getBoolean("echo.load", false)) {
+            new EchoClient(host, port).runLoad(EchoLoadConfig.fromSystemProperties());
+        } else {
+            new EchoClient(host,port).start();
+        }
     }
 }
@@ -0,0 +1,147 @@
+package com.bwz.study.echo;
+
+import io.netty.util.internal.SystemPropertyUtil;
+
+/**
+ * {@link EchoClient#runLoad(EchoLoadConfig)}的参数，需要配合持久连接模式的EchoServer(-Decho.persistent=true)。
+ *
+ * rate为0时是闭环模式：每个连接保持pipeline个未完成的请求，收到一个响应马上发下一个，测到的是服务时间。
+ * rate大于0时是固定速率的开环模式：所有连接合计每秒发送rate个请求，延迟从计划发送的时间算起而不是实际发送的时间，
+ * 这样客户端或服务端卡住时，本应发出却被推迟的请求也会计入等待时间(coordinated omission修正)。
+ */
+public final class EchoLoadConfig {
+
+    private final int connections;
+    private final int payloadSize;
+    private final int rate;
+    private final int pipeline;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+
+    private EchoLoadConfig(Builder builder) {
+        connections = builder.connections;
+        payloadSize = builder.payloadSize;
+        rate = builder.rate;
+        pipeline = builder.pipeline;
+        warmupSeconds = builder.warmupSeconds;
+        durationSeconds = builder.durationSeconds;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * 读取-Decho.connections、-Decho.payloadSize、-Decho.rate、-Decho.pipeline、
+     * -Decho.warmupSeconds、-Decho.durationSeconds，没有设置的使用默认值
+     */
+    public static EchoLoadConfig fromSystemProperties() {
+        Builder builder = builder();
+        return builder
+                .connections(SystemPropertyUtil.getInt("echo.connections", builder.connections))
+                .payloadSize(SystemPropertyUtil.getInt("echo.payloadSize", builder.payloadSize))
+                .rate(SystemPropertyUtil.getInt("echo.rate", builder.rate))
+                .pipeline(SystemPropertyUtil.getInt("echo.pipeline", builder.pipeline))
+                .warmupSeconds(SystemPropertyUtil.getInt("echo.warmupSeconds", builder.warmupSeconds))
+                .durationSeconds(SystemPropertyUtil.getInt("echo.durationSeconds", builder.durationSeconds))
+                .build();
+    }
+
+    public int connections() {
+        return connections;
+    }
+
+    public int payloadSize() {
+        return payloadSize;
+    }
+
+    public int rate() {
+        return rate;
+    }
+
+    public int pipeline() {
+        return pipeline;
+    }
+
+    public int warmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public int durationSeconds() {
+        return durationSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "EchoLoadConfig(connections: " + connections + ", payloadSize: " + payloadSize
+                + ", rate: " + (rate == 0 ? "closed-loop" : rate + "/s") + ", pipeline: " + pipeline
+                + ", warmupSeconds: " + warmupSeconds + ", durationSeconds: " + durationSeconds + ')';
+    }
+
+    public static final class Builder {
+        private int connections = 16;
+        private int payloadSize = 64;
+        private int rate;
+        private int pipeline = 1;
+        private int warmupSeconds = 5;
+        private int durationSeconds = 30;
+
+        private Builder() {
+        }
+
+        public Builder connections(int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("connections: " + connections + " (expected: > 0)");
+            }
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder payloadSize(int payloadSize) {
+            if (payloadSize < 0 || payloadSize > EchoServer.MAX_FRAME_LENGTH - EchoServer.LENGTH_FIELD_LENGTH) {
+                throw new IllegalArgumentException("payloadSize: " + payloadSize + " (expected: 0-"
+                        + (EchoServer.MAX_FRAME_LENGTH - EchoServer.LENGTH_FIELD_LENGTH) + ')');
+            }
+            this.payloadSize = payloadSize;
+            return this;
+        }
+
+        //所有连接合计每秒的请求数，0表示闭环模式
+        public Builder rate(int rate) {
+            if (rate < 0) {
+                throw new IllegalArgumentException("rate: " + rate + " (expected: >= 0)");
+            }
+            this.rate = rate;
+            return this;
+        }
+
+        //闭环模式下每个连接同时未完成的请求数，开环模式不使用
+        public Builder pipeline(int pipeline) {
+            if (pipeline <= 0) {
+                throw new IllegalArgumentException("pipeline: " + pipeline + " (expected: > 0)");
+            }
+            this.pipeline = pipeline;
+            return this;
+        }
+
+        public Builder warmupSeconds(int warmupSeconds) {
+            if (warmupSeconds < 0) {
+                throw new IllegalArgumentException("warmupSeconds: " + warmupSeconds + " (expected: >= 0)");
+            }
+            this.warmupSeconds = warmupSeconds;
+            return this;
+        }
+
+        public Builder durationSeconds(int durationSeconds) {
+            if (durationSeconds <= 0) {
+                throw new IllegalArgumentException("durationSeconds: " + durationSeconds + " (expected: > 0)");
+            }
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        public EchoLoadConfig build() {
+            return new EchoLoadConfig(this);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.bwz.study.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个压测连接，放在{@link EchoServer#newFrameDecoder()}之后，每个连接一个实例，只在所属的EventLoop中访问。
+ * 服务端按顺序回显，所以每个响应对应最早一个未完成的请求，发送时间按顺序保存在一个环形数组里。
+ */
+final class EchoLoadHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+    private final ByteBuf request;               //所有连接共享的unreleasable请求帧，发送时只duplicate
+    private final int pipeline;
+    private final long intervalNanos;            //开环模式下这个连接两次发送之间的间隔，0表示闭环模式
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    //计划发送时间落在[measureFromNanos, measureUntilNanos)内的请求才计入直方图
+    private volatile long measureFromNanos = Long.MAX_VALUE;
+    private volatile long measureUntilNanos = Long.MAX_VALUE;
+
+    private long[] sentAt = new long[16];        //未完成请求的(计划)发送时间
+    private int head;
+    private int tail;
+    private long nextSendNanos;
+    private ChannelHandlerContext ctx;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            sendDue();
+        }
+    };
+
+    EchoLoadHandler(ByteBuf request, int pipeline, long intervalNanos) {
+        this.request = request;
+        this.pipeline = pipeline;
+        this.intervalNanos = intervalNanos;
+    }
+
+    void measure(long fromNanos, long untilNanos) {
+        measureFromNanos = fromNanos;
+        measureUntilNanos = untilNanos;
+    }
+
+    //连接关闭并且EventLoop结束之后才能读取
+    LatencyHistogram histogram() {
+        return histogram;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        if (intervalNanos == 0) {
+            long now = System.nanoTime();
+            for (int i = 0; i < pipeline; i++) {
+                send(now);
+            }
+            ctx.flush();
+        } else {
+            nextSendNanos = System.nanoTime();
+            sendDue();
+        }
+    }
+
+    //开环模式：把到期的请求都发出去，即使之前被耽误了也按原来的计划时间记录，然后等到下一个计划时间
+    private void sendDue() {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        while (nextSendNanos - now <= 0) {
+            send(nextSendNanos);
+            nextSendNanos += intervalNanos;
+        }
+        ctx.flush();
+        ctx.executor().schedule(tick, nextSendNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void send(long startNanos) {
+        sentAt[tail] = startNanos;
+        tail = (tail + 1) & (sentAt.length - 1);
+        if (tail == head) {
+            int n = sentAt.length;
+            long[] grown = Arrays.copyOf(Arrays.copyOfRange(sentAt, head, n), n << 1);
+            System.arraycopy(sentAt, 0, grown, n - head, head);
+            sentAt = grown;
+            head = 0;
+            tail = n;
+        }
+        ctx.write(request.duplicate(), ctx.voidPromise());
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) {
+        long now = System.nanoTime();
+        long startNanos = sentAt[head];
+        head = (head + 1) & (sentAt.length - 1);
+        if (startNanos >= measureFromNanos && startNanos < measureUntilNanos) {
+            histogram.record(now - startNanos);
+        }
+        if (intervalNanos == 0) {
+            send(now);                          //闭环模式：收到一个马上补一个，在channelReadComplete时一起flush
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+}
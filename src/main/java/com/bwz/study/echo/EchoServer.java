@@ -1,20 +1,58 @@
 package com.bwz.study.echo;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.internal.SystemPropertyUtil;
 
 import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
 
 public class EchoServer {
+    //持久连接模式下的帧格式：4字节大端长度 + 内容，长度不包括自己
+    public static final int LENGTH_FIELD_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    //每个连接出站缓冲区的高低水位，超过高水位时BackPressureHandler暂停读取，默认和Netty一样是32K/64K
+    static final WriteBufferWaterMark DEFAULT_WRITE_BUFFER_WATER_MARK = new WriteBufferWaterMark(
+            SystemPropertyUtil.getInt("echo.writeBufferLowWaterMark", WriteBufferWaterMark.DEFAULT.low()),
+            SystemPropertyUtil.getInt("echo.writeBufferHighWaterMark", WriteBufferWaterMark.DEFAULT.high()));
+
     private final int port;
+    private final boolean persistent;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    private final BackPressureHandler.Stats backPressureStats = new BackPressureHandler.Stats();
 
     public EchoServer(int port){
+        this(port, false);
+    }
+
+    /**
+     * @param persistent true时连接保持打开，按长度前缀分帧，多个未完成的请求按顺序回显，每批读取只flush一次；
+     *                   false时保持原来的行为，读完一次就关闭连接
+     */
+    public EchoServer(int port, boolean persistent){
+        this(port, persistent, DEFAULT_WRITE_BUFFER_WATER_MARK);
+    }
+
+    public EchoServer(int port, boolean persistent, WriteBufferWaterMark writeBufferWaterMark){
+        if (writeBufferWaterMark == null) {
+            throw new NullPointerException("writeBufferWaterMark");
+        }
         this.port = port;
+        this.persistent = persistent;
+        this.writeBufferWaterMark = writeBufferWaterMark;
+    }
+
+    //每个连接一个，LengthFieldBasedFrameDecoder有状态，不能共享
+    public static LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, LENGTH_FIELD_LENGTH);
     }
 
     public static void main(String[] args) throws Exception {
@@ -23,29 +61,62 @@ public class EchoServer {
         }
         int port = Integer.parseInt(args[0]);*/
         int port = 9999;
-        new EchoServer(port).start();
+        //-Decho.persistent=true 作为两台机器之间的延迟探针使用
+        new EchoServer(port, SystemPropertyUtil.getBoolean("echo.persistent", false)).start();
     }
 
     public void start() throws Exception{
-        final EchoServerHandler serverHandler = new EchoServerHandler();
-        EventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup();
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(group)
-                    .channel(NioServerSocketChannel.class)
-                    .localAddress(new InetSocketAddress(port))
-                    .childHandler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline()
-                                    .addLast(serverHandler);
-                        }
-                    });
-
-            ChannelFuture f = b.bind().sync();
-            f.channel().closeFuture().sync();
+            ChannelFuture f = bind(transport, group, group, ByteBufAllocator.DEFAULT).sync();
+            long pauses = 0;
+            while (!f.channel().closeFuture().await(10, TimeUnit.SECONDS)) {
+                //有新的背压暂停时才输出
+                if (backPressureStats.pauses() != pauses || backPressureStats.pausedChannels() != 0) {
+                    pauses = backPressureStats.pauses();
+                    System.out.println(backPressureStats);
+                }
+            }
         } finally {
            group.shutdownGracefully().sync();
         }
     }
+
+    //所有连接的背压统计
+    public BackPressureHandler.Stats backPressureStats() {
+        return backPressureStats;
+    }
+
+    /**
+     * 在给定的EventLoopGroup上绑定端口，不等待也不负责关闭，EventLoopGroup和allocator可以和其他服务共享
+     */
+    public ChannelFuture bind(Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                              ByteBufAllocator allocator) {
+        final EchoServerHandler serverHandler = new EchoServerHandler();
+        final PipelinedEchoServerHandler pipelinedHandler = new PipelinedEchoServerHandler();
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+                .channel(transport.serverSocketChannel())
+                .localAddress(new InetSocketAddress(port))
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) throws Exception {
+                        socketChannel.pipeline().addLast(new BackPressureHandler(backPressureStats));
+                        if (persistent) {
+                            socketChannel.pipeline()
+                                    .addLast(newFrameDecoder())
+                                    .addLast(pipelinedHandler);
+                        } else {
+                            socketChannel.pipeline()
+                                    .addLast(serverHandler);
+                        }
+                    }
+                });
+        return b.bind();
+    }
 }
@@ -0,0 +1,107 @@
+package com.bwz.study.echo;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 记录纳秒延迟的对数-线性直方图，和HdrHistogram的思路一样：每个2的幂区间再等分成64份，
+ * 所以任何值的相对误差都不超过1/64，数组大小固定，record()不分配内存。
+ * 不是线程安全的，每个连接一个，结束后用{@link #add(LatencyHistogram)}合并。
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;            //每个2的幂区间等分成64份
+    private static final int LINEAR_LIMIT = SUB_BUCKETS << 1;               //小于128纳秒的值每个值一个桶
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts[index(value)] ++;
+        totalCount ++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long count() {
+        return totalCount;
+    }
+
+    public long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /**
+     * 返回累计次数达到percentile的那个桶的上限，不超过记录过的最大值
+     *
+     * @param percentile 0到100之间，例如99.99
+     */
+    public long percentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long threshold = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= threshold) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    //值v属于[2^e, 2^(e+1))时右移e-6位，剩下的7位(64到127)加上移位数*64就是下标；小于128时下标就是值本身
+    static int index(long value) {
+        int shift = Math.max(0, Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        int shift = index < LINEAR_LIMIT ? 0 : (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    //按微秒打印p50到p99.99的分布
+    public void print(PrintStream out) {
+        out.printf("latency(us): count=%d min=%.1f mean=%.1f max=%.1f%n",
+                totalCount, micros(min()), mean() / 1000, micros(max));
+        double[] percentiles = { 50, 75, 90, 99, 99.9, 99.99 };
+        for (double percentile : percentiles) {
+            out.printf("  p%-6s %10.1f%n", percentile, micros(percentile(percentile)));
+        }
+    }
+
+    private static double micros(long nanos) {
+        return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,35 @@
+package com.bwz.study.echo;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * 持久连接模式的回显处理器，放在{@link EchoServer#newFrameDecoder()}之后。
+ * 每个请求帧(带长度前缀)原样写回，不解码也不打印；一次读循环内的所有响应只在channelReadComplete时flush一次。
+ * 同一个连接上的请求按到达顺序写回，所以客户端可以不等响应连续发送多个请求。
+ */
+@ChannelHandler.Sharable
+public class PipelinedEchoServerHandler extends ChannelInboundHandlerAdapter {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(PipelinedEchoServerHandler.class);
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ctx.write(msg, ctx.voidPromise());      //帧里还带着长度前缀，直接写回，不需要编码器
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();                            //整批只flush一次，连接保持打开
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Closing {} after exception", ctx.channel(), cause);
+        }
+        ctx.close();
+    }
+}
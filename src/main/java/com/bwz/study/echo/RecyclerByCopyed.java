@@ -2,6 +2,7 @@ package com.bwz.study.echo;
 
 import io.netty.util.NettyRuntime;
 import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.internal.PlatformDependent;
 import io.netty.util.internal.SystemPropertyUtil;
 import io.netty.util.internal.logging.InternalLogger;
 import io.netty.util.internal.logging.InternalLoggerFactory;
@@ -9,9 +10,16 @@ import io.netty.util.internal.logging.InternalLoggerFactory;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Queue;
 import java.util.WeakHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static io.netty.util.internal.MathUtil.isOutOfBounds;
 import static io.netty.util.internal.MathUtil.safeFindNextPositivePowerOfTwo;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
@@ -33,18 +41,28 @@ public abstract class RecyclerByCopyed<T> {
     };
     private static final AtomicInteger ID_GENERATOR = new AtomicInteger(Integer.MIN_VALUE);
     private static final int OWN_THREAD_ID = ID_GENERATOR.getAndIncrement();
+    private static final int SHARED_POOL_ID = ID_GENERATOR.getAndIncrement();  //放在共享池中的Handle使用这个回收ID
+    private static final long REAP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);  //最多每秒检查一次已经结束的线程
     private static final int DEFAULT_INITIAL_MAX_CAPACITY_PER_THREAD = 4 * 1024; // Use 4k instances as default.默认最多缓存4K个对象
-    private static final int DEFAULT_MAX_CAPACITY_PER_THREAD;      //每个线程的Stack最多缓存多少个对象
+    static final int DEFAULT_MAX_CAPACITY_PER_THREAD;              //每个线程的Stack最多缓存多少个对象
     private static final int INITIAL_CAPACITY;                     //初始化容量
-    private static final int MAX_SHARED_CAPACITY_FACTOR;           //最大可共享容量
-    private static final int MAX_DELAYED_QUEUES_PER_THREAD;        //WeakOrderqueue最大数量
+    static final int MAX_SHARED_CAPACITY_FACTOR;                   //最大可共享容量
+    static final int MAX_DELAYED_QUEUES_PER_THREAD;                //WeakOrderqueue最大数量
     private static final int LINK_CAPACITY;                        //WeakOrderqueue中的数组DefaultHandle<?>[] elements的容量
-    private static final int RATIO;                                //掩码
+    static final int RATIO;                                        //掩码
+    static final CrossThreadMode DEFAULT_CROSS_THREAD_MODE;         //默认的跨线程回收方式
+    static final PoolMode DEFAULT_POOL_MODE;                       //默认的缓存方式
+    private static final int MPSC_DRAIN_BATCH;                     //MPSC模式下pop()每次最多从队列中取出的数量
+    //是否统计命中率、丢弃数等指标，static final关闭时JIT会直接消除统计代码
+    private static final boolean METRICS_ENABLED;
+    static final long DEFAULT_TRIM_INTERVAL_MILLIS;                //Stack自适应调整容量的周期，0表示关闭
+    static final int DEFAULT_SCAVENGE_BUDGET;                      //每次scavenge最多调用多少次transfer，0表示不限制
+    static final int DEFAULT_SHARED_POOL_CAPACITY;                 //所有线程共享的溢出池容量，0表示关闭
 
     static {
-        // In the future, we might have different maxCapacity for different object types.
-        // e.g. io.netty.recycler.maxCapacity.writeTask
-        //      io.netty.recycler.maxCapacity.outboundBuffer
+        // These are the defaults; different object types can override them through RecyclerConfig.forType(),
+        // e.g. io.netty.recycler.maxCapacityPerThread.writeTask
+        //      io.netty.recycler.maxCapacityPerThread.outboundBuffer
         //这里做到了各种参数都是可配置的，可以根据实际压测情况，调节对象池的参数
         int maxCapacityPerThread = SystemPropertyUtil.getInt("io.netty.recycler.maxCapacityPerThread",
                 SystemPropertyUtil.getInt("io.netty.recycler.maxCapacity", DEFAULT_INITIAL_MAX_CAPACITY_PER_THREAD));
@@ -74,6 +92,39 @@ public abstract class RecyclerByCopyed<T> {
         RATIO = safeFindNextPositivePowerOfTwo(SystemPropertyUtil.getInt("io.netty.recycler.ratio", 8));
         //默认值设置为8，也就是二进制为1000，这样设置可以让容量缓慢增大，避免爆发式的请求，默认每过8次就允许进行回收一次
 
+        //跨线程回收默认还是走WeakOrderQueue，可以通过-Dio.netty.recycler.crossThreadMode=MPSC_QUEUE切换
+        CrossThreadMode crossThreadMode;
+        try {
+            crossThreadMode = CrossThreadMode.valueOf(SystemPropertyUtil.get("io.netty.recycler.crossThreadMode",
+                    CrossThreadMode.WEAK_ORDER_QUEUE.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            crossThreadMode = CrossThreadMode.WEAK_ORDER_QUEUE;
+        }
+        DEFAULT_CROSS_THREAD_MODE = crossThreadMode;
+
+        //线程生命周期很短(每个请求一个线程、虚拟线程)时可以通过-Dio.netty.recycler.poolMode=STRIPED改为所有线程共享的分段池
+        PoolMode poolMode;
+        try {
+            poolMode = PoolMode.valueOf(SystemPropertyUtil.get("io.netty.recycler.poolMode",
+                    PoolMode.THREAD_LOCAL.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            poolMode = PoolMode.THREAD_LOCAL;
+        }
+        DEFAULT_POOL_MODE = poolMode;
+
+        MPSC_DRAIN_BATCH = max(1, SystemPropertyUtil.getInt("io.netty.recycler.mpscDrainBatch", 64));
+
+        METRICS_ENABLED = SystemPropertyUtil.getBoolean("io.netty.recycler.metrics", false);
+
+        //每过一个周期，把这个周期内一直没有被借出去的对象释放掉，并收缩数组；默认关闭，保持原来只增不减的行为
+        DEFAULT_TRIM_INTERVAL_MILLIS = max(0, SystemPropertyUtil.getLong("io.netty.recycler.trimIntervalMillis", 0));
+
+        //scavenge时每访问一个Link(调用一次transfer)算一次，用完了就记下cursor，剩下的留给下一次pop()
+        DEFAULT_SCAVENGE_BUDGET = max(0, SystemPropertyUtil.getInt("io.netty.recycler.scavengeBudget", 0));
+
+        //线程结束后它Stack里的对象转移到共享池，给其他线程复用
+        DEFAULT_SHARED_POOL_CAPACITY = max(0, SystemPropertyUtil.getInt("io.netty.recycler.sharedPoolCapacity", 0));
+
         if (logger.isDebugEnabled()) {
             if (DEFAULT_MAX_CAPACITY_PER_THREAD == 0) {
                 logger.debug("-Dio.netty.recycler.maxCapacityPerThread: disabled");
@@ -85,6 +136,13 @@ public abstract class RecyclerByCopyed<T> {
                 logger.debug("-Dio.netty.recycler.maxSharedCapacityFactor: {}", MAX_SHARED_CAPACITY_FACTOR);
                 logger.debug("-Dio.netty.recycler.linkCapacity: {}", LINK_CAPACITY);
                 logger.debug("-Dio.netty.recycler.ratio: {}", RATIO);
+                logger.debug("-Dio.netty.recycler.crossThreadMode: {}", DEFAULT_CROSS_THREAD_MODE);
+                logger.debug("-Dio.netty.recycler.poolMode: {}", DEFAULT_POOL_MODE);
+                logger.debug("-Dio.netty.recycler.mpscDrainBatch: {}", MPSC_DRAIN_BATCH);
+                logger.debug("-Dio.netty.recycler.metrics: {}", METRICS_ENABLED);
+                logger.debug("-Dio.netty.recycler.trimIntervalMillis: {}", DEFAULT_TRIM_INTERVAL_MILLIS);
+                logger.debug("-Dio.netty.recycler.scavengeBudget: {}", DEFAULT_SCAVENGE_BUDGET);
+                logger.debug("-Dio.netty.recycler.sharedPoolCapacity: {}", DEFAULT_SHARED_POOL_CAPACITY);
             }
         }
 
@@ -96,6 +154,20 @@ public abstract class RecyclerByCopyed<T> {
     private final int maxSharedCapacityFactor;       //最大可共享容量因子
     private final int ratioMask;                     //掩码
     private final int maxDelayedQueuesPerThread;     //WeakOrderQueue的最大容量
+    private final CrossThreadMode crossThreadMode;   //跨线程回收的方式
+    private final RecyclerMetrics metrics;           //统计信息，METRICS_ENABLED为false时为null
+    private final RecyclerLeakDetector leakDetector; //采样记录借出位置，级别为DISABLED时不做任何事
+    private final long trimIntervalNanos;            //Stack自适应调整容量的周期，0表示关闭
+    private final int scavengeBudget;                //每次scavenge最多访问的Link数量
+    private final long estimatedObjectSize;          //每个缓存对象估计的字节数，0表示不计入RecyclerMemoryBudget
+
+    //共享的溢出池，以及用来发现已经结束的线程的所有Stack，sharedPoolCapacity为0时都为null
+    private final StripedHandlePool<RecyclerByCopyed.DefaultHandle<?>> sharedPool;
+    private final Queue<RecyclerByCopyed.Stack<T>> stacks;
+    private final AtomicLong nextReapNanos = new AtomicLong(System.nanoTime());
+
+    //STRIPED模式下代替所有线程的Stack，THREAD_LOCAL模式下为null
+    private final StripedHandlePool<RecyclerByCopyed.StripedHandle<T>> stripedPool;
 
     //FastThreadLocal是线程本地变量，所以每个线程都对应一个自己的Stack
     //通过threadLocal.get()可以获得一个RecyclerByCopyed.Stack对象
@@ -103,8 +175,12 @@ public abstract class RecyclerByCopyed<T> {
         //当线程中的InternalThreadLocalMap中没有找到RecyclerByCopyed.Stack对象实例时，在这里初始化一个，并返回
         @Override
         protected RecyclerByCopyed.Stack<T> initialValue() {
-            return new RecyclerByCopyed.Stack<T>(RecyclerByCopyed.this, Thread.currentThread(), maxCapacityPerThread, maxSharedCapacityFactor,
-                    ratioMask, maxDelayedQueuesPerThread);
+            RecyclerByCopyed.Stack<T> stack = new RecyclerByCopyed.Stack<T>(RecyclerByCopyed.this, Thread.currentThread(),
+                    maxCapacityPerThread, maxSharedCapacityFactor, ratioMask, maxDelayedQueuesPerThread, crossThreadMode);
+            if (stacks != null) {
+                stacks.add(stack);
+            }
+            return stack;
         }
 
         @Override
@@ -114,6 +190,10 @@ public abstract class RecyclerByCopyed<T> {
                 if (DELAYED_RECYCLED.isSet()) {
                     DELAYED_RECYCLED.get().remove(value);
                 }
+                // FastThreadLocalThread结束时会调用到这里，直接把对象交给共享池
+                if (stacks != null && stacks.remove(value)) {
+                    value.drainToSharedPool();
+                }
             }
         }
     };
@@ -132,7 +212,66 @@ public abstract class RecyclerByCopyed<T> {
 
     protected RecyclerByCopyed(int maxCapacityPerThread, int maxSharedCapacityFactor,
                        int ratio, int maxDelayedQueuesPerThread) {
-        ratioMask = safeFindNextPositivePowerOfTwo(ratio) - 1;   //为2的幂次-1，  默认为8， 则该值为0000 0111
+        this(maxCapacityPerThread, maxSharedCapacityFactor, ratio, maxDelayedQueuesPerThread, DEFAULT_CROSS_THREAD_MODE);
+    }
+
+    protected RecyclerByCopyed(int maxCapacityPerThread, int maxSharedCapacityFactor,
+                       int ratio, int maxDelayedQueuesPerThread, CrossThreadMode crossThreadMode) {
+        this(maxCapacityPerThread, maxSharedCapacityFactor, ratio, maxDelayedQueuesPerThread, crossThreadMode,
+                DEFAULT_TRIM_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param trimIntervalMillis 每个Stack按这个周期统计借出情况：周期内一直闲置的对象会被释放、数组会收缩，
+     *                           未命中率持续偏高时再放大有效容量(不超过maxCapacityPerThread)；0表示关闭
+     */
+    protected RecyclerByCopyed(int maxCapacityPerThread, int maxSharedCapacityFactor,
+                       int ratio, int maxDelayedQueuesPerThread, CrossThreadMode crossThreadMode,
+                       long trimIntervalMillis) {
+        this(RecyclerConfig.builder()
+                .maxCapacityPerThread(maxCapacityPerThread)
+                .maxSharedCapacityFactor(maxSharedCapacityFactor)
+                .ratio(ratio)
+                .maxDelayedQueuesPerThread(maxDelayedQueuesPerThread)
+                .crossThreadMode(crossThreadMode)
+                .trimIntervalMillis(trimIntervalMillis)
+                .build());
+    }
+
+    /**
+     * 按类型名使用{@link RecyclerConfig#forType(String)}找到的配置
+     */
+    protected RecyclerByCopyed(String type) {
+        this(RecyclerConfig.forType(type));
+    }
+
+    protected RecyclerByCopyed(RecyclerConfig config) {
+        crossThreadMode = config.crossThreadMode();
+        trimIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.trimIntervalMillis());
+        scavengeBudget = config.scavengeBudget() == 0 ? Integer.MAX_VALUE : config.scavengeBudget();
+        estimatedObjectSize = config.estimatedObjectSize();
+        if (config.poolMode() == PoolMode.STRIPED && config.maxCapacityPerThread() > 0) {
+            //分段池的总容量优先使用sharedPoolCapacity，没有配置时和一个线程的Stack一样大；池中的对象计入RecyclerMemoryBudget
+            stripedPool = new StripedHandlePool<RecyclerByCopyed.StripedHandle<T>>(config.sharedPoolCapacity() > 0 ?
+                    config.sharedPoolCapacity() : config.maxCapacityPerThread(), config.estimatedObjectSize());
+        } else {
+            stripedPool = null;
+        }
+        if (stripedPool == null && config.sharedPoolCapacity() > 0 && config.maxCapacityPerThread() > 0) {
+            //共享池中的对象同样计入RecyclerMemoryBudget
+            sharedPool = new StripedHandlePool<RecyclerByCopyed.DefaultHandle<?>>(config.sharedPoolCapacity(),
+                    config.estimatedObjectSize());
+            stacks = new ConcurrentLinkedQueue<RecyclerByCopyed.Stack<T>>();
+        } else {
+            sharedPool = null;
+            stacks = null;
+        }
+        metrics = METRICS_ENABLED ? RecyclerMetrics.register(getClass()) : null;
+        leakDetector = new RecyclerLeakDetector(getClass(), metrics);
+        int maxCapacityPerThread = config.maxCapacityPerThread();
+        int maxSharedCapacityFactor = config.maxSharedCapacityFactor();
+        int maxDelayedQueuesPerThread = config.maxDelayedQueuesPerThread();
+        ratioMask = safeFindNextPositivePowerOfTwo(config.ratio()) - 1;   //为2的幂次-1，  默认为8， 则该值为0000 0111
         if (maxCapacityPerThread <= 0) {
             this.maxCapacityPerThread = 0;
             this.maxSharedCapacityFactor = 1;
@@ -148,17 +287,196 @@ public abstract class RecyclerByCopyed<T> {
     @SuppressWarnings("unchecked")
     public final T get() {
         if (maxCapacityPerThread == 0) {      // 通过修改maxCapacityPerThread=0可以关闭回收功能，默认值是4k
+            if (METRICS_ENABLED) {
+                metrics.miss();
+            }
             return newObject((RecyclerByCopyed.Handle<T>) NOOP_HANDLE);
         }
+        if (stripedPool != null) {
+            return getStriped();
+        }
         RecyclerByCopyed.Stack<T> stack = threadLocal.get();      //通过FastThreadLocal.get()得到Stack对象
         RecyclerByCopyed.DefaultHandle<T> handle = stack.pop();   //从Stack中弹出一个DefaultHandle
+        if (handle == null && sharedPool != null) {
+            handle = pollShared(stack);                           //Stack中没有，再去共享池中找
+        }
         if (handle == null) {
+            if (METRICS_ENABLED) {
+                metrics.miss();
+            }
             handle = stack.newHandle();                           //Stack中没有Handle对象，则新建一个对象
             handle.value = newObject(handle);                     //调用子类的newObject()方法创建一个新的对象，并将该值赋予Handle管理
+        } else if (METRICS_ENABLED) {
+            metrics.hit();
+        }
+        if (handle.tracker != null || RecyclerLeakDetector.isEnabled()) {
+            handle.tracker = leakDetector.track(handle.value);   //复用的Handle上可能还留着上一次借出时的Tracker
         }
         return (T) handle.value;                                  //返回从Stack中弹出的Handle中管理的对象
     }
 
+    //STRIPED模式：不访问FastThreadLocal，直接从分段池中取，新线程也能拿到其他线程归还的对象
+    private T getStriped() {
+        RecyclerByCopyed.StripedHandle<T> handle = stripedPool.poll();
+        if (handle == null) {
+            if (METRICS_ENABLED) {
+                metrics.miss();
+            }
+            handle = new RecyclerByCopyed.StripedHandle<T>(this);
+            handle.value = newObject(handle);
+        } else {
+            handle.recycled = false;
+            if (METRICS_ENABLED) {
+                metrics.hit();
+            }
+        }
+        if (handle.tracker != null || RecyclerLeakDetector.isEnabled()) {
+            handle.tracker = leakDetector.track(handle.value);
+        }
+        return handle.value;
+    }
+
+    //从共享池取一个Handle交给stack；共享池空了就顺便检查一下有没有已经结束的线程，把它们的对象收集过来
+    @SuppressWarnings("unchecked")
+    private RecyclerByCopyed.DefaultHandle<T> pollShared(RecyclerByCopyed.Stack<T> stack) {
+        RecyclerByCopyed.DefaultHandle<T> handle = (RecyclerByCopyed.DefaultHandle<T>) sharedPool.poll();
+        if (handle == null && reapDeadStacks()) {
+            handle = (RecyclerByCopyed.DefaultHandle<T>) sharedPool.poll();
+        }
+        if (handle == null) {
+            return null;
+        }
+        handle.stack = stack;                                     //换成当前线程的Stack，之后就回收到这里
+        handle.recycleId = 0;
+        handle.lastRecycledId = 0;
+        if (METRICS_ENABLED) {
+            metrics.sharedPoolHit();
+        }
+        return handle;
+    }
+
+    //遍历所有Stack，把所属线程已经结束的Stack中的对象转移到共享池，最多每REAP_INTERVAL_NANOS执行一次
+    private boolean reapDeadStacks() {
+        long now = System.nanoTime();
+        long next = nextReapNanos.get();
+        if (now - next < 0 || !nextReapNanos.compareAndSet(next, now + REAP_INTERVAL_NANOS)) {
+            return false;
+        }
+        boolean reaped = false;
+        boolean others = false;
+        Thread current = Thread.currentThread();
+        for (Iterator<RecyclerByCopyed.Stack<T>> i = stacks.iterator(); i.hasNext();) {
+            RecyclerByCopyed.Stack<T> stack = i.next();
+            if (stack.isOwnerDead()) {
+                i.remove();
+                // 线程已经结束(Thread.isAlive()返回false保证能看到它之前的所有写)，这里是唯一的访问者
+                stack.drainToSharedPool();
+                reaped = true;
+            } else if (stack.threadRef.get() != current) {
+                others = true;
+            }
+        }
+        if (!reaped && !others) {
+            // 只有当前线程自己的Stack，没有必要等一个周期，下次未命中时再检查
+            nextReapNanos.compareAndSet(now + REAP_INTERVAL_NANOS, next);
+        }
+        return reaped;
+    }
+
+    /**
+     * 批量获取对象，填满objects[offset, offset + length)。只查找一次Stack，Stack中不够时先一次性把
+     * WeakOrderQueue/MPSC队列中的对象转移回来，仍然不够的再调用newObject()创建
+     *
+     * @return 从对象池中复用的对象数量，其余的都是新创建的
+     */
+    @SuppressWarnings("unchecked")
+    public final int get(T[] objects, int offset, int length) {
+        if (isOutOfBounds(offset, length, objects.length)) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length
+                    + " (expected: range(0, " + objects.length + "))");
+        }
+        int hits = 0;
+        if (maxCapacityPerThread == 0) {
+            for (int i = offset; i < offset + length; i++) {
+                objects[i] = newObject((RecyclerByCopyed.Handle<T>) NOOP_HANDLE);
+            }
+        } else if (stripedPool != null) {
+            for (int i = offset; i < offset + length; i++) {
+                RecyclerByCopyed.StripedHandle<T> handle = stripedPool.poll();
+                if (handle != null) {
+                    handle.recycled = false;
+                    hits ++;
+                } else {
+                    handle = new RecyclerByCopyed.StripedHandle<T>(this);
+                    handle.value = newObject(handle);
+                }
+                if (handle.tracker != null || RecyclerLeakDetector.isEnabled()) {
+                    handle.tracker = leakDetector.track(handle.value);
+                }
+                objects[i] = handle.value;
+            }
+        } else {
+            RecyclerByCopyed.Stack<T> stack = threadLocal.get();
+            hits = stack.popAll(objects, offset, length);
+            for (int i = offset + hits; i < offset + length; i++) {
+                RecyclerByCopyed.DefaultHandle<T> handle = sharedPool != null ? pollShared(stack) : null;
+                if (handle != null) {
+                    hits ++;
+                } else {
+                    handle = stack.newHandle();
+                    handle.value = newObject(handle);
+                }
+                if (handle.tracker != null || RecyclerLeakDetector.isEnabled()) {
+                    handle.tracker = leakDetector.track(handle.value);
+                }
+                objects[i] = (T) handle.value;
+            }
+        }
+        if (METRICS_ENABLED) {
+            metrics.hit(hits);
+            metrics.miss(length - hits);
+        }
+        return hits;
+    }
+
+    /**
+     * 批量回收handles[offset, offset + length)中每个Handle管理的对象。连续属于同一个Stack的Handle
+     * 只做一次线程判断和扩容，所以同一个线程借出的对象放在一起回收效果最好
+     */
+    public final void recycle(RecyclerByCopyed.Handle<T>[] handles, int offset, int length) {
+        if (isOutOfBounds(offset, length, handles.length)) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length
+                    + " (expected: range(0, " + handles.length + "))");
+        }
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            RecyclerByCopyed.Handle<T> handle = handles[i];
+            if (handle == NOOP_HANDLE) {
+                i ++;
+                continue;
+            }
+            if (stripedPool != null) {       //分段池没有按Stack分组的必要，逐个放回
+                ((RecyclerByCopyed.StripedHandle<T>) handle).recycle();
+                i ++;
+                continue;
+            }
+            ((RecyclerByCopyed.DefaultHandle<T>) handle).closeTracker();
+            RecyclerByCopyed.Stack<?> stack = ((RecyclerByCopyed.DefaultHandle<T>) handle).stack;
+            if (stack == null) {      //还在其他线程的WeakOrderQueue里，说明已经回收过了
+                throw new IllegalStateException("recycled already");
+            }
+            int j = i + 1;
+            while (j < end && handles[j] != NOOP_HANDLE
+                    && ((RecyclerByCopyed.DefaultHandle<T>) handles[j]).stack == stack) {
+                ((RecyclerByCopyed.DefaultHandle<T>) handles[j]).closeTracker();
+                j ++;
+            }
+            stack.pushAll(handles, i, j);
+            i = j;
+        }
+    }
+
     /**
      * @deprecated use {@link RecyclerByCopyed.Handle#recycle(Object)}.  //旧的方法，已经废除
      */
@@ -168,6 +486,15 @@ public abstract class RecyclerByCopyed<T> {
             return false;
         }
 
+        if (handle instanceof StripedHandle) {       //STRIPED模式没有Stack，属于这个回收器就放回分段池
+            StripedHandle<T> h = (StripedHandle<T>) handle;
+            if (h.parent != this) {
+                return false;
+            }
+            h.recycle(o);
+            return true;
+        }
+
         RecyclerByCopyed.DefaultHandle<T> h = (RecyclerByCopyed.DefaultHandle<T>) handle;
         if (h.stack.parent != this) {    //旧方法，如果不是当前线程的，直接不回收了
             return false;
@@ -185,6 +512,23 @@ public abstract class RecyclerByCopyed<T> {
         return threadLocal.get().size;
     }
 
+    /**
+     * 返回该回收器类的所有实例在所有线程上的统计信息，没有打开-Dio.netty.recycler.metrics时返回{@code null}
+     */
+    public final RecyclerMetricsMXBean metrics() {
+        return metrics;
+    }
+
+    //检测到的没有recycle()就被GC的采样对象数量，只在之后有对象被采样时才会更新
+    final long leaks() {
+        return leakDetector.leaks();
+    }
+
+    //Stack自适应调整容量时使用的时钟，测试中可以覆盖
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
     //抽象方法，实现RecyclerByCopyed类需要给出具体实例的new 方法
     protected abstract T newObject(RecyclerByCopyed.Handle<T> handle);
 
@@ -193,12 +537,71 @@ public abstract class RecyclerByCopyed<T> {
         void recycle(T object);
     }
 
+    //对象缓存在哪里
+    public enum PoolMode {
+        //每个线程一个Stack，适合EventLoop这样长期存在的线程
+        THREAD_LOCAL,
+        //所有线程共享固定数量的分段，按线程id散列选择起始的段，适合短生命周期的线程和虚拟线程；
+        //不使用ratio、maxSharedCapacityFactor、trimIntervalMillis等Stack相关的参数
+        STRIPED
+    }
+
+    //非Stack所属线程回收对象时的处理方式
+    public enum CrossThreadMode {
+        //每个回收线程通过DELAYED_RECYCLED找到自己的WeakOrderQueue，Stack在scavenge()时遍历所有队列
+        WEAK_ORDER_QUEUE,
+        //每个Stack持有一个有界的无锁多生产者单消费者队列，回收线程直接offer，pop()时批量取出
+        MPSC_QUEUE
+    }
+
+    //STRIPED模式的Handle，回收时直接放回所属回收器的分段池，没有线程归属
+    static final class StripedHandle<T> implements RecyclerByCopyed.Handle<T> {
+        private final RecyclerByCopyed<T> parent;
+        private T value;
+        boolean recycled;             //在分段池中为true，用来发现重复回收
+        RecyclerLeakDetector.Tracker tracker;   //被采样时记录借出位置，没有被采样为null
+
+        StripedHandle(RecyclerByCopyed<T> parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public void recycle(Object object) {
+            if (object != value) {
+                throw new IllegalArgumentException("object does not belong to handle");
+            }
+            recycle();
+        }
+
+        void recycle() {
+            RecyclerLeakDetector.Tracker tracker = this.tracker;
+            if (tracker != null) {
+                tracker.close();          //被采样的对象重复回收时，异常带上第一次回收的位置
+            }
+            if (recycled) {
+                throw new IllegalStateException("recycled already");
+            }
+            recycled = true;
+            if (!parent.stripedPool.offer(this)) {   //所有段都满了或者正被占用，交给GC
+                recycled = false;
+                if (METRICS_ENABLED) {
+                    parent.metrics.droppedByMaxCapacity();
+                }
+            }
+        }
+    }
+
     //DefaultHandle就是以Stack的包装对象，持有Stack的引用，可以回收自己到Stack中
     static final class DefaultHandle<T> implements RecyclerByCopyed.Handle<T> {
-        private int lastRecycledId;   //标记最新一次回收的线程ID
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<DefaultHandle> LAST_RECYCLED_ID_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(DefaultHandle.class, "lastRecycledId");
+
+        private volatile int lastRecycledId;   //标记最新一次回收的线程ID，MPSC模式下多个线程可能同时回收，用CAS更新
         private int recycleId;        //也是一个标记，是用来回收前的校验的
 
         boolean hasBeenRecycled;      //标记是否已经被回收
+        RecyclerLeakDetector.Tracker tracker;   //被采样时记录借出位置，没有被采样为null
 
         private RecyclerByCopyed.Stack<?> stack;     //持有stack的引用
         private Object value;                        //持有需要回收器管理的对象，这里可以发现一个回收器管理一个回收对象
@@ -212,8 +615,25 @@ public abstract class RecyclerByCopyed<T> {
             if (object != value) {
                 throw new IllegalArgumentException("object does not belong to handle");
             }
+            closeTracker();
+            RecyclerByCopyed.Stack<?> stack = this.stack;
+            if (stack == null) {             //还在WeakOrderQueue或者共享池里，说明已经回收过了
+                throw new IllegalStateException("recycled already");
+            }
             stack.push(this);                //如果需要回收的对象符合该回收器，则将该回收器押入stack中
         }
+
+        boolean compareAndSetLastRecycledId(int expect, int update) {
+            return LAST_RECYCLED_ID_UPDATER.compareAndSet(this, expect, update);
+        }
+
+        //Tracker在下一次借出前一直保留，被采样的对象重复回收时，异常带上第一次回收的位置
+        void closeTracker() {
+            RecyclerLeakDetector.Tracker tracker = this.tracker;
+            if (tracker != null) {
+                tracker.close();
+            }
+        }
     }
 
     //FastThreadLocal是线程本地变量，所以每个线程都对应一个自己的Stack
@@ -254,10 +674,12 @@ public abstract class RecyclerByCopyed<T> {
         private final WeakReference<Thread> owner;    //拥有者，这是一个弱引用
         private final int id = ID_GENERATOR.getAndIncrement();   //WeakOrderQueue的唯一标记
         private final AtomicInteger availableSharedCapacity;     //允许的最大共享容量
+        private final RecyclerMetrics metrics;                   //和Stack一样不能直接持有Stack，所以单独保存
 
         private WeakOrderQueue() {           //用于初始化DUMMY，遇到DUMMY就知道要抛弃了
             owner = null;
             availableSharedCapacity = null;
+            metrics = null;
         }
 
         private WeakOrderQueue(RecyclerByCopyed.Stack<?> stack, Thread thread) {     //在Stack的pushLater()中如果没有WeakOrderQueue，会调用这里new一个
@@ -272,6 +694,7 @@ public abstract class RecyclerByCopyed<T> {
             // the WeakHashMap as key. So just store the enclosed AtomicInteger which should allow to have the
             // Stack itself GCed.
             availableSharedCapacity = stack.availableSharedCapacity;
+            metrics = stack.metrics;
         }
 
         //stack.setHead(queue)必须在构造器外进行，防止对象溢出
@@ -324,6 +747,9 @@ public abstract class RecyclerByCopyed<T> {
             if ((writeIndex = tail.get()) == LINK_CAPACITY) {
                 if (!reserveSpace(availableSharedCapacity, LINK_CAPACITY)) {    //判断剩余空间是否足够
                     // Drop it.
+                    if (METRICS_ENABLED) {
+                        metrics.droppedBySharedCapacity();
+                    }
                     return;
                 }
                 // We allocate a Link so reserve the space
@@ -385,7 +811,7 @@ public abstract class RecyclerByCopyed<T> {
                     }
                     srcElems[i] = null;                                       //成功了，就把WeakOrderQueue数组里置为空，释放对对象的引用
 
-                    if (dst.dropHandle(element)) {                            //判断是否回收
+                    if (dst.dropHandle(element) || !dst.reserveMemory()) {    //判断是否回收
                         // Drop the object.
                         continue;
                     }
@@ -401,6 +827,9 @@ public abstract class RecyclerByCopyed<T> {
                 }
 
                 head.readIndex = srcEnd;                                      //下次从这里开始读
+                if (METRICS_ENABLED) {
+                    metrics.transfer(srcEnd - srcStart);
+                }
                 if (dst.size == newDstSize) {                                 //如果相等则表示没有剩余空间了，返回false
                     return false;
                 }
@@ -449,8 +878,11 @@ public abstract class RecyclerByCopyed<T> {
         final WeakReference<Thread> threadRef;            //持有到线程的弱引用
         final AtomicInteger availableSharedCapacity;      //最大可共享的容量，可进行CAS修改
         final int maxDelayedQueues;                       //WeakOrderQueue的最大容量
+        final RecyclerMetrics metrics;                    //所属回收器的统计信息，可能为null
 
         private final int maxCapacity;                    //最大容量
+        private final int minCapacity;                    //自适应收缩时的下限，也就是初始容量
+        private int effectiveCapacity;                    //当前允许缓存的数量，关闭自适应时一直等于maxCapacity
         private final int ratioMask;                      //掩码
         private RecyclerByCopyed.DefaultHandle<?>[] elements;        //DefaultHandle数组
         private int size;
@@ -458,15 +890,46 @@ public abstract class RecyclerByCopyed<T> {
         private RecyclerByCopyed.WeakOrderQueue cursor, prev;       //指向当前的WeakOrderQueue 和 前一个
         private volatile RecyclerByCopyed.WeakOrderQueue head;
 
+        //MPSC_QUEUE模式下其他线程回收的对象都放到这里，WEAK_ORDER_QUEUE模式下为null
+        private final Queue<RecyclerByCopyed.DefaultHandle<?>> mpscQueue;
+        private final int mpscId = ID_GENERATOR.getAndIncrement();   //MPSC队列的唯一标记，作用和WeakOrderQueue.id一样
+
+        //自适应容量，只在Stack所属线程中读写，不需要同步
+        private final long trimIntervalNanos;
+        private final int scavengeBudget;                 //每次scavenge最多调用transfer的次数
+        //向RecyclerMemoryBudget的预约，estimatedObjectSize为0时为null
+        private final RecyclerMemoryBudget.Reservation reservation;
+        private final StripedHandlePool<RecyclerByCopyed.DefaultHandle<?>> sharedPool;   //所属回收器的共享池，可能为null
+        private long windowStartNanos;                    //当前统计周期的开始时间
+        private int windowLowWatermark;                   //当前周期内size的最小值，也就是一直没被借出去的对象数
+        private int windowGets;
+        private int windowMisses;
+        private int windowRecycles;                       //当前周期内所属线程回收的次数
+        private int highMissWindows;                      //连续未命中率偏高的周期数
+
         Stack(RecyclerByCopyed<T> parent, Thread thread, int maxCapacity, int maxSharedCapacityFactor,
-              int ratioMask, int maxDelayedQueues) {
+              int ratioMask, int maxDelayedQueues, CrossThreadMode crossThreadMode) {
             this.parent = parent;
+            metrics = parent.metrics;
             threadRef = new WeakReference<Thread>(thread);
             this.maxCapacity = maxCapacity;
+            effectiveCapacity = maxCapacity;
+            minCapacity = min(INITIAL_CAPACITY, maxCapacity);
+            trimIntervalNanos = parent.trimIntervalNanos;
+            scavengeBudget = parent.scavengeBudget;
+            sharedPool = parent.sharedPool;
+            reservation = parent.estimatedObjectSize > 0 ?
+                    new RecyclerMemoryBudget.Reservation(parent.estimatedObjectSize) : null;
+            if (trimIntervalNanos != 0) {
+                windowStartNanos = parent.nanoTime();
+            }
             availableSharedCapacity = new AtomicInteger(max(maxCapacity / maxSharedCapacityFactor, LINK_CAPACITY));   //maxSharedCapacityFactor默认为2
             elements = new RecyclerByCopyed.DefaultHandle[min(INITIAL_CAPACITY, maxCapacity)]; //取初始化和maxCapacity的最小值，一般保留maxCapacity，方便之后的动态扩容
             this.ratioMask = ratioMask;
             this.maxDelayedQueues = maxDelayedQueues;
+            //队列容量和WeakOrderQueue模式下的最大共享容量一致
+            mpscQueue = crossThreadMode == CrossThreadMode.MPSC_QUEUE ?
+                    PlatformDependent.<RecyclerByCopyed.DefaultHandle<?>>newFixedMpscQueue(availableSharedCapacity.get()) : null;
         }
 
         // Marked as synchronized to ensure this is serialized.
@@ -478,7 +941,7 @@ public abstract class RecyclerByCopyed<T> {
 
         int increaseCapacity(int expectedCapacity) {
             int newCapacity = elements.length;
-            int maxCapacity = this.maxCapacity;
+            int maxCapacity = this.effectiveCapacity;
             do {
                 newCapacity <<= 1;    //每次扩容两倍，知道newCapacity>expectedCapacity
             } while (newCapacity < expectedCapacity && newCapacity < maxCapacity);
@@ -491,11 +954,64 @@ public abstract class RecyclerByCopyed<T> {
             return newCapacity;
         }
 
-        @SuppressWarnings({ "unchecked", "rawtypes" })
         RecyclerByCopyed.DefaultHandle<T> pop() {
+            RecyclerByCopyed.DefaultHandle<T> ret = pop0();
+            if (trimIntervalNanos != 0) {
+                adapt(1, ret == null ? 1 : 0);
+            }
+            return ret;
+        }
+
+        //批量弹出，最多length个放到dst[offset, offset + n)，返回实际弹出的数量n
+        @SuppressWarnings("rawtypes")
+        int popAll(Object[] dst, int offset, int length) {
+            if (size < length) {
+                refill(length);
+            }
+            int size = this.size;
+            final int n = min(size, length);
+            final RecyclerByCopyed.DefaultHandle[] elements = this.elements;
+            for (int i = 0; i < n; i++) {
+                RecyclerByCopyed.DefaultHandle ret = elements[-- size];
+                elements[size] = null;
+                if (ret.lastRecycledId != ret.recycleId) {
+                    this.size = size;
+                    throw new IllegalStateException("recycled multiple times");
+                }
+                ret.recycleId = 0;
+                ret.lastRecycledId = 0;
+                if (ret.tracker != null || RecyclerLeakDetector.isEnabled()) {
+                    ret.tracker = parent.leakDetector.track(ret.value);
+                }
+                dst[offset + i] = ret.value;
+            }
+            this.size = size;
+            releaseMemory(n);
+            if (trimIntervalNanos != 0) {
+                adapt(length, length - n);
+            }
+            return n;
+        }
+
+        //一次遍历把其他线程回收的对象尽量转移回来，直到够wanted个或者没有可转移的了
+        private void refill(int wanted) {
+            if (mpscQueue != null) {
+                while (size < wanted && drainMpsc()) {
+                    // 继续取下一批
+                }
+            } else {
+                //scavenge()从上次的cursor继续，到链表末尾返回false并重置cursor，所以最多走一遍
+                while (size < wanted && scavenge()) {
+                    // 继续转移下一个Link
+                }
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private RecyclerByCopyed.DefaultHandle<T> pop0() {
             int size = this.size;
             if (size == 0) {
-                if (!scavenge()) {
+                if (!(mpscQueue != null ? drainMpsc() : scavenge())) {
                     return null;
                 }
                 size = this.size;
@@ -509,18 +1025,138 @@ public abstract class RecyclerByCopyed<T> {
             ret.recycleId = 0;                                   //获取出的对象，置为0表示没有被回收
             ret.lastRecycledId = 0;                              //获取出的对象，置为0表示没有被回收
             this.size = size;
+            releaseMemory(1);
             return ret;
         }
 
+        //记录get()的次数，有未命中或者每累计64次get()检查一下当前周期是否结束
+        private void adapt(int gets, int misses) {
+            int previousGets = windowGets;
+            windowGets += gets;
+            windowMisses += misses;
+            if (size < windowLowWatermark) {
+                windowLowWatermark = size;
+            }
+            if (misses != 0 || ((previousGets ^ windowGets) & ~63) != 0) {
+                checkWindow();
+            }
+        }
+
+        //回收时同样每累计64次检查一次周期是否结束，只回收、很少借出的线程也能按时释放闲置的对象
+        private void adaptOnRecycle(int recycles) {
+            int previousRecycles = windowRecycles;
+            windowRecycles += recycles;
+            if (((previousRecycles ^ windowRecycles) & ~63) != 0) {
+                checkWindow();
+            }
+        }
+
+        private void checkWindow() {
+            long now = parent.nanoTime();
+            if (now - windowStartNanos >= trimIntervalNanos) {
+                endWindow(now);
+            }
+        }
+
+        private void endWindow(long now) {
+            // 未命中超过1/4算偏高，连续两个周期偏高才放大有效容量，避免一次突发就把容量撑大
+            boolean highMiss = windowMisses << 2 > windowGets;
+            if (highMiss) {
+                if (++ highMissWindows >= 2 && effectiveCapacity < maxCapacity) {
+                    effectiveCapacity = min(effectiveCapacity << 1, maxCapacity);
+                    highMissWindows = 0;
+                }
+            } else {
+                highMissWindows = 0;
+                if (windowLowWatermark > 0) {
+                    trim(windowLowWatermark);
+                }
+            }
+
+            windowStartNanos = now;
+            windowLowWatermark = size;
+            windowGets = 0;
+            windowMisses = 0;
+            windowRecycles = 0;
+        }
+
+        //释放栈底的count个对象(最久没有被用到的)，并按剩余的数量收缩有效容量和数组
+        private void trim(int count) {
+            int size = this.size;
+            int remaining = size - count;
+            System.arraycopy(elements, count, elements, 0, remaining);
+            Arrays.fill(elements, remaining, size, null);
+            this.size = remaining;
+            releaseMemory(count);
+            if (METRICS_ENABLED) {
+                metrics.trimmed(count);
+            }
+
+            // 保留一倍的余量，下一个周期如果不够用会因为未命中偏高而再放大
+            effectiveCapacity = max(minCapacity, min(maxCapacity, safeFindNextPositivePowerOfTwo(max(remaining, 1)) << 1));
+            int newLength = max(minCapacity, safeFindNextPositivePowerOfTwo(max(remaining, 1)));
+            if (newLength < elements.length) {
+                elements = Arrays.copyOf(elements, newLength);
+            }
+        }
+
+        //从MPSC队列中批量取出其他线程回收的对象，一次最多MPSC_DRAIN_BATCH个，取到了就返回true
+        @SuppressWarnings("rawtypes")
+        boolean drainMpsc() {
+            int size = this.size;
+            int batch = min(MPSC_DRAIN_BATCH, effectiveCapacity - size);
+            if (size + batch > elements.length) {
+                batch = min(batch, increaseCapacity(size + batch) - size);
+            }
+            final RecyclerByCopyed.DefaultHandle[] elements = this.elements;
+            int polled = 0;
+            for (; polled < batch; polled++) {
+                RecyclerByCopyed.DefaultHandle<?> element = mpscQueue.poll();
+                if (element == null) {
+                    break;
+                }
+                if (element.recycleId == 0) {                   //和WeakOrderQueue.transfer()中的校验一致
+                    element.recycleId = element.lastRecycledId;
+                } else if (element.recycleId != element.lastRecycledId) {
+                    throw new IllegalStateException("recycled already");
+                }
+                if (dropHandle(element) || !reserveMemory()) {
+                    continue;
+                }
+                elements[size ++] = element;
+            }
+            if (METRICS_ENABLED && polled > 0) {
+                metrics.transfer(polled);
+            }
+            if (size == this.size) {
+                return false;
+            }
+            this.size = size;
+            return true;
+        }
+
         boolean scavenge() {
+            if (METRICS_ENABLED) {
+                long start = System.nanoTime();
+                boolean success = scavenge0();
+                metrics.scavengeNanos(System.nanoTime() - start);
+                return success;
+            }
+            return scavenge0();
+        }
+
+        private boolean scavenge0() {
             // continue an existing scavenge, if any
             if (scavengeSome()) {
                 return true;
             }
 
             // reset our scavenge cursor
-            prev = null;
-            cursor = head;
+            // 预算用完时cursor不为null，保留下来让下一次从这里继续
+            if (cursor == null) {
+                prev = null;
+                cursor = head;
+            }
             return false;
         }
 
@@ -538,7 +1174,13 @@ public abstract class RecyclerByCopyed<T> {
             }
 
             boolean success = false;
+            boolean deferred = false;
+            int iterations = 0;
+            int visited = 0;                                          //已经调用transfer的次数，不能超过scavengeBudget
+            final int budget = scavengeBudget;
             do {
+                iterations ++;
+                visited ++;
                 if (cursor.transfer(this)) {
                     success = true;
                     break;
@@ -552,12 +1194,20 @@ public abstract class RecyclerByCopyed<T> {
                     //第一个queue用于不回收，因为更新head指针会存在并发
                     if (cursor.hasFinalData()) {
                         for (;;) {
+                            if (visited >= budget) {
+                                deferred = true;   //预算用完了还没取完，先不摘掉这个queue，下次继续
+                                break;
+                            }
+                            visited ++;
                             if (cursor.transfer(this)) {
                                 success = true;
                             } else {
                                 break;     //cursor.transfer(this)返回false，代表没有读取的数据了
                             }
                         }
+                        if (deferred) {
+                            break;
+                        }
                     }
 
                     if (prev != null) {
@@ -569,8 +1219,17 @@ public abstract class RecyclerByCopyed<T> {
 
                 cursor = next;
 
-            } while (cursor != null && !success);
+                if (cursor != null && !success && visited >= budget) {
+                    deferred = true;
+                }
+            } while (cursor != null && !success && !deferred);
 
+            if (METRICS_ENABLED) {
+                metrics.scavenge(iterations);
+                if (deferred) {
+                    metrics.scavengeDeferred();
+                }
+            }
             this.prev = prev;
             this.cursor = cursor;
             return success;
@@ -581,11 +1240,64 @@ public abstract class RecyclerByCopyed<T> {
             if (threadRef.get() == currentThread) {
                 // The current Thread is the thread that belongs to the Stack, we can try to push the object now.
                 pushNow(item);
+                if (trimIntervalNanos != 0) {
+                    adaptOnRecycle(1);
+                }
             } else {
                 // The current Thread is not the one that belongs to the Stack
                 // (or the Thread that belonged to the Stack was collected already), we need to signal that the push
                 // happens later.
-                pushLater(item, currentThread);         //保存到WeakOrderQueue，等待回收
+                pushFromOtherThread(item, currentThread);
+            }
+        }
+
+        //批量回收，handles[from, to)都属于这个Stack；所属线程只扩容一次，其他线程还是逐个放到队列中
+        void pushAll(RecyclerByCopyed.Handle<?>[] handles, int from, int to) {
+            Thread currentThread = Thread.currentThread();
+            if (threadRef.get() != currentThread) {
+                for (int i = from; i < to; i++) {
+                    pushFromOtherThread((RecyclerByCopyed.DefaultHandle<?>) handles[i], currentThread);
+                }
+                return;
+            }
+
+            int size = this.size;
+            int expectedCapacity = min(size + to - from, effectiveCapacity);
+            if (expectedCapacity > elements.length) {
+                elements = Arrays.copyOf(elements, min(safeFindNextPositivePowerOfTwo(expectedCapacity), effectiveCapacity));
+            }
+            final RecyclerByCopyed.DefaultHandle<?>[] elements = this.elements;
+            for (int i = from; i < to; i++) {
+                RecyclerByCopyed.DefaultHandle<?> item = (RecyclerByCopyed.DefaultHandle<?>) handles[i];
+                if ((item.recycleId | item.lastRecycledId) != 0) {     //和pushNow()的校验一致
+                    this.size = size;
+                    throw new IllegalStateException("recycled already");
+                }
+                item.recycleId = item.lastRecycledId = OWN_THREAD_ID;
+                if (size >= effectiveCapacity) {
+                    if (METRICS_ENABLED) {
+                        metrics.droppedByMaxCapacity();
+                    }
+                    continue;
+                }
+                if (dropHandle(item) || !reserveMemory()) {
+                    continue;
+                }
+                elements[size ++] = item;
+            }
+            this.size = size;
+            if (trimIntervalNanos != 0) {
+                adaptOnRecycle(to - from);
+            }
+        }
+
+        private void pushFromOtherThread(RecyclerByCopyed.DefaultHandle<?> item, Thread currentThread) {
+            if (sharedPool != null && isOwnerDead()) {
+                pushShared(item);                   //所属线程已经结束，放到队列里也没有人来取了
+            } else if (mpscQueue != null) {
+                pushLaterMpsc(item);                //直接放到Stack自己的MPSC队列，不需要查找WeakHashMap
+            } else {
+                pushLater(item, currentThread);     //保存到WeakOrderQueue，等待回收
             }
         }
 
@@ -596,12 +1308,19 @@ public abstract class RecyclerByCopyed<T> {
             item.recycleId = item.lastRecycledId = OWN_THREAD_ID;         //都更新为OWN_THREAD_ID，表示被回收过了
 
             int size = this.size;
-            if (size >= maxCapacity || dropHandle(item)) {                //如果size >= maxCapacity就直接返回，不进行回收
-                // Hit the maximum capacity or should drop - drop the possibly youngest object.
-                return;                                                   //dropHandle(item)返回true，本次不做回收
+            if (size >= effectiveCapacity) {                              //如果size >= 有效容量就直接返回，不进行回收
+                // Hit the maximum capacity - drop the possibly youngest object.
+                if (METRICS_ENABLED) {
+                    metrics.droppedByMaxCapacity();
+                }
+                return;
+            }
+            if (dropHandle(item) || !reserveMemory()) {                   //dropHandle(item)返回true，本次不做回收
+                // Should drop.
+                return;
             }
             if (size == elements.length) {
-                elements = Arrays.copyOf(elements, min(size << 1, maxCapacity));    //扩容
+                elements = Arrays.copyOf(elements, min(size << 1, effectiveCapacity));    //扩容
             }
 
             elements[size] = item;     //这里需要注意：elements.length是数组的长度，包括空位；size是数组中有内容的长度，这里是在最末尾放item
@@ -624,27 +1343,120 @@ public abstract class RecyclerByCopyed<T> {
                 if (delayedRecycled.size() >= maxDelayedQueues) {
                     // Add a dummy queue so we know we should drop the object
                     delayedRecycled.put(this, RecyclerByCopyed.WeakOrderQueue.DUMMY);
+                    if (METRICS_ENABLED) {
+                        metrics.delayedQueueRejected();
+                    }
                     return;
                 }
                 // Check if we already reached the maximum number of delayed queues and if we can allocate at all.
                 //WeakOrderQueue.allocate方法，针对需要回收的这个stack，创建一个新的WeakOrderQueue
                 if ((queue = RecyclerByCopyed.WeakOrderQueue.allocate(this, thread)) == null) {
                     // drop object
+                    if (METRICS_ENABLED) {
+                        metrics.droppedBySharedCapacity();
+                    }
                     return;
                 }
                 delayedRecycled.put(this, queue);
             } else if (queue == RecyclerByCopyed.WeakOrderQueue.DUMMY) {
                 // drop object
+                if (METRICS_ENABLED) {
+                    metrics.delayedQueueRejected();
+                }
                 return;
             }
 
             queue.add(item);
         }
 
+        private void pushLaterMpsc(RecyclerByCopyed.DefaultHandle<?> item) {
+            //和WeakOrderQueue.add()一样只更新lastRecycledId，但是必须从0开始CAS：
+            //队列里不像Link那样会清空handle.stack，重复回收如果也放进队列，取出时两份都能通过校验，同一个对象会被借给两个调用方
+            if (!item.compareAndSetLastRecycledId(0, mpscId)) {
+                throw new IllegalStateException("recycled already");
+            }
+            // offer有release语义，Stack所属线程poll到之后一定能看到lastRecycledId
+            if (!mpscQueue.offer(item) && METRICS_ENABLED) {   //队列满了就丢弃
+                metrics.droppedBySharedCapacity();
+            }
+        }
+
+        boolean isOwnerDead() {
+            Thread thread = threadRef.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        private void pushShared(RecyclerByCopyed.DefaultHandle<?> item) {
+            if ((item.recycleId | item.lastRecycledId) != 0) {
+                throw new IllegalStateException("recycled already");
+            }
+            item.recycleId = item.lastRecycledId = SHARED_POOL_ID;
+            item.stack = null;                      //不再引用已经结束的线程的Stack，让它可以被GC
+            if (!sharedPool.offer(item)) {
+                if (METRICS_ENABLED) {
+                    metrics.droppedBySharedCapacity();
+                }
+            } else if (METRICS_ENABLED) {
+                metrics.reclaimed(1);
+            }
+        }
+
+        //所属线程结束时把Stack里的对象(包括其他线程还没转移回来的)都放到共享池，共享池满了剩下的交给GC；
+        //只能由所属线程在结束前调用，或者在所属线程结束之后由唯一的一个线程调用
+        void drainToSharedPool() {
+            // FastThreadLocal.removeAll()之后线程还活着，这个Stack已经不在threadLocal里了；
+            // 清掉threadRef，之后回收到这里的对象都按所属线程已经结束处理，直接放到共享池
+            threadRef.clear();
+            // 对象转移到共享池时由共享池重新预约，这个Stack的预约全部还给全局
+            if (reservation != null) {
+                reservation.close();
+            }
+            int reclaimed = 0;
+            for (;;) {
+                RecyclerByCopyed.DefaultHandle<T> handle = pop0();
+                if (handle == null) {
+                    break;
+                }
+                handle.recycleId = handle.lastRecycledId = SHARED_POOL_ID;
+                handle.stack = null;
+                if (!sharedPool.offer(handle)) {
+                    break;
+                }
+                reclaimed ++;
+            }
+            // 剩下的对象不再需要了，释放数组；之后不会再有对象push进来
+            size = 0;
+            elements = new RecyclerByCopyed.DefaultHandle[0];
+            if (METRICS_ENABLED && reclaimed > 0) {
+                metrics.reclaimed(reclaimed);
+            }
+        }
+
+        //对象放进Stack之前向全局内存预算申请空间，预算用完了就丢弃
+        boolean reserveMemory() {
+            if (reservation == null || reservation.tryAcquire()) {
+                return true;
+            }
+            if (METRICS_ENABLED) {
+                metrics.droppedByMemoryBudget();
+            }
+            return false;
+        }
+
+        //count个对象离开了Stack，归还对应的预算
+        private void releaseMemory(int count) {
+            if (reservation != null && count > 0) {
+                reservation.release(count);
+            }
+        }
+
         boolean dropHandle(RecyclerByCopyed.DefaultHandle<?> handle) {
             if (!handle.hasBeenRecycled) {           //判断是否已经回收
                 if ((++handleRecycleCount & ratioMask) != 0) {     //handleRecycleCount初始为-1，所以第一次肯定会进去
                     // Drop the object.
+                    if (METRICS_ENABLED) {
+                        metrics.droppedByRatio();
+                    }
                     return true;
                 }
                 handle.hasBeenRecycled = true;
@@ -0,0 +1,273 @@
+package com.bwz.study.echo;
+
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * RecyclerByCopyed的配置，不同类型的对象可以有不同的容量、回收比例等参数。
+ *
+ * 通过{@link #forType(String)}按类型名查找：先找{@link #register(String, RecyclerConfig)}注册的配置，
+ * 没有的话读取-Dio.netty.recycler.&lt;参数&gt;.&lt;类型名&gt;，例如
+ * -Dio.netty.recycler.maxCapacityPerThread.writeTask=256，
+ * 都没有就使用全局的-Dio.netty.recycler.&lt;参数&gt;默认值。
+ */
+public final class RecyclerConfig {
+
+    private static final ConcurrentMap<String, RecyclerConfig> REGISTRY = new ConcurrentHashMap<String, RecyclerConfig>();
+
+    private final int maxCapacityPerThread;
+    private final int maxSharedCapacityFactor;
+    private final int ratio;
+    private final int maxDelayedQueuesPerThread;
+    private final RecyclerByCopyed.CrossThreadMode crossThreadMode;
+    private final long trimIntervalMillis;
+    private final int scavengeBudget;
+    private final long estimatedObjectSize;
+    private final int sharedPoolCapacity;
+    private final RecyclerByCopyed.PoolMode poolMode;
+
+    private RecyclerConfig(Builder builder) {
+        maxCapacityPerThread = builder.maxCapacityPerThread;
+        maxSharedCapacityFactor = builder.maxSharedCapacityFactor;
+        ratio = builder.ratio;
+        maxDelayedQueuesPerThread = builder.maxDelayedQueuesPerThread;
+        crossThreadMode = builder.crossThreadMode;
+        trimIntervalMillis = builder.trimIntervalMillis;
+        scavengeBudget = builder.scavengeBudget;
+        estimatedObjectSize = builder.estimatedObjectSize;
+        sharedPoolCapacity = builder.sharedPoolCapacity;
+        poolMode = builder.poolMode;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * 为某个类型注册配置，需要在该类型的回收器创建之前调用，已经创建的回收器不受影响
+     *
+     * @return 之前注册的配置，没有则为{@code null}
+     */
+    public static RecyclerConfig register(String type, RecyclerConfig config) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        if (config == null) {
+            throw new NullPointerException("config");
+        }
+        return REGISTRY.put(type, config);
+    }
+
+    public static RecyclerConfig unregister(String type) {
+        return REGISTRY.remove(type);
+    }
+
+    public static RecyclerConfig forType(String type) {
+        if (type == null) {
+            throw new NullPointerException("type");
+        }
+        RecyclerConfig config = REGISTRY.get(type);
+        if (config != null) {
+            return config;
+        }
+
+        Builder builder = builder();
+        String suffix = "." + type;
+        return builder
+                .maxCapacityPerThread(SystemPropertyUtil.getInt(
+                        "io.netty.recycler.maxCapacityPerThread" + suffix, builder.maxCapacityPerThread))
+                .maxSharedCapacityFactor(SystemPropertyUtil.getInt(
+                        "io.netty.recycler.maxSharedCapacityFactor" + suffix, builder.maxSharedCapacityFactor))
+                .ratio(SystemPropertyUtil.getInt("io.netty.recycler.ratio" + suffix, builder.ratio))
+                .maxDelayedQueuesPerThread(SystemPropertyUtil.getInt(
+                        "io.netty.recycler.maxDelayedQueuesPerThread" + suffix, builder.maxDelayedQueuesPerThread))
+                .crossThreadMode(crossThreadMode(
+                        SystemPropertyUtil.get("io.netty.recycler.crossThreadMode" + suffix), builder.crossThreadMode))
+                .trimIntervalMillis(SystemPropertyUtil.getLong(
+                        "io.netty.recycler.trimIntervalMillis" + suffix, builder.trimIntervalMillis))
+                .scavengeBudget(SystemPropertyUtil.getInt("io.netty.recycler.scavengeBudget" + suffix, builder.scavengeBudget))
+                .estimatedObjectSize(SystemPropertyUtil.getLong(
+                        "io.netty.recycler.objectSize" + suffix, builder.estimatedObjectSize))
+                .sharedPoolCapacity(SystemPropertyUtil.getInt(
+                        "io.netty.recycler.sharedPoolCapacity" + suffix, builder.sharedPoolCapacity))
+                .poolMode(poolMode(SystemPropertyUtil.get("io.netty.recycler.poolMode" + suffix), builder.poolMode))
+                .build();
+    }
+
+    private static RecyclerByCopyed.CrossThreadMode crossThreadMode(String value,
+                                                                   RecyclerByCopyed.CrossThreadMode defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return RecyclerByCopyed.CrossThreadMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    private static RecyclerByCopyed.PoolMode poolMode(String value, RecyclerByCopyed.PoolMode defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return RecyclerByCopyed.PoolMode.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    public int maxCapacityPerThread() {
+        return maxCapacityPerThread;
+    }
+
+    public int maxSharedCapacityFactor() {
+        return maxSharedCapacityFactor;
+    }
+
+    public int ratio() {
+        return ratio;
+    }
+
+    public int maxDelayedQueuesPerThread() {
+        return maxDelayedQueuesPerThread;
+    }
+
+    public RecyclerByCopyed.CrossThreadMode crossThreadMode() {
+        return crossThreadMode;
+    }
+
+    public long trimIntervalMillis() {
+        return trimIntervalMillis;
+    }
+
+    public int scavengeBudget() {
+        return scavengeBudget;
+    }
+
+    public long estimatedObjectSize() {
+        return estimatedObjectSize;
+    }
+
+    public int sharedPoolCapacity() {
+        return sharedPoolCapacity;
+    }
+
+    public RecyclerByCopyed.PoolMode poolMode() {
+        return poolMode;
+    }
+
+    @Override
+    public String toString() {
+        return "RecyclerConfig(maxCapacityPerThread: " + maxCapacityPerThread
+                + ", maxSharedCapacityFactor: " + maxSharedCapacityFactor + ", ratio: " + ratio
+                + ", maxDelayedQueuesPerThread: " + maxDelayedQueuesPerThread + ", crossThreadMode: " + crossThreadMode
+                + ", trimIntervalMillis: " + trimIntervalMillis + ", scavengeBudget: " + scavengeBudget
+                + ", estimatedObjectSize: " + estimatedObjectSize + ", sharedPoolCapacity: " + sharedPoolCapacity
+                + ", poolMode: " + poolMode + ')';
+    }
+
+    public static final class Builder {
+        private int maxCapacityPerThread = RecyclerByCopyed.DEFAULT_MAX_CAPACITY_PER_THREAD;
+        private int maxSharedCapacityFactor = RecyclerByCopyed.MAX_SHARED_CAPACITY_FACTOR;
+        private int ratio = RecyclerByCopyed.RATIO;
+        private int maxDelayedQueuesPerThread = RecyclerByCopyed.MAX_DELAYED_QUEUES_PER_THREAD;
+        private RecyclerByCopyed.CrossThreadMode crossThreadMode = RecyclerByCopyed.DEFAULT_CROSS_THREAD_MODE;
+        private long trimIntervalMillis = RecyclerByCopyed.DEFAULT_TRIM_INTERVAL_MILLIS;
+        private int scavengeBudget = RecyclerByCopyed.DEFAULT_SCAVENGE_BUDGET;
+        private long estimatedObjectSize;
+        private int sharedPoolCapacity = RecyclerByCopyed.DEFAULT_SHARED_POOL_CAPACITY;
+        private RecyclerByCopyed.PoolMode poolMode = RecyclerByCopyed.DEFAULT_POOL_MODE;
+
+        private Builder() {
+        }
+
+        //小于等于0表示关闭回收
+        public Builder maxCapacityPerThread(int maxCapacityPerThread) {
+            this.maxCapacityPerThread = maxCapacityPerThread;
+            return this;
+        }
+
+        public Builder maxSharedCapacityFactor(int maxSharedCapacityFactor) {
+            this.maxSharedCapacityFactor = maxSharedCapacityFactor;
+            return this;
+        }
+
+        public Builder ratio(int ratio) {
+            this.ratio = ratio;
+            return this;
+        }
+
+        public Builder maxDelayedQueuesPerThread(int maxDelayedQueuesPerThread) {
+            this.maxDelayedQueuesPerThread = maxDelayedQueuesPerThread;
+            return this;
+        }
+
+        public Builder crossThreadMode(RecyclerByCopyed.CrossThreadMode crossThreadMode) {
+            if (crossThreadMode == null) {
+                throw new NullPointerException("crossThreadMode");
+            }
+            this.crossThreadMode = crossThreadMode;
+            return this;
+        }
+
+        //0表示关闭自适应容量
+        public Builder trimIntervalMillis(long trimIntervalMillis) {
+            if (trimIntervalMillis < 0) {
+                throw new IllegalArgumentException("trimIntervalMillis: " + trimIntervalMillis + " (expected: >= 0)");
+            }
+            this.trimIntervalMillis = trimIntervalMillis;
+            return this;
+        }
+
+        //0表示不限制
+        public Builder scavengeBudget(int scavengeBudget) {
+            if (scavengeBudget < 0) {
+                throw new IllegalArgumentException("scavengeBudget: " + scavengeBudget + " (expected: >= 0)");
+            }
+            this.scavengeBudget = scavengeBudget;
+            return this;
+        }
+
+        /**
+         * 每个被缓存的对象估计占用的字节数(包括它持有的数组、集合等)，用于全局的{@link RecyclerMemoryBudget}，
+         * 0表示不计入预算
+         */
+        public Builder estimatedObjectSize(long estimatedObjectSize) {
+            if (estimatedObjectSize < 0) {
+                throw new IllegalArgumentException("estimatedObjectSize: " + estimatedObjectSize + " (expected: >= 0)");
+            }
+            this.estimatedObjectSize = estimatedObjectSize;
+            return this;
+        }
+
+        /**
+         * 所有线程共享的溢出池容量：已经结束的线程的Stack里的对象、所属线程已经结束的对象回收时都放到这里，
+         * 任何线程get()时在调用newObject()之前先从这里取，0表示关闭
+         */
+        public Builder sharedPoolCapacity(int sharedPoolCapacity) {
+            if (sharedPoolCapacity < 0) {
+                throw new IllegalArgumentException("sharedPoolCapacity: " + sharedPoolCapacity + " (expected: >= 0)");
+            }
+            this.sharedPoolCapacity = sharedPoolCapacity;
+            return this;
+        }
+
+        /**
+         * STRIPED模式下所有线程共享一个分段池，容量为sharedPoolCapacity(没有配置时为maxCapacityPerThread)
+         */
+        public Builder poolMode(RecyclerByCopyed.PoolMode poolMode) {
+            if (poolMode == null) {
+                throw new NullPointerException("poolMode");
+            }
+            this.poolMode = poolMode;
+            return this;
+        }
+
+        public RecyclerConfig build() {
+            return new RecyclerConfig(this);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.bwz.study.echo;
+
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.SystemPropertyUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+
+/**
+ * RecyclerByCopyed的泄漏检测，和Netty的ResourceLeakDetector类似：按采样记录对象被借出的位置，
+ * 对象在没有调用recycle()的情况下被GC时打印借出的位置；被采样的对象重复回收时，异常里带上第一次回收的位置。
+ *
+ * 级别通过-Dio.netty.recycler.leakDetection.level设置，默认DISABLED：
+ * SIMPLE每samplingInterval(-Dio.netty.recycler.leakDetection.samplingInterval，默认128)次get()采样一次，
+ * PARANOID每次都采样，只适合测试时使用。
+ */
+public final class RecyclerLeakDetector {
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(RecyclerLeakDetector.class);
+
+    public enum Level {
+        DISABLED,
+        SIMPLE,
+        PARANOID
+    }
+
+    private static final int SAMPLING_INTERVAL;
+    //和ResourceLeakDetector.level一样不用volatile，只在启动时或者测试中修改
+    private static Level level;
+
+    static {
+        Level defaultLevel;
+        try {
+            defaultLevel = Level.valueOf(SystemPropertyUtil.get("io.netty.recycler.leakDetection.level",
+                    Level.DISABLED.name()).trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            defaultLevel = Level.DISABLED;
+        }
+        level = defaultLevel;
+        SAMPLING_INTERVAL = max(1, SystemPropertyUtil.getInt("io.netty.recycler.leakDetection.samplingInterval", 128));
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("-Dio.netty.recycler.leakDetection.level: {}", level);
+            logger.debug("-Dio.netty.recycler.leakDetection.samplingInterval: {}", SAMPLING_INTERVAL);
+        }
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    //只影响之后借出的对象
+    public static void setLevel(Level level) {
+        if (level == null) {
+            throw new NullPointerException("level");
+        }
+        RecyclerLeakDetector.level = level;
+    }
+
+    static boolean isEnabled() {
+        return level != Level.DISABLED;
+    }
+
+    private final String type;
+    private final RecyclerMetrics metrics;                     //可能为null
+    private final Set<Tracker> live = ConcurrentHashMap.newKeySet();   //持有Tracker本身，避免它比对象先被GC
+    private final ReferenceQueue<Object> refQueue = new ReferenceQueue<Object>();
+    private final Set<String> reported = ConcurrentHashMap.newKeySet(); //同一个借出位置只报告一次
+    private final AtomicLong leaks = new AtomicLong();
+
+    RecyclerLeakDetector(Class<?> recyclerClass, RecyclerMetrics metrics) {
+        type = recyclerClass.getName();
+        this.metrics = metrics;
+    }
+
+    /**
+     * 对象被借出时调用，没有被采样返回null
+     */
+    Tracker track(Object object) {
+        Level level = RecyclerLeakDetector.level;
+        if (level == Level.DISABLED
+                || level == Level.SIMPLE && PlatformDependent.threadLocalRandom().nextInt(SAMPLING_INTERVAL) != 0) {
+            return null;
+        }
+        reportLeaks();
+        Tracker tracker = new Tracker(object);
+        live.add(tracker);
+        return tracker;
+    }
+
+    //已经检测到的泄漏对象数量
+    long leaks() {
+        return leaks.get();
+    }
+
+    private void reportLeaks() {
+        for (;;) {
+            Tracker tracker = (Tracker) refQueue.poll();
+            if (tracker == null) {
+                break;
+            }
+            if (!live.remove(tracker)) {      //已经回收过了
+                continue;
+            }
+            leaks.incrementAndGet();
+            if (metrics != null) {
+                metrics.leaked();
+            }
+            String acquiredAt = stackTrace(tracker.acquiredAt);
+            if (reported.add(acquiredAt) && logger.isErrorEnabled()) {
+                logger.error("LEAK: object from {} was not recycled before it's garbage-collected, "
+                        + "the pool allocates a new one each time. Acquired at:{}", type, acquiredAt);
+            }
+        }
+    }
+
+    private static String stackTrace(Throwable t) {
+        StringBuilder buf = new StringBuilder(1024);
+        StackTraceElement[] elements = t.getStackTrace();
+        //跳过Tracker的构造器、track()和RecyclerByCopyed.get()，从调用get()的位置开始
+        int i = 0;
+        while (i < elements.length && (isInternal(elements[i].getClassName(), RecyclerLeakDetector.class)
+                || isInternal(elements[i].getClassName(), RecyclerByCopyed.class))) {
+            i ++;
+        }
+        for (; i < elements.length; i++) {
+            buf.append("\n\t").append(elements[i]);
+        }
+        return buf.toString();
+    }
+
+    private static boolean isInternal(String className, Class<?> clazz) {
+        String name = clazz.getName();
+        return className.startsWith(name)
+                && (className.length() == name.length() || className.charAt(name.length()) == '$');
+    }
+
+    /**
+     * 一个被采样的对象，只弱引用对象本身；对象被GC时进入refQueue，这时还在live中说明没有被回收
+     */
+    final class Tracker extends WeakReference<Object> {
+        private final Throwable acquiredAt = new Throwable("acquired");
+        private Throwable recycledAt;
+
+        Tracker(Object referent) {
+            super(referent, refQueue);
+        }
+
+        //对象被回收时调用，重复回收时抛出的异常以第一次回收的位置作为cause
+        void close() {
+            Throwable recycledAt = this.recycledAt;
+            if (recycledAt != null) {
+                throw new IllegalStateException("recycled already", recycledAt);
+            }
+            this.recycledAt = new Throwable("first recycled here");
+            live.remove(this);
+            clear();
+        }
+    }
+}
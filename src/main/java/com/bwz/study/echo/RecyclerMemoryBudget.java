@@ -0,0 +1,125 @@
+package com.bwz.study.echo;
+
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+
+/**
+ * 所有RecyclerByCopyed共享的内存预算，按{@link RecyclerConfig#estimatedObjectSize()}估算缓存对象占用的字节数，
+ * 超过-Dio.netty.recycler.maxPooledBytes后新回收的对象直接丢弃交给GC，0表示不限制。
+ *
+ * 每个Stack通过{@link Reservation}按块向全局预约，大部分时候只修改线程自己的计数，不会去竞争全局的AtomicLong。
+ */
+public final class RecyclerMemoryBudget {
+
+    private static final int CHUNK_OBJECTS = 16;     //每次向全局预约16个对象的空间
+
+    private static final AtomicLong RESERVED_BYTES = new AtomicLong();
+    private static volatile long maxPooledBytes = max(0, SystemPropertyUtil.getLong("io.netty.recycler.maxPooledBytes", 0));
+
+    private RecyclerMemoryBudget() {
+    }
+
+    public static long maxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    //只影响之后的预约，已经预约的不会被收回
+    public static void setMaxPooledBytes(long maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("maxPooledBytes: " + maxPooledBytes + " (expected: >= 0)");
+        }
+        RecyclerMemoryBudget.maxPooledBytes = maxPooledBytes;
+    }
+
+    //所有Stack已经预约的字节数，包括预约了但还没有用完的部分
+    public static long reservedBytes() {
+        return RESERVED_BYTES.get();
+    }
+
+    //共享池等多线程访问的地方不经过Reservation，每个对象直接向全局预约
+    static boolean tryReserve(long bytes) {
+        for (;;) {
+            long reserved = RESERVED_BYTES.get();
+            long max = maxPooledBytes;
+            if (max != 0 && reserved + bytes > max) {
+                return false;
+            }
+            if (RESERVED_BYTES.compareAndSet(reserved, reserved + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    static void release(long bytes) {
+        RESERVED_BYTES.addAndGet(-bytes);
+    }
+
+    /**
+     * 一个Stack的预约，只在Stack所属线程中使用；Stack被GC时在finalize()中把预约还给全局
+     */
+    static final class Reservation {
+        private final long objectSize;
+        private final long chunkSize;
+        private volatile long reserved;     //finalize()在其他线程执行，需要能看到最新值
+        private long used;
+        private boolean closed;             //close()之后不再计数
+
+        Reservation(long objectSize) {
+            this.objectSize = objectSize;
+            chunkSize = objectSize * CHUNK_OBJECTS;
+        }
+
+        //为一个对象预约空间，整个预算用完了返回false
+        boolean tryAcquire() {
+            if (closed) {
+                return true;
+            }
+            long used = this.used + objectSize;
+            if (used > reserved) {
+                if (tryReserve(chunkSize)) {
+                    reserved += chunkSize;
+                } else if (tryReserve(objectSize)) {
+                    reserved += objectSize;
+                } else {
+                    return false;
+                }
+            }
+            this.used = used;
+            return true;
+        }
+
+        //count个对象离开了Stack，多余的预约超过一块就还给全局
+        void release(int count) {
+            if (closed) {
+                return;
+            }
+            used -= count * objectSize;
+            long excess = reserved - used - chunkSize;
+            if (excess > 0) {
+                reserved -= excess;
+                RecyclerMemoryBudget.release(excess);
+            }
+        }
+
+        //Stack不再缓存对象时把预约全部还给全局，之后的预约和归还都不再计数
+        void close() {
+            closed = true;
+            long reserved = this.reserved;
+            this.reserved = 0;
+            used = 0;
+            RecyclerMemoryBudget.release(reserved);
+        }
+
+        @Override
+        protected void finalize() throws Throwable {
+            try {
+                super.finalize();
+            } finally {
+                RecyclerMemoryBudget.release(reserved);
+            }
+        }
+    }
+}
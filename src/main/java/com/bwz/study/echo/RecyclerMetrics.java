@@ -0,0 +1,343 @@
+package com.bwz.study.echo;
+
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.Math.max;
+
+/**
+ * RecyclerByCopyed的计数器，同一个回收器类的所有实例共享一个，多个线程的Stack共享。
+ * 使用LongAdder按线程分段累加，写的时候基本没有竞争，读的时候再汇总。
+ * 只有打开-Dio.netty.recycler.metrics=true才会创建并注册到JMX；按类注册，
+ * 不断创建和丢弃回收器实例也不会留下越来越多的MBean。
+ */
+final class RecyclerMetrics implements RecyclerMetricsMXBean {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(RecyclerMetrics.class);
+    private static final ConcurrentMap<String, RecyclerMetrics> BY_CLASS = new ConcurrentHashMap<String, RecyclerMetrics>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedPoolHits = new LongAdder();
+    private final LongAdder reclaimedHandles = new LongAdder();
+    private final LongAdder droppedByRatio = new LongAdder();
+    private final LongAdder droppedByMaxCapacity = new LongAdder();
+    private final LongAdder droppedBySharedCapacity = new LongAdder();
+    private final LongAdder droppedByMemoryBudget = new LongAdder();
+    private final LongAdder delayedQueueRejected = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder transferredHandles = new LongAdder();
+    private final LongAccumulator maxTransferBatch = new LongAccumulator(Math::max, 0);
+    private final LongAdder scavenges = new LongAdder();
+    private final LongAdder scavengeIterations = new LongAdder();
+    private final LongAdder scavengesDeferred = new LongAdder();
+    private final LongAdder[] scavengeNanos = newBuckets();    //按2的幂分桶的耗时直方图
+    private final LongAccumulator maxScavengeNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder trimmedHandles = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    private RecyclerMetrics() {
+    }
+
+    private static LongAdder[] newBuckets() {
+        LongAdder[] buckets = new LongAdder[Long.SIZE];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        return buckets;
+    }
+
+    /**
+     * 返回recyclerClass的计数器，第一次调用时创建并注册到平台MBeanServer，
+     * ObjectName为com.bwz.study.echo:type=RecyclerByCopyed,name=<类名>
+     */
+    static RecyclerMetrics register(Class<?> recyclerClass) {
+        String name = recyclerClass.getName();
+        RecyclerMetrics metrics = BY_CLASS.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        metrics = new RecyclerMetrics();
+        RecyclerMetrics old = BY_CLASS.putIfAbsent(name, metrics);
+        if (old != null) {
+            return old;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(name));
+        } catch (Exception e) {
+            //注册失败不影响回收器本身的使用
+            logger.warn("Failed to register recycler metrics for {}", name, e);
+        }
+        return metrics;
+    }
+
+    static ObjectName objectName(String recyclerClassName) throws MalformedObjectNameException {
+        return new ObjectName("com.bwz.study.echo:type=RecyclerByCopyed,name=" + ObjectName.quote(recyclerClassName));
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void hit(int count) {
+        hits.add(count);
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void miss(int count) {
+        misses.add(count);
+    }
+
+    void sharedPoolHit() {
+        sharedPoolHits.increment();
+    }
+
+    void reclaimed(int count) {
+        reclaimedHandles.add(count);
+    }
+
+    void droppedByRatio() {
+        droppedByRatio.increment();
+    }
+
+    void droppedByMaxCapacity() {
+        droppedByMaxCapacity.increment();
+    }
+
+    void droppedBySharedCapacity() {
+        droppedBySharedCapacity.increment();
+    }
+
+    void droppedByMemoryBudget() {
+        droppedByMemoryBudget.increment();
+    }
+
+    void delayedQueueRejected() {
+        delayedQueueRejected.increment();
+    }
+
+    void transfer(int batch) {
+        transfers.increment();
+        transferredHandles.add(batch);
+        maxTransferBatch.accumulate(batch);
+    }
+
+    void scavenge(int iterations) {
+        scavenges.increment();
+        scavengeIterations.add(iterations);
+    }
+
+    void scavengeDeferred() {
+        scavengesDeferred.increment();
+    }
+
+    void scavengeNanos(long nanos) {
+        scavengeNanos[Long.SIZE - Long.numberOfLeadingZeros(max(nanos, 0))].increment();
+        maxScavengeNanos.accumulate(nanos);
+    }
+
+    void trimmed(int count) {
+        trimmedHandles.add(count);
+    }
+
+    void leaked() {
+        leaks.increment();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getSharedPoolHits() {
+        return sharedPoolHits.sum();
+    }
+
+    @Override
+    public long getReclaimedHandles() {
+        return reclaimedHandles.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getDroppedByRatio() {
+        return droppedByRatio.sum();
+    }
+
+    @Override
+    public long getDroppedByMaxCapacity() {
+        return droppedByMaxCapacity.sum();
+    }
+
+    @Override
+    public long getDroppedBySharedCapacity() {
+        return droppedBySharedCapacity.sum();
+    }
+
+    @Override
+    public long getDroppedByMemoryBudget() {
+        return droppedByMemoryBudget.sum();
+    }
+
+    @Override
+    public long getDelayedQueueRejected() {
+        return delayedQueueRejected.sum();
+    }
+
+    @Override
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    @Override
+    public long getTransferredHandles() {
+        return transferredHandles.sum();
+    }
+
+    @Override
+    public double getAverageTransferBatch() {
+        long transfers = getTransfers();
+        return transfers == 0 ? 0 : (double) getTransferredHandles() / transfers;
+    }
+
+    @Override
+    public long getMaxTransferBatch() {
+        return maxTransferBatch.get();
+    }
+
+    @Override
+    public long getScavenges() {
+        return scavenges.sum();
+    }
+
+    @Override
+    public long getScavengeIterations() {
+        return scavengeIterations.sum();
+    }
+
+    @Override
+    public long getScavengesDeferred() {
+        return scavengesDeferred.sum();
+    }
+
+    @Override
+    public long[] getScavengeNanosHistogram() {
+        long[] histogram = new long[scavengeNanos.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = scavengeNanos[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getScavengeNanosP50() {
+        return scavengeNanosPercentile(0.5);
+    }
+
+    @Override
+    public long getScavengeNanosP99() {
+        return scavengeNanosPercentile(0.99);
+    }
+
+    @Override
+    public long getScavengeNanosP999() {
+        return scavengeNanosPercentile(0.999);
+    }
+
+    @Override
+    public long getScavengeNanosMax() {
+        return maxScavengeNanos.get();
+    }
+
+    //返回累计次数达到percentile的那个分桶的上限
+    private long scavengeNanosPercentile(double percentile) {
+        long[] histogram = getScavengeNanosHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= threshold) {
+                return i == 0 ? 0 : i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public long getTrimmedHandles() {
+        return trimmedHandles.sum();
+    }
+
+    @Override
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    @Override
+    public void reset() {
+        hits.reset();
+        misses.reset();
+        sharedPoolHits.reset();
+        reclaimedHandles.reset();
+        droppedByRatio.reset();
+        droppedByMaxCapacity.reset();
+        droppedBySharedCapacity.reset();
+        droppedByMemoryBudget.reset();
+        delayedQueueRejected.reset();
+        transfers.reset();
+        transferredHandles.reset();
+        maxTransferBatch.reset();
+        scavenges.reset();
+        scavengeIterations.reset();
+        scavengesDeferred.reset();
+        for (LongAdder bucket : scavengeNanos) {
+            bucket.reset();
+        }
+        maxScavengeNanos.reset();
+        trimmedHandles.reset();
+        leaks.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "RecyclerMetrics(hits: " + getHits() + ", misses: " + getMisses()
+                + ", sharedPoolHits: " + getSharedPoolHits() + ", reclaimedHandles: " + getReclaimedHandles()
+                + ", droppedByRatio: " + getDroppedByRatio() + ", droppedByMaxCapacity: " + getDroppedByMaxCapacity()
+                + ", droppedBySharedCapacity: " + getDroppedBySharedCapacity()
+                + ", droppedByMemoryBudget: " + getDroppedByMemoryBudget()
+                + ", delayedQueueRejected: " + getDelayedQueueRejected()
+                + ", transfers: " + getTransfers() + ", transferredHandles: " + getTransferredHandles()
+                + ", scavenges: " + getScavenges() + ", scavengeIterations: " + getScavengeIterations()
+                + ", scavengesDeferred: " + getScavengesDeferred() + ", scavengeNanosP999: " + getScavengeNanosP999()
+                + ", trimmedHandles: " + getTrimmedHandles() + ", leaks: " + getLeaks() + ')';
+    }
+}
@@ -0,0 +1,57 @@
+package com.bwz.study.echo;
+
+/**
+ * 通过JMX暴露的RecyclerByCopyed统计信息，所有计数都是该回收器在全部线程上的累加值
+ */
+public interface RecyclerMetricsMXBean {
+
+    long getHits();                        //get()从Stack中拿到了可复用的对象
+
+    long getMisses();                      //get()调用了newObject()
+
+    long getSharedPoolHits();              //get()从共享池中拿到了对象，也计入hits
+
+    long getReclaimedHandles();            //从已经结束的线程回收到共享池的对象数
+
+    double getHitRate();
+
+    long getDroppedByRatio();              //被dropHandle()的ratioMask丢弃
+
+    long getDroppedByMaxCapacity();        //Stack已经达到maxCapacity被丢弃
+
+    long getDroppedBySharedCapacity();     //availableSharedCapacity或MPSC队列已满被丢弃
+
+    long getDroppedByMemoryBudget();       //超过RecyclerMemoryBudget被丢弃
+
+    long getDelayedQueueRejected();        //超过maxDelayedQueues，pushLater()遇到DUMMY队列被丢弃
+
+    long getTransfers();                   //WeakOrderQueue.transfer()或MPSC批量取出成功的次数
+
+    long getTransferredHandles();          //跨线程转移回Stack的Handle总数
+
+    double getAverageTransferBatch();
+
+    long getMaxTransferBatch();
+
+    long getScavenges();                   //scavengeSome()调用次数
+
+    long getScavengeIterations();          //scavengeSome()总共访问的WeakOrderQueue数量
+
+    long getScavengesDeferred();           //因为scavengeBudget用完而留到下一次pop()继续的次数
+
+    long[] getScavengeNanosHistogram();    //scavenge耗时分布，下标i表示耗时在[2^(i-1), 2^i)纳秒内的次数
+
+    long getScavengeNanosP50();            //以下都是对应分桶的上限，单位纳秒
+
+    long getScavengeNanosP99();
+
+    long getScavengeNanosP999();
+
+    long getScavengeNanosMax();
+
+    long getTrimmedHandles();              //自适应容量因为闲置而释放的对象数
+
+    long getLeaks();                       //被RecyclerLeakDetector采样、没有recycle()就被GC的对象数
+
+    void reset();
+}
@@ -0,0 +1,144 @@
+package com.bwz.study.echo;
+
+import io.netty.util.NettyRuntime;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.netty.util.internal.MathUtil.safeFindNextPositivePowerOfTwo;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * 所有线程共享的分段对象池，按线程id散列到不同的段(stripe)上，每个段是一个用CAS加锁的小数组栈。
+ * 加锁只用tryLock，段被其他线程占用或者已满/已空时直接尝试下一个段，线程永远不会阻塞等待。
+ *
+ * @param <E> 元素类型
+ */
+final class StripedHandlePool<E> {
+
+    @SuppressWarnings("serial")
+    private static final class Stripe extends AtomicBoolean {    //继承AtomicBoolean作为锁，和WeakOrderQueue.Link的做法一样
+        private final Object[] elements;
+        private int size;
+
+        Stripe(int capacity) {
+            elements = new Object[capacity];
+        }
+
+        boolean tryLock() {
+            return !get() && compareAndSet(false, true);
+        }
+
+        void unlock() {
+            set(false);
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final long elementSize;     //每个元素计入RecyclerMemoryBudget的字节数，0表示不计入
+
+    StripedHandlePool(int capacity, long elementSize) {
+        this(capacity, NettyRuntime.availableProcessors() * 2, elementSize);
+    }
+
+    StripedHandlePool(int capacity, int stripeCount, long elementSize) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity: " + capacity + " (expected: > 0)");
+        }
+        //段的数量取2的幂，但不超过总容量，保证每个段至少能放一个
+        int stripes = min(safeFindNextPositivePowerOfTwo(max(1, stripeCount)), Integer.highestOneBit(capacity));
+        int stripeCapacity = (capacity + stripes - 1) / stripes;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(stripeCapacity);
+        }
+        mask = stripes - 1;
+        this.elementSize = elementSize;
+    }
+
+    //当前线程优先使用的段，线程id经过散列打散，同一个线程总是从同一个段开始
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 放入一个元素，所有段都满了(或者正被占用)、或者RecyclerMemoryBudget用完了返回false
+     */
+    boolean offer(E element) {
+        if (elementSize != 0 && !RecyclerMemoryBudget.tryReserve(elementSize)) {
+            return false;
+        }
+        if (offer0(element)) {
+            return true;
+        }
+        if (elementSize != 0) {
+            RecyclerMemoryBudget.release(elementSize);
+        }
+        return false;
+    }
+
+    private boolean offer0(E element) {
+        final Stripe[] stripes = this.stripes;
+        int start = probe();
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(start + i) & mask];
+            if (stripe.tryLock()) {
+                try {
+                    if (stripe.size < stripe.elements.length) {
+                        stripe.elements[stripe.size ++] = element;
+                        return true;
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取出一个元素，所有段都空了(或者正被占用)返回null
+     */
+    E poll() {
+        E element = poll0();
+        if (element != null && elementSize != 0) {
+            RecyclerMemoryBudget.release(elementSize);
+        }
+        return element;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E poll0() {
+        final Stripe[] stripes = this.stripes;
+        int start = probe();
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(start + i) & mask];
+            if (stripe.size != 0 && stripe.tryLock()) {      //size的读不加锁，只是用来快速跳过空的段
+                try {
+                    int size = stripe.size;
+                    if (size != 0) {
+                        E element = (E) stripe.elements[-- size];
+                        stripe.elements[size] = null;
+                        stripe.size = size;
+                        return element;
+                    }
+                } finally {
+                    stripe.unlock();
+                }
+            }
+        }
+        return null;
+    }
+
+    //所有段中元素数量的近似值
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,171 @@
+package com.bwz.study.launcher;
+
+import com.bwz.study.echo.EchoServer;
+import com.bwz.study.syslog.LogEventBroadcaster;
+import com.bwz.study.transport.Transport;
+import com.bwz.study.webSocket.ChatServer;
+import com.bwz.study.webSocket.SecureChatServer;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.NettyRuntime;
+import io.netty.util.concurrent.Future;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在一个JVM里启动echo、chat、secureChat、syslog中的任意几个服务，所有服务共享一个boss EventLoopGroup、
+ * 一个worker EventLoopGroup和一个PooledByteBufAllocator，而不是每个服务各自创建2 * CPU核数的线程和自己的arena。
+ *
+ * 启动哪些服务由-Dlauncher.services=echo,chat,secureChat,syslog决定，端口分别是
+ * -Dlauncher.echoPort(9999)、-Dlauncher.chatPort(8080)、-Dlauncher.secureChatPort(8443)、-Dlauncher.syslogPort(8080，UDP)。
+ * worker线程数-Dlauncher.workerThreads默认是CPU核数 * 2，allocator的heap/direct arena数和worker线程数相同，
+ * 每个EventLoop线程都有自己的arena。
+ *
+ * 任意一个服务的channel关闭或者JVM退出时，关闭所有服务再优雅关闭两个EventLoopGroup。
+ */
+public final class ServerLauncher {
+
+    private final Transport transport;
+    private final EventLoopGroup bossGroup;
+    private final EventLoopGroup workerGroup;
+    private final PooledByteBufAllocator allocator;
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+
+    public ServerLauncher(int workerThreads) {
+        transport = Transport.best();
+        bossGroup = transport.newEventLoopGroup(1);         //只负责accept，所有服务共用一个线程足够了
+        workerGroup = transport.newEventLoopGroup(workerThreads);
+        allocator = new PooledByteBufAllocator(PlatformDependent.directBufferPreferred(),
+                workerThreads, workerThreads,
+                PooledByteBufAllocator.defaultPageSize(), PooledByteBufAllocator.defaultMaxOrder(),
+                PooledByteBufAllocator.defaultTinyCacheSize(), PooledByteBufAllocator.defaultSmallCacheSize(),
+                PooledByteBufAllocator.defaultNormalCacheSize(), PooledByteBufAllocator.defaultUseCacheForAllThreads());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final ServerLauncher launcher = new ServerLauncher(
+                SystemPropertyUtil.getInt("launcher.workerThreads", NettyRuntime.availableProcessors() * 2));
+        //kill时也走同样的关闭流程，关闭channel后main线程从awaitAnyClosed()返回
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    launcher.shutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "launcher-shutdown"));
+        String services = SystemPropertyUtil.get("launcher.services", "echo,chat,secureChat,syslog");
+        try {
+            for (String service : services.split(",")) {
+                launcher.start(service.trim());
+            }
+            launcher.awaitAnyClosed();
+        } finally {
+            launcher.shutdown();
+        }
+    }
+
+    //启动一个服务，等待绑定完成
+    public void start(String service) throws Exception {
+        ChannelFuture future;
+        switch (service.toLowerCase(Locale.ROOT)) {
+            case "echo":
+                future = new EchoServer(SystemPropertyUtil.getInt("launcher.echoPort", 9999),
+                        SystemPropertyUtil.getBoolean("echo.persistent", false))
+                        .bind(transport, bossGroup, workerGroup, allocator);
+                break;
+            case "chat":
+                future = new ChatServer().bind(SystemPropertyUtil.getInt("launcher.chatPort", 8080),
+                        transport, bossGroup, workerGroup, allocator);
+                break;
+            case "securechat":
+                future = new SecureChatServer(null).bind(SystemPropertyUtil.getInt("launcher.secureChatPort", 8443),
+                        transport, bossGroup, workerGroup, allocator);
+                break;
+            case "syslog":
+                future = new LogEventBroadcaster().bind(SystemPropertyUtil.getInt("launcher.syslogPort", 8080),
+                        transport, workerGroup, allocator);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown service: " + service
+                        + " (expected: echo, chat, secureChat, syslog)");
+        }
+        Channel channel = future.sync().channel();
+        synchronized (channels) {
+            channels.add(channel);
+        }
+        System.out.println(service + " 启动了: " + channel.localAddress() + " (" + transport + ')');
+    }
+
+    //阻塞到任意一个服务的channel关闭，或者线程被中断
+    public void awaitAnyClosed() throws InterruptedException {
+        final CountDownLatch closed = new CountDownLatch(1);
+        List<Channel> channels;
+        synchronized (this.channels) {
+            channels = new ArrayList<Channel>(this.channels);
+        }
+        for (Channel channel : channels) {
+            channel.closeFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    closed.countDown();
+                }
+            });
+        }
+        closed.await();
+    }
+
+    /**
+     * 先关闭所有服务的channel，不再接收新连接，再一起优雅关闭两个EventLoopGroup。
+     * 可以多次调用(main的finally和shutdown hook都会调用)，之后的调用只等待第一次关闭完成
+     */
+    public void shutdown() throws InterruptedException {
+        if (!shutdown.compareAndSet(false, true)) {
+            bossGroup.terminationFuture().sync();
+            workerGroup.terminationFuture().sync();
+            return;
+        }
+        List<Channel> channels;
+        synchronized (this.channels) {
+            channels = new ArrayList<Channel>(this.channels);
+            this.channels.clear();
+        }
+        for (Channel channel : channels) {
+            channel.close().awaitUninterruptibly();
+        }
+        Future<?> boss = bossGroup.shutdownGracefully();
+        Future<?> worker = workerGroup.shutdownGracefully();
+        boss.sync();
+        worker.sync();
+    }
+
+    EventLoopGroup bossGroup() {
+        return bossGroup;
+    }
+
+    EventLoopGroup workerGroup() {
+        return workerGroup;
+    }
+
+    PooledByteBufAllocator allocator() {
+        return allocator;
+    }
+
+    List<Channel> channels() {
+        synchronized (channels) {
+            return new ArrayList<Channel>(channels);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一个数据报里打包多条LogEvent的二进制格式(大端)，由{@link LogEventBatchEncoder}编码、{@link LogEventDecoder}解码：
+ * <pre>
+ * byte   0x00              magic，旧的"logfile:msg"文本格式不会以NUL开头
+ * byte   'L'
+ * byte   version           目前是1，不认识的版本整个丢弃
+ * byte   flags             bit0：body是Deflate(nowrap)压缩过的
+ * int    bodyLength        只在压缩时有，解压后的长度
+ * body:
+ * short  dictionarySize    无符号，这个数据报里出现的不同logfile
+ * dictionarySize * (short length, byte[] logfile)
+ * short  eventCount        无符号
+ * eventCount * (short logfileIndex, short msgLength, byte[] msg)
+ * </pre>
+ * 字典只在一个数据报内有效，丢失任何一个数据报都不会影响其他数据报的解码。
+ * logfile和msg都是UTF-8，长度不能超过65535字节。
+ */
+final class LogEventBatch {
+    static final byte MAGIC0 = 0;
+    static final byte MAGIC1 = 'L';
+    static final byte VERSION = 1;
+    static final int FLAG_DEFLATE = 1;
+    static final int HEADER_LENGTH = 4;
+    static final int MAX_FIELD_LENGTH = 0xFFFF;
+    private static final int MAX_BODY_LENGTH = 1024 * 1024;       //解压后的上限，防止压缩炸弹
+
+    //零拷贝解码时logfile和msg之间的分隔符，和旧格式一样是':'
+    private static final ByteBuf SEPARATOR_BUF = Unpooled.unreleasableBuffer(
+            Unpooled.wrappedBuffer(new byte[] { LogEvent.SEPARATOR }));
+
+    private LogEventBatch() {
+    }
+
+    static boolean isBatch(ByteBuf data) {
+        int index = data.readerIndex();
+        return data.readableBytes() >= HEADER_LENGTH
+                && data.getByte(index) == MAGIC0 && data.getByte(index + 1) == MAGIC1;
+    }
+
+    /**
+     * 把events[from, to)编码成一个数据报，compress时如果压缩后没有变小就不压缩
+     */
+    static ByteBuf encode(ByteBufAllocator alloc, List<LogEvent> events, int from, int to, Deflater deflater) {
+        ByteBuf body = alloc.heapBuffer();
+        try {
+            Map<String, Integer> dictionary = new HashMap<String, Integer>();
+            int dictionarySizeIndex = body.writerIndex();
+            body.writeShort(0);
+            for (int i = from; i < to; i++) {
+                String logfile = events.get(i).getLogfile();
+                if (!dictionary.containsKey(logfile)) {
+                    dictionary.put(logfile, dictionary.size());
+                    writeField(body, logfile);
+                }
+            }
+            body.setShort(dictionarySizeIndex, dictionary.size());
+            body.writeShort(to - from);
+            for (int i = from; i < to; i++) {
+                LogEvent event = events.get(i);
+                body.writeShort(dictionary.get(event.getLogfile()));
+                writeField(body, event.getMsg());
+            }
+
+            if (deflater != null) {
+                ByteBuf frame = deflate(alloc, body, deflater);
+                if (frame.readableBytes() < HEADER_LENGTH + body.readableBytes()) {
+                    return frame;
+                }
+                frame.release();
+            }
+            ByteBuf frame = alloc.buffer(HEADER_LENGTH + body.readableBytes());
+            frame.writeByte(MAGIC0).writeByte(MAGIC1).writeByte(VERSION).writeByte(0);
+            frame.writeBytes(body);
+            return frame;
+        } finally {
+            body.release();
+        }
+    }
+
+    //短于65535字节的UTF-8长度前缀字段，超长的部分被截掉(可能截在一个字符的中间)
+    private static void writeField(ByteBuf body, String value) {
+        int lengthIndex = body.writerIndex();
+        body.writeShort(0);
+        int length = Math.min(body.writeCharSequence(value, CharsetUtil.UTF_8), MAX_FIELD_LENGTH);
+        body.writerIndex(lengthIndex + 2 + length);
+        body.setShort(lengthIndex, length);
+    }
+
+    private static ByteBuf deflate(ByteBufAllocator alloc, ByteBuf body, Deflater deflater) {
+        int length = body.readableBytes();
+        ByteBuf frame = alloc.heapBuffer(HEADER_LENGTH + 4 + length + 64);
+        frame.writeByte(MAGIC0).writeByte(MAGIC1).writeByte(VERSION).writeByte(FLAG_DEFLATE);
+        frame.writeInt(length);
+        deflater.reset();
+        deflater.setInput(body.array(), body.arrayOffset() + body.readerIndex(), length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            frame.ensureWritable(64);
+            int n = deflater.deflate(frame.array(), frame.arrayOffset() + frame.writerIndex(), frame.writableBytes());
+            frame.writerIndex(frame.writerIndex() + n);
+        }
+        return frame;
+    }
+
+    /**
+     * 解码一个批量格式的数据报，zeroCopy时输出的PooledLogEvent引用数据报(或者解压后的缓冲)的切片，不复制logfile和msg
+     *
+     * @throws DataFormatException 版本不认识、压缩数据损坏或者长度不对
+     */
+    static void decode(ByteBufAllocator alloc, ByteBuf data, InetSocketAddress sender, long received,
+                       boolean zeroCopy, Inflater inflater, List<Object> out) throws DataFormatException {
+        int index = data.readerIndex();
+        if (data.getByte(index + 2) != VERSION) {
+            throw new DataFormatException("unsupported version: " + data.getByte(index + 2));
+        }
+        if ((data.getByte(index + 3) & FLAG_DEFLATE) == 0) {
+            decodeBody(data, index + HEADER_LENGTH, data.writerIndex(), sender, received, zeroCopy, out);
+            return;
+        }
+        if (data.readableBytes() < HEADER_LENGTH + 4) {
+            throw new DataFormatException("truncated header");
+        }
+        int length = data.getInt(index + HEADER_LENGTH);
+        if (length < 0 || length > MAX_BODY_LENGTH) {
+            throw new DataFormatException("bodyLength: " + length);
+        }
+        ByteBuf body = alloc.heapBuffer(length, length);
+        try {
+            int start = index + HEADER_LENGTH + 4;
+            byte[] input = new byte[data.writerIndex() - start];
+            data.getBytes(start, input);
+            inflater.reset();
+            inflater.setInput(input);
+            int n = inflater.inflate(body.array(), body.arrayOffset(), length);
+            if (n != length || !inflater.finished()) {
+                throw new DataFormatException("bodyLength: " + length + ", inflated: " + n);
+            }
+            body.writerIndex(length);
+            decodeBody(body, 0, length, sender, received, zeroCopy, out);
+        } finally {
+            body.release();         //zeroCopy时PooledLogEvent各自retain了切片
+        }
+    }
+
+    private static void decodeBody(ByteBuf body, int start, int end, InetSocketAddress sender, long received,
+                                   boolean zeroCopy, List<Object> out) throws DataFormatException {
+        try {
+            int p = start;
+            int dictionarySize = body.getUnsignedShort(p);
+            p += 2;
+            int[] dictionary = new int[dictionarySize * 2];         //每个logfile的位置和长度
+            for (int i = 0; i < dictionarySize; i++) {
+                int length = body.getUnsignedShort(p);
+                dictionary[2 * i] = p + 2;
+                dictionary[2 * i + 1] = length;
+                p += 2 + length;
+            }
+            String[] logfiles = zeroCopy ? null : new String[dictionarySize];
+            int eventCount = body.getUnsignedShort(p);
+            p += 2;
+            for (int i = 0; i < eventCount; i++) {
+                int logfile = body.getUnsignedShort(p);
+                int msgLength = body.getUnsignedShort(p + 2);
+                p += 4;
+                if (logfile >= dictionarySize || p + msgLength > end) {
+                    throw new DataFormatException("malformed event " + i);
+                }
+                int logfileIndex = dictionary[2 * logfile];
+                int logfileLength = dictionary[2 * logfile + 1];
+                if (zeroCopy) {
+                    //"logfile" ':' "msg"三段拼成和旧格式一样的内容，只引用原来的字节
+                    ByteBuf content = Unpooled.wrappedBuffer(3, body.retainedSlice(logfileIndex, logfileLength),
+                            SEPARATOR_BUF.duplicate(), body.retainedSlice(p, msgLength));
+                    out.add(PooledLogEvent.newInstance(sender, received, content, logfileLength));
+                } else {
+                    if (logfiles[logfile] == null) {
+                        logfiles[logfile] = body.toString(logfileIndex, logfileLength, CharsetUtil.UTF_8);
+                    }
+                    out.add(new LogEvent(sender, received, logfiles[logfile],
+                            body.toString(p, msgLength, CharsetUtil.UTF_8)));
+                }
+                p += msgLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new DataFormatException("truncated body");
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.PromiseCombiner;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * 把写入的LogEvent攒起来，按{@link LogEventBatch}的格式打包成尽量少的数据报发给recipient，其他消息原样传下去。
+ *
+ * 不压缩时一个数据报攒到maxPayload为止；压缩时先攒到maxPayload的COMPRESSED_BUDGET倍再压缩，
+ * 压缩后还放不下就对半分开重新编码。flush()时把攒下的全部发出。
+ * 每个LogEvent的promise在它所在的这一批写完时完成：一批被拆成多个数据报时，所有数据报都写完才算完成，任何一个失败则全部失败。
+ * {@link LogEventBroadcaster#startTailing}在-Dsyslog.batch=true时用它打包跟踪到的新行
+ */
+public class LogEventBatchEncoder extends ChannelOutboundHandlerAdapter {
+    static final int COMPRESSED_BUDGET = 4;
+    //字典的索引和条数都是无符号short
+    private static final int MAX_EVENTS = LogEventBatch.MAX_FIELD_LENGTH;
+
+    private final InetSocketAddress recipient;
+    private final int maxPayload;
+    private final Deflater deflater;
+    private final List<LogEvent> pending = new ArrayList<LogEvent>();
+    private final List<ChannelPromise> promises = new ArrayList<ChannelPromise>();
+    private final Set<String> logfiles = new HashSet<String>();
+    private int pendingBytes;                   //攒下的事件编码后body的长度
+
+    public LogEventBatchEncoder(InetSocketAddress recipient, boolean compress) {
+        this(recipient, compress, LogEventBroadcaster.DEFAULT_MAX_PAYLOAD);
+    }
+
+    public LogEventBatchEncoder(InetSocketAddress recipient, boolean compress, int maxPayload) {
+        if (recipient == null) {
+            throw new NullPointerException("recipient");
+        }
+        if (maxPayload <= LogEventBatch.HEADER_LENGTH + 4) {
+            throw new IllegalArgumentException("maxPayload: " + maxPayload);
+        }
+        this.recipient = recipient;
+        this.maxPayload = maxPayload;
+        this.deflater = compress ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof LogEvent)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        LogEvent event = (LogEvent) msg;
+        int eventBytes = 4 + Math.min(ByteBufUtil.utf8Bytes(event.getMsg()), LogEventBatch.MAX_FIELD_LENGTH);
+        if (!logfiles.contains(event.getLogfile())) {
+            eventBytes += 2 + Math.min(ByteBufUtil.utf8Bytes(event.getLogfile()), LogEventBatch.MAX_FIELD_LENGTH);
+        }
+        int budget = deflater == null ? maxPayload - LogEventBatch.HEADER_LENGTH : maxPayload * COMPRESSED_BUDGET;
+        if (!pending.isEmpty() && (4 + pendingBytes + eventBytes > budget || pending.size() == MAX_EVENTS)) {
+            writeBatch(ctx);
+            eventBytes = 4 + 2 + Math.min(ByteBufUtil.utf8Bytes(event.getLogfile()), LogEventBatch.MAX_FIELD_LENGTH)
+                    + Math.min(ByteBufUtil.utf8Bytes(event.getMsg()), LogEventBatch.MAX_FIELD_LENGTH);
+        }
+        pending.add(event);
+        logfiles.add(event.getLogfile());
+        pendingBytes += eventBytes;
+        if (!promise.isVoid()) {
+            promises.add(promise);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        writeBatch(ctx);
+        ctx.flush();
+    }
+
+    private void writeBatch(ChannelHandlerContext ctx) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        PromiseCombiner combiner = new PromiseCombiner();
+        writeFrames(ctx, 0, pending.size(), combiner);
+        ChannelPromise promise = ctx.newPromise();
+        if (!promises.isEmpty()) {
+            promise.addListener(new PromiseNotifier<Void, ChannelFuture>(
+                    promises.toArray(new ChannelPromise[promises.size()])));
+        }
+        combiner.finish(promise);           //拆成多个数据报时全部写完才算完成
+        pending.clear();
+        promises.clear();
+        logfiles.clear();
+        pendingBytes = 0;
+    }
+
+    //压缩后放不下时对半拆开，只剩一条时不管大小都发出
+    private void writeFrames(ChannelHandlerContext ctx, int from, int to, PromiseCombiner combiner) {
+        ByteBuf frame = LogEventBatch.encode(ctx.alloc(), pending, from, to, deflater);
+        if (frame.readableBytes() > maxPayload && to - from > 1) {
+            frame.release();
+            int middle = (from + to) >>> 1;
+            writeFrames(ctx, from, middle, combiner);
+            writeFrames(ctx, middle, to, combiner);
+            return;
+        }
+        combiner.add(ctx.write(new DatagramPacket(frame, recipient)));
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ClosedChannelException cause = new ClosedChannelException();
+        for (ChannelPromise promise : promises) {
+            promise.tryFailure(cause);
+        }
+        pending.clear();
+        promises.clear();
+        logfiles.clear();
+        pendingBytes = 0;
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+}
@@ -1,30 +1,165 @@
 package com.bwz.study.syslog;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.SystemPropertyUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class LogEventBroadcaster {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventBroadcaster.class);
+
+    //以太网MTU 1500减去IP头20字节和UDP头8字节，打包后的数据报不会被分片
+    static final int DEFAULT_MAX_PAYLOAD = SystemPropertyUtil.getInt("syslog.maxPayload", 1500 - 20 - 8);
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = SystemPropertyUtil.getLong("syslog.pollIntervalMillis", 100);
+    //跟踪文件时用LogEventBatch的格式打包，接收端需要能解码批量格式
+    static final boolean DEFAULT_BATCH = SystemPropertyUtil.getBoolean("syslog.batch", false);
+    static final boolean DEFAULT_BATCH_COMPRESS = SystemPropertyUtil.getBoolean("syslog.batch.compress", true);
 
     public void run(int port) throws Exception {
-        EventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup();
+        bind(port, transport, group, ByteBufAllocator.DEFAULT).sync().channel().closeFuture().await();
+    }
+
+    //在给定的EventLoopGroup上绑定端口，不等待也不负责关闭，EventLoopGroup和allocator可以和其他服务共享
+    public ChannelFuture bind(int port, Transport transport, EventLoopGroup group, ByteBufAllocator allocator) {
         Bootstrap bootstrap = new Bootstrap();
 
         bootstrap.group(group)
-                .channel(NioDatagramChannel.class)
+                .channel(transport.datagramChannel())
                 .option(ChannelOption.SO_BROADCAST, true)
+                .option(ChannelOption.ALLOCATOR, allocator)
                 .handler(new LogEventEncoder());
-        bootstrap.bind(port).sync().channel().closeFuture().await();
+        return bootstrap.bind(port);
+    }
+
+    /**
+     * 跟踪files中的日志文件，新的行打包成数据报广播到255.255.255.255:port，阻塞到channel关闭。
+     * -Dsyslog.batch=true时由{@link LogEventBatchEncoder}打包，-Dsyslog.batch.compress决定是否压缩
+     */
+    public void tail(int port, List<Path> files) throws Exception {
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup(1);
+        try {
+            List<LogFileTailer> tailers = new ArrayList<LogFileTailer>(files.size());
+            for (Path file : files) {
+                tailers.add(new LogFileTailer(file, true));
+            }
+            InetSocketAddress target = new InetSocketAddress("255.255.255.255", port);
+            Bootstrap bootstrap = new Bootstrap();
+            bootstrap.group(group)
+                    .channel(transport.datagramChannel())
+                    .option(ChannelOption.SO_BROADCAST, true)
+                    .handler(DEFAULT_BATCH ? new LogEventBatchEncoder(target, DEFAULT_BATCH_COMPRESS, DEFAULT_MAX_PAYLOAD)
+                            : new ChannelInboundHandlerAdapter());
+            Channel channel = bootstrap.bind(0).sync().channel();
+            startTailing(channel, tailers, target, DEFAULT_BATCH);
+            channel.closeFuture().await();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    public static void startTailing(Channel channel, List<LogFileTailer> tailers, InetSocketAddress target) {
+        startTailing(channel, tailers, target, false);
+    }
+
+    /**
+     * 在channel的EventLoop上每DEFAULT_POLL_INTERVAL_MILLIS轮询一次所有文件，channel关闭时关闭所有文件。
+     * batch为true时把每一行作为LogEvent写入channel，由pipeline中的{@link LogEventBatchEncoder}打包发出，
+     * 这时target由encoder决定；否则由{@link LogFileTailer}打包成数据报直接发给target
+     */
+    public static void startTailing(final Channel channel, final List<LogFileTailer> tailers,
+                                    final InetSocketAddress target, final boolean batch) {
+        if (batch && channel.pipeline().get(LogEventBatchEncoder.class) == null) {
+            throw new IllegalArgumentException("batch requires a LogEventBatchEncoder in the pipeline");
+        }
+        final List<ByteBuf> datagrams = new ArrayList<ByteBuf>();
+        final List<LogEvent> events = new ArrayList<LogEvent>();
+        final ScheduledFuture<?> future = channel.eventLoop().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (LogFileTailer tailer : tailers) {
+                    try {
+                        if (batch) {
+                            tailer.poll(events);
+                        } else {
+                            tailer.poll(channel.alloc(), DEFAULT_MAX_PAYLOAD, datagrams);
+                        }
+                    } catch (Throwable t) {
+                        //包括映射的文件被截断时的InternalError，不能让异常逃出定时任务，否则之后再也不会跟踪
+                        logger.warn("Failed to read {}", tailer.path(), t);
+                    }
+                }
+                for (ByteBuf datagram : datagrams) {
+                    channel.write(new DatagramPacket(datagram, target), channel.voidPromise());
+                }
+                for (LogEvent event : events) {
+                    channel.write(event, channel.voidPromise());
+                }
+                if (!datagrams.isEmpty() || !events.isEmpty()) {
+                    datagrams.clear();
+                    events.clear();
+                    channel.flush();        //LogEventBatchEncoder在flush时把攒下的事件全部发出
+                }
+            }
+        }, 0, DEFAULT_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        //监听器在EventLoop中执行，不会和poll()同时进行
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) {
+                future.cancel(false);
+                for (LogFileTailer tailer : tailers) {
+                    closeQuietly(tailer);
+                }
+            }
+        });
+    }
+
+    private static void closeQuietly(LogFileTailer tailer) {
+        try {
+            tailer.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close {}", tailer.path(), e);
+        }
     }
 
     public static void main(String[] args) throws Exception{
         //String filePath = "/Users/biwenzhi/java/netty/src/main/resources/test.txt";
         LogEventBroadcaster broadcaster = new LogEventBroadcaster();
 
+        //-Dsyslog.files=/var/log/messages,/var/log/secure 时跟踪这些文件，广播给LogEventReceiver监听的-Dsyslog.port，
+        //否则按原来的方式回复查询
+        String files = SystemPropertyUtil.get("syslog.files");
         try {
-            broadcaster.run(8080);
+            if (files != null) {
+                List<Path> paths = new ArrayList<Path>();
+                for (String file : files.split(",")) {
+                    paths.add(Paths.get(file.trim()));
+                }
+                broadcaster.tail(LogEventReceiver.DEFAULT_PORT, paths);
+            } else {
+                broadcaster.run(8080);
+            }
         } finally {
 
         }
@@ -5,19 +5,111 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.handler.codec.MessageToMessageDecoder;
 import io.netty.util.CharsetUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 
+import java.net.InetSocketAddress;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class LogEventDecoder extends MessageToMessageDecoder<DatagramPacket> {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventDecoder.class);
+    static final byte LINE_SEPARATOR = (byte) '\n';
+    static final byte LINES_MARKER = 0x1E;         //ASCII RS，开头是它的数据报里是多条用换行分隔的记录
 
+    private final boolean zeroCopy;
+    private Inflater inflater;          //第一次收到压缩的批量数据报时才创建
+
+    public LogEventDecoder() {
+        this(false);
+    }
+
+    /**
+     * @param zeroCopy true时输出{@link PooledLogEvent}，只retain数据报内容，不创建String，用完需要release；
+     *                 false时输出{@link LogEvent}
+     */
+    public LogEventDecoder(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * 普通的数据报是一条logfile:msg记录，msg里可以有换行(比如异常堆栈)；
+     * 以{@link #LINES_MARKER}开头的数据报里是多条用换行分隔的记录(见{@link LogFileTailer})；
+     * 也可以是{@link LogEventBatch}的批量格式，按开头的magic区分
+     */
     @Override
     protected void decode(ChannelHandlerContext ctx, DatagramPacket msg, List<Object> out) throws Exception {
         ByteBuf data = msg.content();
-        int idx = data.indexOf(0, data.readableBytes(), LogEvent.SEPARATOR);
-        String fliename = data.slice(0,idx).toString(CharsetUtil.UTF_8);
-        String logMsg = data.slice(idx+1,data.readableBytes()).toString(CharsetUtil.UTF_8);
+        long received = System.currentTimeMillis();
+        if (LogEventBatch.isBatch(data)) {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                LogEventBatch.decode(ctx.alloc(), data, msg.sender(), received, zeroCopy, inflater, out);
+            } catch (DataFormatException e) {
+                logger.debug("Dropping malformed batch from {}", msg.sender(), e);      //已经解码的事件照常传下去
+            }
+            return;
+        }
+        int start = data.readerIndex();
+        int writerIndex = data.writerIndex();
+        if (start == writerIndex || data.getByte(start) != LINES_MARKER) {
+            decode(msg, received, start, writerIndex, out);
+            return;
+        }
+        start ++;
+        while (start < writerIndex) {
+            int end = data.indexOf(start, writerIndex, LINE_SEPARATOR);
+            if (end < 0) {
+                end = writerIndex;
+            }
+            decode(msg, received, start, end, out);
+            start = end + 1;
+        }
+    }
 
-        LogEvent event = new LogEvent(msg.sender(), System.currentTimeMillis(), fliename,logMsg);
+    private void decode(DatagramPacket msg, long received, int start, int end, List<Object> out) {
+        ByteBuf data = msg.content();
+        if (zeroCopy && start == data.readerIndex() && end == data.writerIndex()) {
+            //整个数据报只有这一条记录时直接retain，不需要再创建slice
+            int idx = data.indexOf(start, end, LogEvent.SEPARATOR) - start;
+            if (idx >= 0) {
+                out.add(PooledLogEvent.newInstance(msg.sender(), received, data.retain(), idx));
+            }
+            return;
+        }
+        decodeRecord(data, msg.sender(), received, start, end, zeroCopy, out);
+    }
+
+    /**
+     * 把data中[start, end)的一条logfile:msg记录解码成LogEvent，zeroCopy时是引用data切片的PooledLogEvent。
+     * 数据报和TCP流({@link LogEventTcpDecoder})共用，没有分隔符的记录被丢弃
+     */
+    static void decodeRecord(ByteBuf data, InetSocketAddress sender, long received, int start, int end,
+                             boolean zeroCopy, List<Object> out) {
+        int idx = data.indexOf(start, end, LogEvent.SEPARATOR) - start;
+        if (idx < 0) {
+            return;         //没有分隔符，不是LogEvent，丢弃
+        }
+        if (zeroCopy) {
+            out.add(PooledLogEvent.newInstance(sender, received, data.retainedSlice(start, end - start), idx));
+            return;
+        }
+        String fliename = data.toString(start, idx, CharsetUtil.UTF_8);
+        String logMsg = data.toString(start + idx + 1, end - start - idx - 1, CharsetUtil.UTF_8);
+
+        LogEvent event = new LogEvent(sender, received, fliename,logMsg);
         out.add(event);
     }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        super.handlerRemoved(ctx);
+    }
 }
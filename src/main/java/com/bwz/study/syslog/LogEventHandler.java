@@ -5,7 +5,30 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.socket.DatagramPacket;
 import io.netty.util.CharsetUtil;
 
+/**
+ * 收到的数据报交给{@link LogEventRingBuffer}，由消费线程解码和打印，EventLoop不会被慢的消费者阻塞。
+ * 缓冲满时按缓冲的OverflowPolicy丢弃
+ */
 public class LogEventHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+    private final LogEventRingBuffer ringBuffer;
+
+    //打印到System.out，由创建方在channel关闭后close()，等缓冲中剩下的数据报打印完
+    public static LogEventRingBuffer newPrintingRingBuffer() {
+        return LogEventRingBuffer.builder(new LogEventRingBuffer.EventConsumer() {
+            @Override
+            public void consume(Object event) {
+                System.out.println(((DatagramPacket) event).content().toString(CharsetUtil.UTF_8));
+            }
+        }).build();
+    }
+
+    public LogEventHandler(LogEventRingBuffer ringBuffer) {
+        super(false);           //数据报的所有权交给ringBuffer
+        if (ringBuffer == null) {
+            throw new NullPointerException("ringBuffer");
+        }
+        this.ringBuffer = ringBuffer;
+    }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -15,8 +38,6 @@ public class LogEventHandler extends SimpleChannelInboundHandler<DatagramPacket>
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
-        String result = msg.content().toString(CharsetUtil.UTF_8);
-        System.out.println(result);
-        ctx.close();
+        ringBuffer.offer(msg);
     }
-}
\ No newline at end of file
+}
@@ -1,41 +1,97 @@
 package com.bwz.study.syslog;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.CharsetUtil;
+import io.netty.util.internal.SystemPropertyUtil;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class LogEventMonitor {
 
     public void run(int port) throws Exception{
-        EventLoopGroup group = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup();
+        LogEventRingBuffer ringBuffer = LogEventHandler.newPrintingRingBuffer();
         try {
             Bootstrap bootstrap = new Bootstrap();
             bootstrap.group(group)
-                    .channel(NioDatagramChannel.class)
+                    .channel(transport.datagramChannel())
                     .option(ChannelOption.SO_BROADCAST,true)
-                    .handler(new LogEventHandler());
+                    .handler(new LogEventHandler(ringBuffer));
             Channel channel = bootstrap.bind(0).sync().channel();
             channel.writeAndFlush(new DatagramPacket(
                     Unpooled.copiedBuffer("123", CharsetUtil.UTF_8),
                     new InetSocketAddress("255.255.255.255", port))).sync();
+            //广播可能有多个回复，收集15秒
             if(!channel.closeFuture().await(15000)){
-                System.out.println("查询超时");
+                channel.close().sync();
             }
-        } catch (Exception e) {
-            group.shutdownGracefully();
+        } finally {
+            //EventLoop全部退出后不会再有offer，ringBuffer.close()才能把剩下的数据报处理完
+            group.shutdownGracefully().syncUninterruptibly();
+            ringBuffer.close();
         }
     }
 
+    /**
+     * 把查询同时发给所有targets，边收边打印结果，quorum个目标回复完或者超时后返回。
+     * client可以在多次查询之间复用
+     */
+    public LogEventQueryClient.Result query(LogEventQueryClient client, LogEventQuery query,
+                                            List<InetSocketAddress> targets, int quorum) throws Exception {
+        LogEventQueryClient.Result result = client.query(query, targets, quorum, 15, TimeUnit.SECONDS,
+                new LogEventQueryClient.Listener() {
+                    @Override
+                    public void onResult(InetSocketAddress source, String line) {
+                        System.out.println(source + "\t" + line);
+                    }
+                }).sync().getNow();
+        if (result.isTimedOut()) {
+            System.out.println("查询超时");
+        }
+        System.out.println("共" + result.lines() + "条，来自" + result.responders().size() + "个目标");
+        return result;
+    }
+
     public static void main(String[] args) throws Exception{
 
         int port = 8080;
 
+        //-Dsyslog.query.logfile=/var/log/messages -Dsyslog.query.from=... -Dsyslog.query.to=... 时查询历史，
+        //from和to是毫秒时间戳，默认是最近一小时。-Dsyslog.query.targets=host1:8080,host2:8080 时只发给这些目标，
+        //默认等所有目标回复；否则广播，默认收到一个回复就结束，可以用-Dsyslog.query.quorum修改
+        String logfile = SystemPropertyUtil.get("syslog.query.logfile");
+        if (logfile != null || SystemPropertyUtil.contains("syslog.query.from")) {
+            long to = SystemPropertyUtil.getLong("syslog.query.to", System.currentTimeMillis());
+            long from = SystemPropertyUtil.getLong("syslog.query.from", to - TimeUnit.HOURS.toMillis(1));
+            List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+            String targetList = SystemPropertyUtil.get("syslog.query.targets");
+            if (targetList != null) {
+                for (String target : targetList.split(",")) {
+                    int colon = target.lastIndexOf(':');
+                    targets.add(new InetSocketAddress(target.substring(0, colon).trim(),
+                            Integer.parseInt(target.substring(colon + 1).trim())));
+                }
+            } else {
+                targets.add(new InetSocketAddress("255.255.255.255", port));
+            }
+            int quorum = SystemPropertyUtil.getInt("syslog.query.quorum", targetList != null ? targets.size() : 1);
+            LogEventQueryClient client = new LogEventQueryClient();
+            try {
+                new LogEventMonitor().query(client, new LogEventQuery(from, to, logfile), targets, quorum);
+            } finally {
+                client.close();
+            }
+            return;
+        }
+
         new LogEventMonitor().run(port);
     }
 }
@@ -0,0 +1,85 @@
+package com.bwz.study.syslog;
+
+/**
+ * LogEventMonitor发给存储端的历史查询，文本格式"query id from to [logfile]"。id由{@link LogEventQueryClient}分配，
+ * 用来把回复对应到查询上；from和to是received的毫秒时间戳(包含)；logfile放在最后，可以包含空格，没有时表示所有logfile。
+ *
+ * 存储端用若干个数据报返回结果，每个数据报的第一行是id，后面是若干行"received\tlogfile\tmsg"，
+ * 最后一个数据报是"id\nend count"
+ */
+public final class LogEventQuery {
+    static final String PREFIX = "query ";
+    static final String END = "end ";
+
+    private final long from;
+    private final long to;
+    private final String logfile;
+
+    public LogEventQuery(long from, long to, String logfile) {
+        if (from > to) {
+            throw new IllegalArgumentException("from: " + from + " (expected: <= to: " + to + ')');
+        }
+        this.from = from;
+        this.to = to;
+        this.logfile = logfile;
+    }
+
+    //不是查询或者格式不对时返回null
+    static LogEventQuery parse(String request) {
+        String[] fields = split(request);
+        if (fields == null) {
+            return null;
+        }
+        try {
+            long from = Long.parseLong(fields[1]);
+            long to = Long.parseLong(fields[2]);
+            String logfile = fields.length == 4 && !fields[3].isEmpty() ? fields[3] : null;
+            return from <= to ? new LogEventQuery(from, to, logfile) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //请求中的id，不是查询或者格式不对时返回-1
+    static long requestId(String request) {
+        String[] fields = split(request);
+        if (fields == null) {
+            return -1;
+        }
+        try {
+            long id = Long.parseLong(fields[0]);
+            return id >= 0 ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String[] split(String request) {
+        if (!request.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] fields = request.substring(PREFIX.length()).trim().split(" ", 4);
+        return fields.length < 3 ? null : fields;
+    }
+
+    String toRequest(long id) {
+        return PREFIX + id + ' ' + from + ' ' + to + (logfile == null ? "" : " " + logfile);
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public String getLogfile() {
+        return logfile;
+    }
+
+    @Override
+    public String toString() {
+        return "LogEventQuery(from: " + from + ", to: " + to + ", logfile: " + logfile + ')';
+    }
+}
@@ -0,0 +1,235 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同时向多个{@link LogEventQueryHandler}(或者一个广播地址)发出{@link LogEventQuery}，按请求id把回复对应到查询上，
+ * 每收到一个数据报就把其中的结果行交给{@link Listener}，有quorum个目标回复了结束标记、或者到了deadline时结束。
+ *
+ * 整个client只绑定一个DatagramChannel，可以同时进行多个查询；所有查询的状态只在这个channel的EventLoop中访问。
+ * EventLoopGroup可以和其他服务共享，由调用方关闭，也可以让client自己创建一个单线程的
+ */
+public class LogEventQueryClient implements Closeable {
+
+    public interface Listener {
+        /**
+         * 在client的EventLoop中调用，不要阻塞
+         *
+         * @param line "received\tlogfile\tmsg"
+         */
+        void onResult(InetSocketAddress source, String line);
+    }
+
+    private final Channel channel;
+    private final EventLoopGroup ownedGroup;
+    private final Map<Long, PendingQuery> pending = new HashMap<Long, PendingQuery>();   //只在EventLoop中访问
+    private long nextId;                                                                  //只在EventLoop中访问
+
+    //自己创建一个单线程的EventLoopGroup，close()时关闭
+    public LogEventQueryClient() throws InterruptedException {
+        this(Transport.best(), null);
+    }
+
+    //共享调用方的EventLoopGroup，close()只关闭channel
+    public LogEventQueryClient(Transport transport, EventLoopGroup group) throws InterruptedException {
+        ownedGroup = group == null ? transport.newEventLoopGroup(1) : null;
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group == null ? ownedGroup : group)
+                .channel(transport.datagramChannel())
+                .option(ChannelOption.SO_BROADCAST, true)
+                .option(ChannelOption.SO_RCVBUF, 4 * 1024 * 1024)       //结果是连续的一串数据报
+                .handler(new ReplyHandler());
+        try {
+            channel = bootstrap.bind(0).sync().channel();
+        } catch (Throwable t) {
+            if (ownedGroup != null) {
+                ownedGroup.shutdownGracefully();
+            }
+            throw t;
+        }
+    }
+
+    //测试用，channel已经注册，由client在pipeline中加入处理回复的handler
+    LogEventQueryClient(Channel channel) {
+        this.channel = channel;
+        this.ownedGroup = null;
+        channel.pipeline().addLast(new ReplyHandler());
+    }
+
+    /**
+     * 把query发给所有targets，立即返回
+     *
+     * @param quorum  收到这么多个目标的结束标记时完成；targets里有广播地址时回复的数量事先不知道，需要调用方指定
+     * @param timeout 超过这个时间还没有达到quorum时也完成，{@link Result#isTimedOut()}为true
+     */
+    public Future<Result> query(final LogEventQuery query, final List<InetSocketAddress> targets, final int quorum,
+                                final long timeout, final TimeUnit unit, final Listener listener) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("targets is empty");
+        }
+        if (quorum <= 0) {
+            throw new IllegalArgumentException("quorum: " + quorum + " (expected: > 0)");
+        }
+        final Promise<Result> promise = channel.eventLoop().newPromise();
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!channel.isActive()) {
+                    promise.setFailure(new IllegalStateException("client closed"));
+                    return;
+                }
+                final long id = nextId++;
+                final PendingQuery q = new PendingQuery(id, quorum, listener, promise);
+                pending.put(id, q);
+                q.deadline = channel.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(q, true);
+                    }
+                }, timeout, unit);
+                String request = query.toRequest(id);
+                for (InetSocketAddress target : targets) {
+                    channel.write(new DatagramPacket(Unpooled.copiedBuffer(request, CharsetUtil.UTF_8), target),
+                            channel.voidPromise());
+                }
+                channel.flush();
+            }
+        });
+        return promise;
+    }
+
+    private void complete(PendingQuery q, boolean timedOut) {
+        if (pending.remove(q.id) == null) {
+            return;
+        }
+        if (q.deadline != null) {
+            q.deadline.cancel(false);
+        }
+        q.promise.trySuccess(new Result(q.responders, q.lines, timedOut));
+    }
+
+    //关闭channel，还没有完成的查询按超时完成
+    @Override
+    public void close() {
+        channel.close().syncUninterruptibly();
+        if (ownedGroup != null) {
+            ownedGroup.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    private static final class PendingQuery {
+        final long id;
+        final int quorum;
+        final Listener listener;
+        final Promise<Result> promise;
+        final Set<InetSocketAddress> responders = new HashSet<InetSocketAddress>();
+        long lines;
+        ScheduledFuture<?> deadline;
+
+        PendingQuery(long id, int quorum, Listener listener, Promise<Result> promise) {
+            this.id = id;
+            this.quorum = quorum;
+            this.listener = listener;
+            this.promise = promise;
+        }
+    }
+
+    public static final class Result {
+        private final Set<InetSocketAddress> responders;
+        private final long lines;
+        private final boolean timedOut;
+
+        Result(Set<InetSocketAddress> responders, long lines, boolean timedOut) {
+            this.responders = Collections.unmodifiableSet(responders);
+            this.lines = lines;
+            this.timedOut = timedOut;
+        }
+
+        //发出了结束标记的目标
+        public Set<InetSocketAddress> responders() {
+            return responders;
+        }
+
+        public long lines() {
+            return lines;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return "Result(responders: " + responders.size() + ", lines: " + lines + ", timedOut: " + timedOut + ')';
+        }
+    }
+
+    //回复的格式见LogEventQuery，第一行是请求id；不认识的id(已经完成的查询的迟到回复)直接丢弃
+    private final class ReplyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) {
+            ByteBuf content = msg.content();
+            int header = content.indexOf(content.readerIndex(), content.writerIndex(), (byte) '\n');
+            if (header < 0) {
+                return;
+            }
+            PendingQuery q;
+            try {
+                q = pending.get(Long.parseLong(content.toString(
+                        content.readerIndex(), header - content.readerIndex(), CharsetUtil.UTF_8)));
+            } catch (NumberFormatException e) {
+                return;
+            }
+            if (q == null) {
+                return;
+            }
+            String body = content.toString(header + 1, content.writerIndex() - header - 1, CharsetUtil.UTF_8);
+            if (body.startsWith(LogEventQuery.END)) {
+                q.responders.add(msg.sender());
+                if (q.responders.size() >= q.quorum) {
+                    complete(q, false);
+                }
+                return;
+            }
+            int start = 0;
+            int end;
+            while ((end = body.indexOf('\n', start)) >= 0) {
+                q.lines ++;
+                q.listener.onResult(msg.sender(), body.substring(start, end));
+                start = end + 1;
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            for (PendingQuery q : new ArrayList<PendingQuery>(pending.values())) {
+                complete(q, true);
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.SystemPropertyUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * 回答{@link LogEventQuery}。查询在executor中执行，不占用EventLoop；结果从{@link LogEventStore}的段中直接复制，
+ * 每攒满一个数据报(不超过{@link LogEventBroadcaster#DEFAULT_MAX_PAYLOAD})就发出去，不等整个查询结束。
+ * channel不可写时等待上一个数据报写完，避免结果在outbound buffer中无限堆积
+ */
+@ChannelHandler.Sharable
+public class LogEventQueryHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventQueryHandler.class);
+
+    static final int DEFAULT_MAX_RESULTS = SystemPropertyUtil.getInt("syslog.queryMaxResults", 100000);
+
+    private final LogEventStore store;
+    private final Executor executor;
+
+    public LogEventQueryHandler(LogEventStore store, Executor executor) {
+        if (store == null) {
+            throw new NullPointerException("store");
+        }
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.store = store;
+        this.executor = executor;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) {
+        String request = msg.content().toString(CharsetUtil.UTF_8);
+        LogEventQuery query = LogEventQuery.parse(request);
+        long id = LogEventQuery.requestId(request);
+        if (query == null || id < 0) {
+            logger.debug("Ignoring {} from {}", request, msg.sender());
+            return;
+        }
+        executor.execute(new QueryTask(ctx.channel(), msg.sender(), id, query));
+    }
+
+    private final class QueryTask implements Runnable, LogSegment.Visitor {
+        private final Channel channel;
+        private final InetSocketAddress recipient;
+        private final LogEventQuery query;
+        private final byte[] header;            //每个数据报开头的"id\n"
+        private final int maxPayload = LogEventBroadcaster.DEFAULT_MAX_PAYLOAD;
+        private final ByteBuf line = Unpooled.buffer(maxPayload);
+        private ByteBuf chunk;
+        private int count;
+
+        QueryTask(Channel channel, InetSocketAddress recipient, long id, LogEventQuery query) {
+            this.channel = channel;
+            this.recipient = recipient;
+            this.query = query;
+            this.header = (id + "\n").getBytes(CharsetUtil.US_ASCII);
+        }
+
+        @Override
+        public void run() {
+            try {
+                store.scan(query.getFrom(), query.getTo(), query.getLogfile(), this);
+                flush();
+                if (channel.isActive()) {
+                    channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(header,
+                            (LogEventQuery.END + count + '\n').getBytes(CharsetUtil.US_ASCII)), recipient));
+                }
+            } catch (Throwable t) {
+                logger.warn("Failed to execute {}", query, t);
+            } finally {
+                if (chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                }
+            }
+        }
+
+        @Override
+        public boolean visit(LogSegment segment, int position) {
+            line.clear();
+            segment.writeLine(position, line, maxPayload - header.length);
+            if (chunk != null && chunk.readableBytes() + line.readableBytes() > maxPayload) {
+                flush();
+            }
+            if (chunk == null) {
+                chunk = channel.alloc().buffer(maxPayload);
+                chunk.writeBytes(header);
+            }
+            chunk.writeBytes(line);
+            return ++count < DEFAULT_MAX_RESULTS && channel.isActive();
+        }
+
+        private void flush() {
+            if (chunk == null) {
+                return;
+            }
+            ChannelFuture future = channel.writeAndFlush(new DatagramPacket(chunk, recipient));
+            chunk = null;
+            if (!channel.isWritable()) {
+                future.awaitUninterruptibly();
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.UnixChannel;
+import io.netty.util.NettyRuntime;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.SystemPropertyUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 接收LogEvent数据报的服务端。epoll下用SO_REUSEPORT在同一个端口上绑定shards个DatagramChannel，
+ * 每个EventLoop一个，由内核按四元组散列把数据报分给不同的shard；NIO不支持SO_REUSEPORT，只绑定一个。
+ *
+ * 每个shard使用固定大小的接收缓冲(FixedRecvByteBufAllocator，不需要按上次读取的大小猜测)，
+ * 每次被唤醒最多连续读取maxMessagesPerRead个数据报，socket的SO_RCVBUF调大以吸收突发流量。
+ * 数据报经过{@link LogEventDecoder}的zeroCopy模式解码成{@link PooledLogEvent}后交给handler，handler必须是@Sharable的。
+ */
+public class LogEventReceiver {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventReceiver.class);
+
+    //接收LogEvent数据报的端口，LogEventBroadcaster跟踪文件时也发到这个端口
+    static final int DEFAULT_PORT = SystemPropertyUtil.getInt("syslog.port", 5140);
+    static final int DEFAULT_RECEIVE_BUFFER_SIZE =
+            SystemPropertyUtil.getInt("syslog.receiveBufferSize", 4 * 1024 * 1024);
+    static final int DEFAULT_MAX_DATAGRAM_SIZE = SystemPropertyUtil.getInt("syslog.maxDatagramSize", 2048);
+    static final int DEFAULT_MAX_MESSAGES_PER_READ = SystemPropertyUtil.getInt("syslog.maxMessagesPerRead", 64);
+
+    private final int port;
+    private final int shards;
+    private final ChannelHandler handler;
+    private final List<Shard> shardList = Collections.synchronizedList(new ArrayList<Shard>());
+    private final AtomicInteger nextShardId = new AtomicInteger();   //各个shard在不同的EventLoop上并发初始化
+    private volatile LogEventStats stats;
+
+    /**
+     * @param shards  epoll下绑定的channel数量，一般和EventLoopGroup的线程数相同
+     * @param handler 接收PooledLogEvent，必须是@Sharable的，负责release
+     */
+    public LogEventReceiver(int port, int shards, ChannelHandler handler) {
+        if (shards <= 0) {
+            throw new IllegalArgumentException("shards: " + shards + " (expected: > 0)");
+        }
+        this.port = port;
+        this.shards = shards;
+        this.handler = handler;
+    }
+
+    public void run() throws Exception {
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup(shards);
+        try {
+            List<ChannelFuture> futures = bind(transport, group, ByteBufAllocator.DEFAULT);
+            for (ChannelFuture future : futures) {
+                future.sync();
+            }
+            while (!futures.get(0).channel().closeFuture().await(10, TimeUnit.SECONDS)) {
+                System.out.println(statsString());
+            }
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    //在给定的EventLoopGroup上绑定所有shard，不等待也不负责关闭
+    public List<ChannelFuture> bind(Transport transport, EventLoopGroup group, ByteBufAllocator allocator) {
+        int n = shards;
+        if (transport != Transport.EPOLL && n > 1) {
+            logger.warn("SO_REUSEPORT needs the epoll transport, binding a single shard with {}", transport);
+            n = 1;
+        }
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                .channel(transport.datagramChannel())
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .option(ChannelOption.SO_RCVBUF, DEFAULT_RECEIVE_BUFFER_SIZE)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(DEFAULT_MAX_DATAGRAM_SIZE)
+                        .maxMessagesPerRead(DEFAULT_MAX_MESSAGES_PER_READ))
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        Shard shard = new Shard(nextShardId.getAndIncrement());
+                        shardList.add(shard);
+                        ch.pipeline()
+                                .addLast(shard)
+                                .addLast(new LogEventDecoder(true))
+                                .addLast(handler);
+                    }
+                });
+        if (n > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        List<ChannelFuture> futures = new ArrayList<ChannelFuture>(n);
+        for (int i = 0; i < n; i++) {
+            futures.add(bootstrap.bind(port));      //每次bind注册到group.next()，轮流落在不同的EventLoop上
+        }
+        return futures;
+    }
+
+    //statsString()中附带stats的快照
+    public LogEventReceiver stats(LogEventStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    public List<Shard> shards() {
+        synchronized (shardList) {
+            return new ArrayList<Shard>(shardList);
+        }
+    }
+
+    //每个shard的计数，以及内核因为接收缓冲区满而丢弃的数据报(Linux上读/proc/net/udp，按socket inode对应到shard，最后是合计)
+    public String statsString() {
+        StringBuilder buf = new StringBuilder("LogEventReceiver(port: ").append(port);
+        Map<Long, Long> kernelDrops = kernelDrops(port);
+        long totalDrops = 0;
+        for (Long drops : kernelDrops.values()) {
+            totalDrops += drops;
+        }
+        for (Shard shard : shards()) {
+            Long drops = kernelDrops.get(shard.inode());
+            buf.append(", ").append(shard.toString(drops == null ? -1 : drops));
+        }
+        if (!kernelDrops.isEmpty()) {
+            buf.append(", kernelDrops: ").append(totalDrops);
+        }
+        buf.append(')');
+        LogEventStats stats = this.stats;
+        if (stats != null) {
+            buf.append(System.lineSeparator()).append(stats.snapshot());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 从/proc/net/udp和/proc/net/udp6中读取本地端口为port的所有socket的drops列，按socket的inode返回，
+     * SO_REUSEPORT的每个shard都是单独的一行；不是Linux或者读取失败时返回空的Map
+     */
+    static Map<Long, Long> kernelDrops(int port) {
+        String hexPort = ':' + String.format("%04X", port);
+        Map<Long, Long> drops = new HashMap<Long, Long>();
+        for (String file : new String[] { "/proc/net/udp", "/proc/net/udp6" }) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                reader.readLine();              //表头
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    //sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length > 12 && fields[1].toUpperCase(Locale.ROOT).endsWith(hexPort)) {
+                        drops.put(Long.parseLong(fields[9]), Long.parseLong(fields[fields.length - 1]));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // 不是Linux，或者格式不同
+            }
+        }
+        return drops;
+    }
+
+    //epoll的channel通过/proc/self/fd/<fd>找到socket的inode("socket:[12345]")，NIO或者不是Linux时返回-1
+    static long socketInode(Channel channel) {
+        if (!(channel instanceof UnixChannel)) {
+            return -1;
+        }
+        try {
+            String link = Files.readSymbolicLink(
+                    Paths.get("/proc/self/fd/" + ((UnixChannel) channel).fd().intValue())).toString();
+            if (link.startsWith("socket:[") && link.endsWith("]")) {
+                return Long.parseLong(link.substring(8, link.length() - 1));
+            }
+        } catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+            // 不是Linux
+        }
+        return -1;
+    }
+
+    /**
+     * 一个shard的计数，放在pipeline最前面，每个channel一个实例。
+     * truncated是长度等于接收缓冲大小的数据报，很可能被截断了，会被丢弃而不是交给decoder
+     */
+    public static final class Shard extends ChannelInboundHandlerAdapter {
+        private final int id;
+        private final LongAdder packets = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder truncated = new LongAdder();
+        private volatile long inode = -1;     //socket的inode，用来在/proc/net/udp中找到这个shard的drops
+
+        Shard(int id) {
+            this.id = id;
+        }
+
+        //epoll的socket在channel创建时就有了，不需要等到绑定完成
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            inode = socketInode(ctx.channel());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof DatagramPacket) {
+                int size = ((DatagramPacket) msg).content().readableBytes();
+                packets.increment();
+                bytes.add(size);
+                if (size >= DEFAULT_MAX_DATAGRAM_SIZE) {
+                    truncated.increment();
+                    ReferenceCountUtil.release(msg);
+                    return;
+                }
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public long packets() {
+            return packets.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long truncated() {
+            return truncated.sum();
+        }
+
+        //NIO时为-1
+        public long inode() {
+            return inode;
+        }
+
+        @Override
+        public String toString() {
+            return toString(-1);
+        }
+
+        String toString(long kernelDrops) {
+            return "shard" + id + "(packets: " + packets() + ", bytes: " + bytes() + ", truncated: " + truncated()
+                    + (kernelDrops < 0 ? "" : ", kernelDrops: " + kernelDrops) + ')';
+        }
+    }
+
+    //只统计，不处理收到的LogEvent
+    @ChannelHandler.Sharable
+    static final class DiscardHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        int shards = SystemPropertyUtil.getInt("syslog.shards", NettyRuntime.availableProcessors());
+        //-Dsyslog.storeDir=/data/syslog 时把收到的事件持久化到该目录下的段文件
+        String storeDir = SystemPropertyUtil.get("syslog.storeDir");
+        //统计每个logfile和来源的速率，每10秒随其他计数一起打印
+        final LogEventStats stats = new LogEventStats(SystemPropertyUtil.getInt("syslog.topK", 10),
+                SystemPropertyUtil.getInt("syslog.maxTrackedKeys", 10000));
+        final LogEventStatsHandler statsHandler = new LogEventStatsHandler(stats);
+        if (storeDir == null) {
+            ChannelHandler handler = new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(statsHandler, new DiscardHandler());
+                }
+            };
+            try {
+                //不持久化时按TCP连接占用的内存做流控，默认最多用一半的直接内存
+                run(new LogEventReceiver(port, shards, handler).stats(stats), handler,
+                        LogEventTcpReceiver.backlogOf(ByteBufAllocator.DEFAULT, SystemPropertyUtil.getLong(
+                                "syslog.tcpMaxMemory", PlatformDependent.maxDirectMemory() / 2)));
+            } finally {
+                stats.close();
+            }
+            return;
+        }
+        final LogEventStore store = LogEventStore.builder(Paths.get(storeDir))
+                .fsyncPolicy(LogEventStore.FsyncPolicy.valueOf(
+                        SystemPropertyUtil.get("syslog.fsyncPolicy", "INTERVAL").toUpperCase(Locale.ROOT)))
+                .fsyncIntervalMillis(SystemPropertyUtil.getLong("syslog.fsyncIntervalMillis", 1000))
+                .retentionMillis(TimeUnit.HOURS.toMillis(SystemPropertyUtil.getLong("syslog.retentionHours", 7 * 24)))
+                .build();
+        //在syslog.queryPort上回答LogEventMonitor的历史查询
+        Transport transport = Transport.best();
+        EventLoopGroup queryGroup = transport.newEventLoopGroup(1);
+        ExecutorService queryExecutor = Executors.newFixedThreadPool(
+                SystemPropertyUtil.getInt("syslog.queryThreads", 2), new DefaultThreadFactory("log-event-query"));
+        try {
+            new Bootstrap().group(queryGroup)
+                    .channel(transport.datagramChannel())
+                    .handler(new LogEventQueryHandler(store, queryExecutor))
+                    .bind(SystemPropertyUtil.getInt("syslog.queryPort", 8080)).sync();
+            ChannelHandler handler = new ChannelInitializer<Channel>() {
+                @Override
+                protected void initChannel(Channel ch) {
+                    ch.pipeline().addLast(statsHandler, new LogEventStoreHandler(store), new DiscardHandler());
+                }
+            };
+            run(new LogEventReceiver(port, shards, handler).stats(stats), handler,
+                    LogEventTcpReceiver.backlogOf(store));
+        } finally {
+            queryGroup.shutdownGracefully().sync();
+            queryExecutor.shutdownNow();
+            store.close();
+            stats.close();
+        }
+    }
+
+    //-Dsyslog.tcpPort=5141 时同时用TCP接收，交给相同的handler
+    private static void run(LogEventReceiver receiver, ChannelHandler handler, LogEventTcpReceiver.Backlog backlog)
+            throws Exception {
+        int tcpPort = SystemPropertyUtil.getInt("syslog.tcpPort", -1);
+        if (tcpPort < 0) {
+            receiver.run();
+            return;
+        }
+        Transport transport = Transport.best();
+        EventLoopGroup tcpGroup = transport.newEventLoopGroup();
+        try {
+            new LogEventTcpReceiver(tcpPort, handler, backlog)
+                    .bind(transport, tcpGroup, tcpGroup, ByteBufAllocator.DEFAULT).sync();
+            receiver.run();
+        } finally {
+            tcpGroup.shutdownGracefully().sync();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.bwz.study.syslog;
+
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.MathUtil;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLoop和一组消费线程之间的有界环形缓冲，一个生产者(同一个EventLoop)，多个消费者。
+ *
+ * 槽位在创建时一次分配好，每个槽位有一个序号(Vyukov的有界队列)：序号等于tail时生产者可以写入，
+ * 等于head + 1时消费者可以取走，消费者之间用CAS竞争head。生产者从不等待：
+ * 缓冲满时按{@link OverflowPolicy}丢弃最新或者最旧的事件并计数，被丢弃的事件会被release。
+ * 消费者没有事件时按{@link WaitStrategy}等待，生产者不负责唤醒，所以{@link #offer(Object)}里没有系统调用。
+ */
+public final class LogEventRingBuffer implements Closeable {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventRingBuffer.class);
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public enum WaitStrategy {
+        //一直占用CPU，延迟最低
+        BUSY_SPIN,
+        //Thread.yield()，有其他线程要运行时让出CPU
+        YIELD,
+        //每次park 100微秒，空闲时几乎不占用CPU
+        PARK
+    }
+
+    public enum OverflowPolicy {
+        //丢弃正在放入的事件
+        DROP_NEWEST,
+        //丢弃缓冲中最旧的事件，给新的事件腾出位置
+        DROP_OLDEST
+    }
+
+    public interface EventConsumer {
+        /**
+         * 在消费线程中调用，返回后event被release
+         */
+        void consume(Object event) throws Exception;
+    }
+
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();       //只有生产者写
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final EventConsumer consumer;
+    private final Thread[] consumers;
+    private final LongAdder consumed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+
+    private LogEventRingBuffer(Builder builder) {
+        int capacity = MathUtil.safeFindNextPositivePowerOfTwo(builder.capacity);
+        mask = capacity - 1;
+        slots = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        waitStrategy = builder.waitStrategy;
+        overflowPolicy = builder.overflowPolicy;
+        consumer = builder.consumer;
+
+        ThreadFactory threadFactory = new DefaultThreadFactory("log-event-consumer", true);
+        consumers = new Thread[builder.consumers];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    consumeLoop();
+                }
+            });
+            consumers[i].start();
+        }
+    }
+
+    public static Builder builder(EventConsumer consumer) {
+        return new Builder(consumer);
+    }
+
+    /**
+     * 只能在同一个线程(一般是channel的EventLoop)中调用，不阻塞，event的所有权转移给缓冲
+     *
+     * @return event是否放进了缓冲；DROP_OLDEST时总是true，除非已经关闭
+     */
+    public boolean offer(Object event) {
+        if (closed) {
+            dropped.increment();
+            ReferenceCountUtil.release(event);
+            return false;
+        }
+        for (;;) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            if (sequences.get(index) == t) {
+                slots[index] = event;
+                sequences.lazySet(index, t + 1);       //发布slots[index]
+                tail.lazySet(t + 1);
+                return true;
+            }
+            //缓冲满了(或者消费者刚取走、还没有归还这个槽位)
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                dropped.increment();
+                ReferenceCountUtil.release(event);
+                return false;
+            }
+            Object oldest = poll();
+            if (oldest != null) {
+                dropped.increment();
+                ReferenceCountUtil.release(oldest);
+            }
+        }
+    }
+
+    //消费者和DROP_OLDEST时的生产者调用，没有可取的事件时返回null
+    private Object poll() {
+        for (;;) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long diff = sequences.get(index) - (h + 1);
+            if (diff < 0) {
+                return null;                    //空
+            }
+            if (diff == 0 && head.compareAndSet(h, h + 1)) {
+                Object event = slots[index];
+                slots[index] = null;
+                sequences.lazySet(index, h + mask + 1);     //把槽位还给生产者，下一圈再用
+                return event;
+            }
+            //其他消费者抢先取走了，重试
+        }
+    }
+
+    private void consumeLoop() {
+        for (;;) {
+            Object event = poll();
+            if (event == null) {
+                if (closed) {
+                    break;
+                }
+                idle();
+                continue;
+            }
+            try {
+                consumer.consume(event);
+            } catch (Throwable t) {
+                logger.warn("Failed to consume {}", event, t);
+            } finally {
+                ReferenceCountUtil.release(event);
+            }
+            consumed.increment();
+        }
+    }
+
+    private void idle() {
+        switch (waitStrategy) {
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(this, PARK_NANOS);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    //缓冲中还没有被取走的事件数，并发修改时是近似值
+    public int depth() {
+        long depth = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(depth, capacity()));
+    }
+
+    public long consumed() {
+        return consumed.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 不再接收新的事件，等消费线程处理完缓冲中剩下的事件后返回。
+     * 和close()并发的offer()可能在消费线程退出后才放进缓冲，这些事件被release并计为丢弃
+     */
+    @Override
+    public void close() {
+        closed = true;
+        boolean interrupted = false;
+        for (Thread thread : consumers) {
+            for (;;) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        Object event;
+        while ((event = poll()) != null) {
+            dropped.increment();
+            ReferenceCountUtil.release(event);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogEventRingBuffer(depth: " + depth() + ", consumed: " + consumed() + ", dropped: " + dropped() + ')';
+    }
+
+    public static final class Builder {
+        private final EventConsumer consumer;
+        private int capacity = 8192;
+        private int consumers = 1;
+        private WaitStrategy waitStrategy = WaitStrategy.PARK;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+        private Builder(EventConsumer consumer) {
+            if (consumer == null) {
+                throw new NullPointerException("consumer");
+            }
+            this.consumer = consumer;
+        }
+
+        //向上取整到2的幂
+        public Builder capacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity: " + capacity + " (expected: > 0)");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder consumers(int consumers) {
+            if (consumers <= 0) {
+                throw new IllegalArgumentException("consumers: " + consumers + " (expected: > 0)");
+            }
+            this.consumers = consumers;
+            return this;
+        }
+
+        public Builder waitStrategy(WaitStrategy waitStrategy) {
+            if (waitStrategy == null) {
+                throw new NullPointerException("waitStrategy");
+            }
+            this.waitStrategy = waitStrategy;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            if (overflowPolicy == null) {
+                throw new NullPointerException("overflowPolicy");
+            }
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        public LogEventRingBuffer build() {
+            return new LogEventRingBuffer(this);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.MathUtil;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按logfile和来源地址统计事件数和字节数，以及最近1/5/15分钟的速率和事件最多的top-K。
+ *
+ * {@link #record(Object)}可以在多个EventLoop中同时调用，不加锁：计数用LongAdder，
+ * count-min sketch用AtomicLongArray的getAndAdd，只有第一次遇到某个key、或者它进入top-K候选时才会写ConcurrentHashMap。
+ * 一个后台线程每TICK_MILLIS记录一次每个计数器的累计值，滑动窗口的速率就是现在的累计值减去窗口开始时记录的值；
+ * 同一个线程整理top-K候选。{@link #snapshot()}只读取这些值，不会暂停接收。
+ *
+ * 精确计数的key最多maxTrackedKeys个，之后出现的key只计入"其他"和count-min sketch，内存不会随key的数量无限增长；
+ * top-K候选最多topK * CANDIDATES_PER_TOP_K个，在两次tick之间也不会无限增长。
+ *
+ * logfile按UTF-8字节统计：PooledLogEvent直接用{@link PooledLogEvent#logfileBytes()}计算哈希和查找，
+ * 只有key第一次被精确计数或者成为候选时才复制一份字节，{@link #snapshot()}时才创建String。
+ */
+public final class LogEventStats implements Closeable {
+    static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final int[] WINDOW_MINUTES = { 1, 5, 15 };
+    private static final int HISTORY = (int) (TimeUnit.MINUTES.toMillis(15) / TICK_MILLIS) + 1;
+    static final int CANDIDATES_PER_TOP_K = 4;
+
+    private final Dimension<ByteBuf> logfiles;
+    private final Dimension<InetAddress> sources;
+    private final Counter total = new Counter();
+    private final AtomicLongArray tickTimes = new AtomicLongArray(HISTORY);
+    private volatile int ticks;                     //只有tick线程写
+    private final ScheduledExecutorService ticker;
+
+    public LogEventStats(int topK, int maxTrackedKeys) {
+        this(topK, maxTrackedKeys, true);
+    }
+
+    //start为false时不启动后台线程，由测试调用tick()
+    LogEventStats(int topK, int maxTrackedKeys, boolean start) {
+        if (topK <= 0) {
+            throw new IllegalArgumentException("topK: " + topK + " (expected: > 0)");
+        }
+        logfiles = new Dimension<ByteBuf>(topK, maxTrackedKeys) {
+            //查找用的key是事件内容的切片，放进map的必须是独立的一份
+            @Override
+            ByteBuf stableKey(ByteBuf key) {
+                return Unpooled.wrappedBuffer(ByteBufUtil.getBytes(key));
+            }
+        };
+        sources = new Dimension<InetAddress>(topK, maxTrackedKeys);
+        tick(System.currentTimeMillis());
+        if (start) {
+            ticker = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("log-event-stats", true));
+            ticker.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick(System.currentTimeMillis());
+                }
+            }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            ticker = null;
+        }
+    }
+
+    /**
+     * 统计一个LogEvent或者PooledLogEvent，其他消息忽略。字节数是msg的UTF-8长度
+     */
+    public void record(Object event) {
+        if (event instanceof PooledLogEvent) {
+            PooledLogEvent e = (PooledLogEvent) event;
+            record(e.logfileBytes(), e.getSource(), e.msgBytes().readableBytes());
+        } else if (event instanceof LogEvent) {
+            LogEvent e = (LogEvent) event;
+            record(e.getLogfile(), e.getSource(), ByteBufUtil.utf8Bytes(e.getMsg()));
+        }
+    }
+
+    void record(String logfile, InetSocketAddress source, int bytes) {
+        record(logfile == null ? null : Unpooled.wrappedBuffer(logfile.getBytes(CharsetUtil.UTF_8)), source, bytes);
+    }
+
+    //logfile只在调用期间使用，ByteBuf的hashCode()和equals()按可读的内容计算
+    private void record(ByteBuf logfile, InetSocketAddress source, int bytes) {
+        total.add(bytes);
+        logfiles.record(logfile, bytes);
+        if (source != null) {
+            sources.record(source.getAddress(), bytes);
+        }
+    }
+
+    //记录所有计数器的累计值，整理top-K候选，只在一个线程中调用
+    synchronized void tick(long now) {
+        int tick = ticks;
+        total.snapshot(tick);
+        logfiles.tick(tick);
+        sources.tick(tick);
+        tickTimes.set(tick % HISTORY, now);
+        ticks = tick + 1;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    Snapshot snapshot(long now) {
+        int tick = ticks;
+        return new Snapshot(rates(total, tick, now), logfiles.top(this, tick, now), sources.top(this, tick, now));
+    }
+
+    //每个窗口的事件/秒和字节/秒，窗口开始于最近一次不早于它的tick；刚启动时不满一个窗口就按实际时长计算
+    private double[] rates(Counter counter, int tick, long now) {
+        double[] rates = new double[WINDOW_MINUTES.length * 2];
+        long events = counter.events.sum();
+        long bytes = counter.bytes.sum();
+        for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+            int window = (int) (TimeUnit.MINUTES.toMillis(WINDOW_MINUTES[i]) / TICK_MILLIS);
+            int base = Math.max(tick - window, 0);
+            long millis = Math.max(now - tickTimes.get(base % HISTORY), 1);
+            rates[2 * i] = (events - counter.eventHistory.get(base % HISTORY)) * 1000.0 / millis;
+            rates[2 * i + 1] = (bytes - counter.byteHistory.get(base % HISTORY)) * 1000.0 / millis;
+        }
+        return rates;
+    }
+
+    //logfile的top-K候选数，测试用
+    int logfileCandidates() {
+        return logfiles.candidates.size();
+    }
+
+    @Override
+    public void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    //一个key的累计计数和每个tick时的累计值
+    private static final class Counter {
+        final LongAdder events = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLongArray eventHistory = new AtomicLongArray(HISTORY);
+        final AtomicLongArray byteHistory = new AtomicLongArray(HISTORY);
+
+        void add(int bytes) {
+            events.increment();
+            this.bytes.add(bytes);
+        }
+
+        void snapshot(int tick) {
+            eventHistory.set(tick % HISTORY, events.sum());
+            byteHistory.set(tick % HISTORY, bytes.sum());
+        }
+    }
+
+    /**
+     * 一个维度(logfile或者来源)的统计。新出现的key的计数器创建之前的tick历史都是0，正好是它当时的累计值
+     */
+    private static class Dimension<K> {
+        final int topK;
+        final int maxTrackedKeys;
+        final int maxCandidates;
+        final ConcurrentHashMap<K, Counter> counters = new ConcurrentHashMap<K, Counter>();
+        final Counter others = new Counter();                 //超过maxTrackedKeys之后出现的key
+        final CountMinSketch<K> sketch = new CountMinSketch<K>(4, 4096);
+        final ConcurrentHashMap<K, Boolean> candidates = new ConcurrentHashMap<K, Boolean>();
+        volatile long threshold;                             //第K名的估计值，超过它才会成为候选
+
+        Dimension(int topK, int maxTrackedKeys) {
+            this.topK = topK;
+            this.maxTrackedKeys = maxTrackedKeys;
+            maxCandidates = topK * CANDIDATES_PER_TOP_K;
+        }
+
+        //key要放进counters或者candidates时调用，key引用了调用方的可变数据时返回一份独立的副本
+        K stableKey(K key) {
+            return key;
+        }
+
+        void record(K key, int bytes) {
+            if (key == null) {
+                return;
+            }
+            Counter counter = counters.get(key);
+            if (counter == null) {
+                counter = counters.size() < maxTrackedKeys ? track(key) : others;
+            }
+            counter.add(bytes);
+            long estimate = sketch.add(key);
+            //门槛为0或者sketch饱和时几乎每个key都超过门槛，候选数到上限后等下一次tick淘汰
+            if (estimate > threshold && candidates.size() < maxCandidates && !candidates.containsKey(key)) {
+                candidates.putIfAbsent(stableKey(key), Boolean.TRUE);
+            }
+        }
+
+        private Counter track(K key) {
+            Counter counter = new Counter();
+            Counter old = counters.putIfAbsent(stableKey(key), counter);
+            return old == null ? counter : old;
+        }
+
+        //在tick线程中只保留估计值最大的topK个候选，更新进入候选的门槛
+        void tick(int tick) {
+            for (Counter counter : counters.values()) {
+                counter.snapshot(tick);
+            }
+            others.snapshot(tick);
+
+            PriorityQueue<Map.Entry<K, Long>> heap = heap(topK);
+            Set<K> top = new HashSet<K>();
+            for (Map.Entry<K, Long> entry : heap) {
+                top.add(entry.getKey());
+            }
+            candidates.keySet().retainAll(top);
+            threshold = heap.size() < topK ? 0 : heap.peek().getValue();
+        }
+
+        //估计值最小的在堆顶，大小不超过k
+        private PriorityQueue<Map.Entry<K, Long>> heap(int k) {
+            PriorityQueue<Map.Entry<K, Long>> heap = new PriorityQueue<Map.Entry<K, Long>>(k + 1, BY_ESTIMATE);
+            for (K key : candidates.keySet()) {
+                heap.offer(new AbstractMap.SimpleImmutableEntry<K, Long>(key, sketch.estimate(key)));
+                if (heap.size() > k) {
+                    heap.poll();
+                }
+            }
+            return heap;
+        }
+
+        List<KeyStats> top(LogEventStats stats, int tick, long now) {
+            List<Map.Entry<K, Long>> entries = new ArrayList<Map.Entry<K, Long>>(heap(topK));
+            Collections.sort(entries, Collections.reverseOrder(BY_ESTIMATE));
+            List<KeyStats> top = new ArrayList<KeyStats>(entries.size());
+            for (Map.Entry<K, Long> entry : entries) {
+                Counter counter = counters.get(entry.getKey());
+                String key;
+                if (entry.getKey() instanceof InetAddress) {
+                    key = ((InetAddress) entry.getKey()).getHostAddress();
+                } else if (entry.getKey() instanceof ByteBuf) {
+                    key = ((ByteBuf) entry.getKey()).toString(CharsetUtil.UTF_8);
+                } else {
+                    key = String.valueOf(entry.getKey());
+                }
+                top.add(counter == null ? new KeyStats(key, entry.getValue(), -1, null)
+                        : new KeyStats(key, entry.getValue(), counter.events.sum(), stats.rates(counter, tick, now)));
+            }
+            return top;
+        }
+    }
+
+    private static final Comparator<Map.Entry<?, Long>> BY_ESTIMATE = new Comparator<Map.Entry<?, Long>>() {
+        @Override
+        public int compare(Map.Entry<?, Long> o1, Map.Entry<?, Long> o2) {
+            return Long.compare(o1.getValue(), o2.getValue());
+        }
+    };
+
+    /**
+     * depth行、每行width个计数器，估计值是各行中最小的一个，只会偏大不会偏小。
+     * 每行的位置用两个哈希组合出来(h1 + i * h2)，不需要depth个独立的哈希函数
+     */
+    static final class CountMinSketch<K> {
+        private final int depth;
+        private final int mask;
+        private final AtomicLongArray counts;
+
+        CountMinSketch(int depth, int width) {
+            this.depth = depth;
+            this.mask = MathUtil.safeFindNextPositivePowerOfTwo(width) - 1;
+            this.counts = new AtomicLongArray(depth * (mask + 1));
+        }
+
+        //加1并返回加完之后的估计值
+        long add(K key) {
+            int h1 = spread(key.hashCode());
+            int h2 = spread(h1 ^ 0x9E3779B9) | 1;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                min = Math.min(min, counts.incrementAndGet(i * (mask + 1) + ((h1 + i * h2) & mask)));
+            }
+            return min;
+        }
+
+        long estimate(K key) {
+            int h1 = spread(key.hashCode());
+            int h2 = spread(h1 ^ 0x9E3779B9) | 1;
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                min = Math.min(min, counts.get(i * (mask + 1) + ((h1 + i * h2) & mask)));
+            }
+            return min;
+        }
+
+        //murmur3的finalizer
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    public static final class KeyStats {
+        private final String key;
+        private final long estimatedEvents;
+        private final long events;
+        private final double[] rates;          //1m/5m/15m的事件/秒和字节/秒，key没有被精确计数时为null
+
+        KeyStats(String key, long estimatedEvents, long events, double[] rates) {
+            this.key = key;
+            this.estimatedEvents = estimatedEvents;
+            this.events = events;
+            this.rates = rates;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        //启动以来的事件数，count-min sketch的估计值，只会偏大
+        public long estimatedEvents() {
+            return estimatedEvents;
+        }
+
+        //启动以来精确的事件数，key没有被精确计数时返回-1
+        public long events() {
+            return events;
+        }
+
+        //minutes只能是1、5或者15，key没有被精确计数时返回-1
+        public double eventRate(int minutes) {
+            return rates == null ? -1 : rates[2 * windowIndex(minutes)];
+        }
+
+        public double byteRate(int minutes) {
+            return rates == null ? -1 : rates[2 * windowIndex(minutes) + 1];
+        }
+
+        @Override
+        public String toString() {
+            return key + "(events: ~" + estimatedEvents + (rates == null ? "" : ", " + formatRates(rates)) + ')';
+        }
+    }
+
+    public static final class Snapshot {
+        private final double[] totalRates;
+        private final List<KeyStats> topLogfiles;
+        private final List<KeyStats> topSources;
+
+        Snapshot(double[] totalRates, List<KeyStats> topLogfiles, List<KeyStats> topSources) {
+            this.totalRates = totalRates;
+            this.topLogfiles = Collections.unmodifiableList(topLogfiles);
+            this.topSources = Collections.unmodifiableList(topSources);
+        }
+
+        public double eventRate(int minutes) {
+            return totalRates[2 * windowIndex(minutes)];
+        }
+
+        public double byteRate(int minutes) {
+            return totalRates[2 * windowIndex(minutes) + 1];
+        }
+
+        //按估计的事件数从多到少
+        public List<KeyStats> topLogfiles() {
+            return topLogfiles;
+        }
+
+        public List<KeyStats> topSources() {
+            return topSources;
+        }
+
+        @Override
+        public String toString() {
+            return "LogEventStats(" + formatRates(totalRates)
+                    + ", topLogfiles: " + topLogfiles + ", topSources: " + topSources + ')';
+        }
+    }
+
+    private static int windowIndex(int minutes) {
+        for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+            if (WINDOW_MINUTES[i] == minutes) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("minutes: " + minutes + " (expected: 1, 5 or 15)");
+    }
+
+    private static String formatRates(double[] rates) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < WINDOW_MINUTES.length; i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(WINDOW_MINUTES[i]).append("m: ")
+                    .append(String.format("%.1f/s %.0fB/s", rates[2 * i], rates[2 * i + 1]));
+        }
+        return buf.toString();
+    }
+}
@@ -0,0 +1,27 @@
+package com.bwz.study.syslog;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+/**
+ * 放在{@link LogEventDecoder}之后，把每个LogEvent/PooledLogEvent计入{@link LogEventStats}再原样传下去。
+ * 可以被多个EventLoop上的channel共享
+ */
+@ChannelHandler.Sharable
+public class LogEventStatsHandler extends ChannelInboundHandlerAdapter {
+    private final LogEventStats stats;
+
+    public LogEventStatsHandler(LogEventStats stats) {
+        if (stats == null) {
+            throw new NullPointerException("stats");
+        }
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        stats.record(msg);
+        ctx.fireChannelRead(msg);
+    }
+}
@@ -0,0 +1,432 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.internal.PlatformDependent;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 把收到的LogEvent追加到目录下固定大小的mmap段文件中，格式见{@link LogSegment}。
+ *
+ * EventLoop只把事件放进一个有界的MPSC队列({@link #offer(Object)}不阻塞，队列满时丢弃并计数)，
+ * 由一个写线程批量取出写入段文件，一批写完再按{@link FsyncPolicy}决定是否force()，也就是group commit。
+ * 当前段写满时滚动到新段，最后一条记录早于retention的段被删除。
+ */
+public final class LogEventStore implements Closeable {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventStore.class);
+    private static final int MAX_BATCH = 1024;                                     //一次group commit最多写入的事件数
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long RETENTION_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long SKEW_MILLIS = 1000;
+
+    public enum FsyncPolicy {
+        //只写到page cache，由操作系统决定什么时候落盘
+        NEVER,
+        //每一批写完都force()
+        EVERY_BATCH,
+        //距离上次force()超过fsyncIntervalMillis时才force()
+        INTERVAL
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final long retentionMillis;
+    private final Queue<Object> queue;
+    private final int queueCapacity;
+    private final Thread writer;
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger offering = new AtomicInteger();    //正在offer的线程数，写线程等它们放完再退出
+
+    //只在写线程中修改；segments的修改需要持有segments的锁，方便查询线程读取
+    private final List<LogSegment> segments = new ArrayList<LogSegment>();
+    private LogSegment active;
+    private long lastForceMillis;
+    private boolean unforced;                   //上次force()之后有没有写入
+    private volatile long forces;
+    private long nextRetentionCheckMillis;
+
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    private LogEventStore(Builder builder) throws IOException {
+        directory = builder.directory;
+        segmentSize = builder.segmentSize;
+        fsyncPolicy = builder.fsyncPolicy;
+        fsyncIntervalMillis = builder.fsyncIntervalMillis;
+        retentionMillis = builder.retentionMillis;
+        queueCapacity = builder.queueCapacity;
+        queue = PlatformDependent.newFixedMpscQueue(queueCapacity);
+
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (LogSegment.isSegment(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            @Override
+            public int compare(Path o1, Path o2) {
+                return Long.compare(LogSegment.baseTime(o1), LogSegment.baseTime(o2));
+            }
+        });
+        for (Path file : files) {
+            segments.add(LogSegment.open(file));
+        }
+        if (!segments.isEmpty()) {
+            active = segments.get(segments.size() - 1);
+        }
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "log-event-store-" + directory.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static Builder builder(Path directory) {
+        return new Builder(directory);
+    }
+
+    /**
+     * 在EventLoop中调用，不阻塞。event可以是LogEvent或者PooledLogEvent，所有权转移给store，
+     * 写入或者丢弃之后由store负责release
+     *
+     * @return 队列已满或者已经关闭时返回false，event已经被release
+     */
+    public boolean offer(Object event) {
+        //先登记再检查closed，close()之后写线程看到offering为0时，不会再有事件在检查closed之后才放进队列
+        offering.incrementAndGet();
+        try {
+            if (closed || !queue.offer(event)) {
+                dropped.increment();
+                ReferenceCountUtil.release(event);
+                return false;
+            }
+        } finally {
+            offering.decrementAndGet();
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    public long appended() {
+        return appended.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    //已经offer、还没有被写线程取走的事件数，TCP接收端用它判断是否需要暂停读取
+    public int queueSize() {
+        return queue.size();
+    }
+
+    public int queueCapacity() {
+        return queueCapacity;
+    }
+
+    //force()的次数，测试用
+    long forces() {
+        return forces;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    //当前所有段的快照，按时间排序，只在store没有关闭、也不会删除过期段时使用，比如测试中
+    List<LogSegment> segments() {
+        synchronized (segments) {
+            return new ArrayList<LogSegment>(segments);
+        }
+    }
+
+    /**
+     * 按时间顺序查找received在[from, to]之间、logfile等于给定值(null表示不限)的记录，在调用线程中执行。
+     * 扫描期间持有所有段的引用，过期删除不会影响正在进行的查询
+     */
+    void scan(long from, long to, String logfile, LogSegment.Visitor visitor) throws IOException {
+        List<LogSegment> snapshot;
+        synchronized (segments) {
+            snapshot = new ArrayList<LogSegment>(segments);
+            for (LogSegment segment : snapshot) {
+                segment.retain();
+            }
+        }
+        byte[] logfileBytes = logfile == null ? null : logfile.getBytes(CharsetUtil.UTF_8);
+        try {
+            for (int i = 0; i < snapshot.size(); i++) {
+                LogSegment segment = snapshot.get(i);
+                //段名是第一条记录的时间，不同EventLoop的received可能有少量乱序，留出SKEW_MILLIS的余量
+                if (to < Long.MAX_VALUE - SKEW_MILLIS && segment.baseTime() > to + SKEW_MILLIS) {
+                    break;
+                }
+                if (i + 1 < snapshot.size() && snapshot.get(i + 1).baseTime() < from - SKEW_MILLIS
+                        && from > Long.MIN_VALUE + SKEW_MILLIS) {
+                    continue;       //这个段之前没有加载过索引的话，跳过它就不会mmap索引文件
+                }
+                if (!segment.scan(from, to, logfileBytes, visitor)) {
+                    break;
+                }
+            }
+        } finally {
+            for (LogSegment segment : snapshot) {
+                segment.release();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        for (;;) {
+            int n = 0;
+            Object event;
+            while (n < MAX_BATCH && (event = queue.poll()) != null) {
+                try {
+                    write(event);
+                } catch (Throwable t) {
+                    dropped.increment();
+                    logger.warn("Failed to store {}", event, t);
+                } finally {
+                    ReferenceCountUtil.release(event);
+                }
+                n ++;
+            }
+            long now = System.currentTimeMillis();
+            if (n > 0) {
+                unforced = true;
+                commit(now);
+            } else if (closed) {
+                if (offering.get() == 0 && queue.isEmpty()) {
+                    break;
+                }
+                Thread.yield();             //有线程正在offer，等它放进队列后再取一次
+            } else {
+                if (unforced) {
+                    commit(now);            //空闲之前的最后一批也要在fsyncIntervalMillis之内落盘
+                }
+                sleeping = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                sleeping = false;
+            }
+            if (now >= nextRetentionCheckMillis) {
+                nextRetentionCheckMillis = now + RETENTION_CHECK_INTERVAL_MILLIS;
+                deleteExpired(now);
+            }
+        }
+        if (active != null) {
+            force(System.currentTimeMillis());
+        }
+        synchronized (segments) {
+            for (LogSegment segment : segments) {
+                segment.release();
+            }
+            segments.clear();
+        }
+    }
+
+    private void write(Object event) throws IOException {
+        InetSocketAddress source;
+        long received;
+        ByteBuf logfile;
+        ByteBuf msg;
+        if (event instanceof PooledLogEvent) {
+            PooledLogEvent e = (PooledLogEvent) event;
+            source = e.getSource();
+            received = e.getReceived();
+            logfile = e.logfileBytes();
+            msg = e.msgBytes();
+        } else if (event instanceof LogEvent) {
+            LogEvent e = (LogEvent) event;
+            source = e.getSource();
+            received = e.getReceived();
+            logfile = Unpooled.wrappedBuffer(e.getLogfile().getBytes(CharsetUtil.UTF_8));
+            msg = Unpooled.wrappedBuffer(e.getMsg().getBytes(CharsetUtil.UTF_8));
+        } else {
+            throw new IllegalArgumentException("unsupported event: " + event.getClass().getName());
+        }
+
+        if (LogSegment.spaceNeeded(source, logfile, msg) > segmentSize) {
+            dropped.increment();            //比整个段还大，滚动也放不下
+            return;
+        }
+        if (active == null || active.append(source, received, logfile, msg) < 0) {
+            roll(received);
+            active.append(source, received, logfile, msg);
+        }
+        appended.increment();
+    }
+
+    //当前段写满了，落盘后换一个新段，新段以第一条记录的时间命名
+    private void roll(long received) throws IOException {
+        if (active != null) {
+            active.seal();
+            force(System.currentTimeMillis());
+        }
+        long baseTime = received;
+        if (active != null && baseTime <= active.baseTime()) {
+            baseTime = active.baseTime() + 1;       //保证文件名递增
+        }
+        LogSegment segment = LogSegment.create(directory, baseTime, segmentSize);
+        synchronized (segments) {
+            segments.add(segment);
+        }
+        active = segment;
+    }
+
+    private void commit(long now) {
+        if (active == null) {
+            return;
+        }
+        switch (fsyncPolicy) {
+            case EVERY_BATCH:
+                force(now);
+                break;
+            case INTERVAL:
+                if (now - lastForceMillis >= fsyncIntervalMillis) {
+                    force(now);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void force(long now) {
+        active.force();
+        lastForceMillis = now;
+        unforced = false;
+        forces ++;
+    }
+
+    //后一个段的起始时间早于retention，说明这个段中的所有记录都过期了；当前段永远不删除
+    private void deleteExpired(long now) {
+        if (retentionMillis <= 0) {
+            return;
+        }
+        for (;;) {
+            LogSegment expired;
+            synchronized (segments) {
+                if (segments.size() < 2 || segments.get(1).baseTime() > now - retentionMillis) {
+                    return;
+                }
+                expired = segments.remove(0);
+            }
+            try {
+                expired.delete();
+            } catch (IOException e) {
+                logger.warn("Failed to delete {}", expired.path(), e);
+            }
+            expired.release();          //正在查询的线程还持有引用时，等它们release()之后才解除映射
+        }
+    }
+
+    /**
+     * 停止接收新的事件，等待写线程把队列中剩下的写完、落盘后返回
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static final class Builder {
+        private final Path directory;
+        private int segmentSize = 64 * 1024 * 1024;
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+        private long fsyncIntervalMillis = 1000;
+        private long retentionMillis = TimeUnit.DAYS.toMillis(7);
+        private int queueCapacity = 64 * 1024;
+
+        private Builder(Path directory) {
+            if (directory == null) {
+                throw new NullPointerException("directory");
+            }
+            this.directory = directory;
+        }
+
+        public Builder segmentSize(int segmentSize) {
+            if (segmentSize < 1024) {
+                throw new IllegalArgumentException("segmentSize: " + segmentSize + " (expected: >= 1024)");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        public Builder fsyncPolicy(FsyncPolicy fsyncPolicy) {
+            if (fsyncPolicy == null) {
+                throw new NullPointerException("fsyncPolicy");
+            }
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        //只在FsyncPolicy.INTERVAL时使用
+        public Builder fsyncIntervalMillis(long fsyncIntervalMillis) {
+            this.fsyncIntervalMillis = Math.max(0, fsyncIntervalMillis);
+            return this;
+        }
+
+        //小于等于0表示永远保留
+        public Builder retentionMillis(long retentionMillis) {
+            this.retentionMillis = retentionMillis;
+            return this;
+        }
+
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity: " + queueCapacity + " (expected: > 0)");
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        public LogEventStore build() throws IOException {
+            return new LogEventStore(this);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.bwz.study.syslog;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * 放在{@link LogEventDecoder}之后，把LogEvent/PooledLogEvent交给{@link LogEventStore}持久化，再原样传给下一个handler。
+ * PooledLogEvent会多retain一次，由store写完后release，下游照常release自己的那一份。
+ * 只是入队，不会阻塞EventLoop；store的队列满时事件被丢弃并计入{@link LogEventStore#dropped()}
+ */
+@ChannelHandler.Sharable
+public class LogEventStoreHandler extends ChannelInboundHandlerAdapter {
+    private final LogEventStore store;
+
+    public LogEventStoreHandler(LogEventStore store) {
+        if (store == null) {
+            throw new NullPointerException("store");
+        }
+        this.store = store;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof PooledLogEvent || msg instanceof LogEvent) {
+            store.offer(ReferenceCountUtil.retain(msg));
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
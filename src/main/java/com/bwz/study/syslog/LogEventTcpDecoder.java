@@ -0,0 +1,103 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.internal.SystemPropertyUtil;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+
+/**
+ * 按RFC 6587解析TCP上的syslog流，两种分帧方式可以在同一个连接里混用，按每帧的第一个字节区分：
+ * <ul>
+ * <li>octet-counting：以数字开头，"长度 SP 内容"，内容可以包含换行</li>
+ * <li>non-transparent-framing：以换行(LF，前面可以有CR)结尾</li>
+ * </ul>
+ * 每帧的内容和数据报一样是一条"logfile:msg"记录，产生和{@link LogEventDecoder}相同的LogEvent或者PooledLogEvent。
+ * zeroCopy时PooledLogEvent引用累积缓冲的切片，不复制内容。超过maxFrameLength的帧会抛出TooLongFrameException
+ */
+public class LogEventTcpDecoder extends ByteToMessageDecoder {
+    static final int DEFAULT_MAX_FRAME_LENGTH = SystemPropertyUtil.getInt("syslog.maxFrameLength", 64 * 1024);
+    private static final int MAX_LENGTH_DIGITS = 10;
+
+    private final boolean zeroCopy;
+    private final int maxFrameLength;
+
+    public LogEventTcpDecoder(boolean zeroCopy) {
+        this(zeroCopy, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public LogEventTcpDecoder(boolean zeroCopy, int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength: " + maxFrameLength + " (expected: > 0)");
+        }
+        this.zeroCopy = zeroCopy;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    //每次只解码一帧，ByteToMessageDecoder会一直调用到没有完整的帧为止
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        int start = in.readerIndex();
+        int writerIndex = in.writerIndex();
+        byte first = in.getByte(start);
+        if (first >= '0' && first <= '9') {
+            decodeOctetCounted(ctx, in, start, writerIndex, out);
+            return;
+        }
+        int eol = in.indexOf(start, writerIndex, LogEventDecoder.LINE_SEPARATOR);
+        if (eol < 0) {
+            if (in.readableBytes() > maxFrameLength) {
+                in.skipBytes(in.readableBytes());
+                throw new TooLongFrameException("frame length exceeds " + maxFrameLength);
+            }
+            return;
+        }
+        int end = eol > start && in.getByte(eol - 1) == '\r' ? eol - 1 : eol;
+        if (end > start) {
+            LogEventDecoder.decodeRecord(in, source(ctx), System.currentTimeMillis(), start, end, zeroCopy, out);
+        }
+        in.readerIndex(eol + 1);
+    }
+
+    private void decodeOctetCounted(ChannelHandlerContext ctx, ByteBuf in, int start, int writerIndex,
+                                    List<Object> out) {
+        long length = 0;
+        int i = start;
+        for (;;) {
+            if (i == writerIndex) {
+                return;                     //长度还没有收全
+            }
+            byte b = in.getByte(i);
+            if (b == ' ') {
+                break;
+            }
+            if (b < '0' || b > '9' || i - start == MAX_LENGTH_DIGITS) {
+                in.skipBytes(in.readableBytes());
+                throw new CorruptedFrameException("invalid octet count");
+            }
+            length = length * 10 + (b - '0');
+            i ++;
+        }
+        if (length > maxFrameLength) {
+            in.skipBytes(in.readableBytes());
+            throw new TooLongFrameException("frame length " + length + " exceeds " + maxFrameLength);
+        }
+        int frameStart = i + 1;
+        if (writerIndex - frameStart < length) {
+            return;
+        }
+        int frameEnd = frameStart + (int) length;
+        LogEventDecoder.decodeRecord(in, source(ctx), System.currentTimeMillis(), frameStart, frameEnd, zeroCopy, out);
+        in.readerIndex(frameEnd);
+    }
+
+    private static InetSocketAddress source(ChannelHandlerContext ctx) {
+        SocketAddress address = ctx.channel().remoteAddress();
+        return address instanceof InetSocketAddress ? (InetSocketAddress) address : null;
+    }
+}
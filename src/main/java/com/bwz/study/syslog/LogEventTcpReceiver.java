@@ -0,0 +1,239 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.transport.Transport;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 用TCP接收syslog，分帧见{@link LogEventTcpDecoder}，解码后的PooledLogEvent交给和{@link LogEventReceiver}相同的handler，
+ * 下游不需要区分事件来自UDP还是TCP。
+ *
+ * TCP不能像UDP那样丢弃，下游积压({@link Backlog#isFull()})时每个连接各自关闭autoRead，
+ * 让内核的接收窗口把压力传回发送方。每个EventLoop只有一个{@link ResumeCheck}，有连接暂停时才每隔RESUME_CHECK_MILLIS
+ * 检查一次，积压消除后把这个EventLoop上暂停的连接一起重新打开，暂停的连接再多也只有一个定时任务
+ */
+public class LogEventTcpReceiver {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(LogEventTcpReceiver.class);
+    private static final long RESUME_CHECK_MILLIS = 1;
+
+    public interface Backlog {
+        //在EventLoop中调用，需要很快返回
+        boolean isFull();
+    }
+
+    static final Backlog NO_BACKLOG = new Backlog() {
+        @Override
+        public boolean isFull() {
+            return false;
+        }
+    };
+
+    private final int port;
+    private final ChannelHandler handler;
+    private final Backlog backlog;
+    private final ConcurrentMap<EventExecutor, ResumeCheck> resumeChecks =
+            new ConcurrentHashMap<EventExecutor, ResumeCheck>();
+
+    /**
+     * @param handler 接收PooledLogEvent，必须是@Sharable的，负责release
+     * @param backlog 下游是否积压，null表示不做流控
+     */
+    public LogEventTcpReceiver(int port, ChannelHandler handler, Backlog backlog) {
+        this.port = port;
+        this.handler = handler;
+        this.backlog = backlog == null ? NO_BACKLOG : backlog;
+    }
+
+    //LogEventStore的队列超过四分之三时算积压
+    public static Backlog backlogOf(final LogEventStore store) {
+        return new Backlog() {
+            @Override
+            public boolean isFull() {
+                return store.queueSize() > store.queueCapacity() / 4 * 3;
+            }
+        };
+    }
+
+    /**
+     * 分配器已经占用的内存超过maxMemory时算积压。不持久化时下游没有队列，
+     * 用它限制还没有release的事件(以及读进来还没解码的数据)占用的内存
+     */
+    public static Backlog backlogOf(ByteBufAllocator allocator, final long maxMemory) {
+        if (!(allocator instanceof ByteBufAllocatorMetricProvider)) {
+            throw new IllegalArgumentException("allocator without metric: " + allocator);
+        }
+        final ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) allocator).metric();
+        return new Backlog() {
+            @Override
+            public boolean isFull() {
+                return metric.usedDirectMemory() + metric.usedHeapMemory() > maxMemory;
+            }
+        };
+    }
+
+    //同一个EventLoop上的连接共用一个ResumeCheck
+    private ResumeCheck resumeCheck(EventExecutor executor) {
+        ResumeCheck check = resumeChecks.get(executor);
+        if (check == null) {
+            ResumeCheck created = new ResumeCheck(backlog, executor);
+            check = resumeChecks.putIfAbsent(executor, created);
+            if (check == null) {
+                check = created;
+            }
+        }
+        return check;
+    }
+
+    //在给定的EventLoopGroup上绑定端口，不等待也不负责关闭
+    public ChannelFuture bind(Transport transport, EventLoopGroup boss, EventLoopGroup worker,
+                              ByteBufAllocator allocator) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(boss, worker)
+                .channel(transport.serverSocketChannel())
+                .childOption(ChannelOption.ALLOCATOR, allocator)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                                .addLast(new LogEventTcpDecoder(true))
+                                .addLast(new ReadThrottle(resumeCheck(ch.eventLoop())))
+                                .addLast(handler);
+                    }
+                });
+        return bootstrap.bind(port);
+    }
+
+    /**
+     * 一个EventLoop上所有暂停的连接共用的恢复检查，只在这个EventLoop中访问。
+     * 第一个连接暂停时开始定时检查，积压消除后恢复所有暂停的连接并停止定时任务
+     */
+    static final class ResumeCheck implements Runnable {
+        private final Backlog backlog;
+        private final EventExecutor executor;
+        private final List<ReadThrottle> paused = new ArrayList<ReadThrottle>();
+        private ScheduledFuture<?> future;
+
+        ResumeCheck(Backlog backlog, EventExecutor executor) {
+            this.backlog = backlog;
+            this.executor = executor;
+        }
+
+        void pause(ReadThrottle throttle) {
+            paused.add(throttle);
+            if (future == null) {
+                future = executor.scheduleAtFixedRate(this, RESUME_CHECK_MILLIS, RESUME_CHECK_MILLIS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+
+        //连接关闭时移出，没有暂停的连接时停止定时任务
+        void remove(ReadThrottle throttle) {
+            if (paused.remove(throttle) && paused.isEmpty()) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (backlog.isFull()) {
+                return;
+            }
+            for (ReadThrottle throttle : paused) {
+                throttle.resume();
+            }
+            paused.clear();
+            cancel();
+        }
+
+        private void cancel() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        boolean isScheduled() {
+            return future != null;
+        }
+    }
+
+    /**
+     * 放在decoder后面，每个连接一个实例。一次读取结束时下游积压就关闭autoRead，
+     * 已经读进来的数据照常解码；统计暂停的次数，只在所属的EventLoop中修改
+     */
+    public static final class ReadThrottle extends ChannelInboundHandlerAdapter {
+        private final ResumeCheck resumeCheck;
+        private ChannelHandlerContext ctx;
+        private boolean paused;
+        private long pauses;
+
+        ReadThrottle(ResumeCheck resumeCheck) {
+            this.resumeCheck = resumeCheck;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.fireChannelReadComplete();
+            if (!paused && resumeCheck.backlog.isFull()) {
+                paused = true;
+                pauses ++;
+                ctx.channel().config().setAutoRead(false);
+                resumeCheck.pause(this);
+            }
+        }
+
+        private void resume() {
+            paused = false;
+            ctx.channel().config().setAutoRead(true);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (paused) {
+                paused = false;
+                resumeCheck.remove(this);
+            }
+            ctx.fireChannelInactive();
+        }
+
+        //帧格式错误或者太长时无法再同步到下一帧，只能断开
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.warn("Closing {}", ctx.channel(), cause);
+            ctx.close();
+        }
+
+        public boolean isPaused() {
+            return paused;
+        }
+
+        public long pauses() {
+            return pauses;
+        }
+    }
+}
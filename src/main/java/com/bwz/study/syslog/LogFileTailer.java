@@ -0,0 +1,213 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+/**
+ * 跟踪一个日志文件新追加的内容。每次poll把上次位置之后的部分mmap进来，直接在映射的内存上查找换行符。
+ * {@link #poll(ByteBufAllocator, int, List)}把每一行作为一条logfile:msg记录，多条记录用换行分隔打包进同一个ByteBuf，
+ * 不超过maxPayload(一般是MTU减去IP/UDP头)，每个数据报以{@link LogEventDecoder#LINES_MARKER}开头，
+ * 接收端据此按换行拆分，和msg里带换行的单条记录区分开。这种方式不创建String，只有打包时把行的内容从映射的内存复制到数据报缓冲区一次。
+ * {@link #poll(List)}则把每一行读成LogEvent，交给{@link LogEventBatchEncoder}打包，需要为每行创建String。
+ *
+ * 文件被截断(copytruncate)时从头开始读；文件被轮转(mv后重新创建，fileKey变化)时先读完旧文件，包括最后没有换行的半行，再从头读新文件。
+ * 不是线程安全的，只应该在一个EventLoop中调用。
+ */
+public final class LogFileTailer implements Closeable {
+
+    static final int MAX_MAP_SIZE = 16 * 1024 * 1024;     //一次最多映射的字节数
+    private static final byte CR = '\r';
+
+    private final Path path;
+    private final String logfileString;
+    private final byte[] logfile;           //每条记录的logfile部分，UTF-8编码好的路径
+    private FileChannel channel;            //文件不存在时为null
+    private Object fileKey;
+    private long position;                  //下一次从这里开始读，总是在一行的开头
+    private ByteBuf current;                //正在打包的数据报
+
+    /**
+     * @param fromEnd true时只跟踪之后追加的内容，false时从头读取已有的内容
+     */
+    public LogFileTailer(Path path, boolean fromEnd) throws IOException {
+        this.path = path;
+        logfileString = path.toString();
+        logfile = logfileString.getBytes(CharsetUtil.UTF_8);
+        if (open() && fromEnd) {
+            position = channel.size();
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public long position() {
+        return position;
+    }
+
+    /**
+     * 读取新追加的完整行，打包后的数据报加入out，每个数据报由调用方负责release
+     *
+     * @return 读到的记录数
+     */
+    public int poll(ByteBufAllocator allocator, int maxPayload, List<ByteBuf> out) throws IOException {
+        if (maxPayload <= logfile.length + 3) {
+            throw new IllegalArgumentException("maxPayload: " + maxPayload + " (expected: > " + (logfile.length + 3) + ')');
+        }
+        return poll(allocator, maxPayload, out, null);
+    }
+
+    /**
+     * 读取新追加的完整行，每一行作为一个LogEvent加入events，不打包
+     *
+     * @return 读到的记录数
+     */
+    public int poll(List<LogEvent> events) throws IOException {
+        return poll(null, 0, null, events);
+    }
+
+    //events不为null时每一行加入events，否则打包成数据报加入out
+    private int poll(ByteBufAllocator allocator, int maxPayload, List<ByteBuf> out, List<LogEvent> events)
+            throws IOException {
+        if (channel == null && !open()) {
+            return 0;
+        }
+        int records;
+        try {
+            long size = channel.size();
+            if (size < position) {          //被截断了，从头开始
+                position = 0;
+            }
+            records = drain(allocator, maxPayload, out, events, size, false);
+
+            Object key = currentFileKey();
+            if (key != null && !key.equals(fileKey)) {
+                //已经轮转：旧文件不会再有新内容，最后半行也发出去，然后换到新文件
+                records += drain(allocator, maxPayload, out, events, channel.size(), true);
+                channel.close();
+                channel = null;
+                position = 0;
+                if (open()) {
+                    records += drain(allocator, maxPayload, out, events, channel.size(), false);
+                }
+            }
+        } finally {
+            if (current != null) {
+                if (current.isReadable()) {
+                    out.add(current);
+                } else {
+                    current.release();
+                }
+                current = null;
+            }
+        }
+        return records;
+    }
+
+    //把[position, size)中的完整行打包，flushPartial为true时最后没有换行的部分也作为一行
+    private int drain(ByteBufAllocator allocator, int maxPayload, List<ByteBuf> out, List<LogEvent> events,
+                      long size, boolean flushPartial) throws IOException {
+        int records = 0;
+        while (position < size) {
+            int length = (int) Math.min(size - position, MAX_MAP_SIZE);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            try {
+                ByteBuf buf = Unpooled.wrappedBuffer(mapped);
+                int start = 0;
+                int lf;
+                while (start < length && (lf = buf.forEachByte(start, length - start, ByteProcessor.FIND_LF)) >= 0) {
+                    records += append(allocator, maxPayload, out, events, buf, start, lf);
+                    start = lf + 1;
+                }
+                if (start == 0 && (length == MAX_MAP_SIZE || flushPartial)) {
+                    //一行超过了映射窗口，或者是旧文件最后的半行：整段作为一行，超出maxPayload的部分被截掉
+                    records += append(allocator, maxPayload, out, events, buf, 0, length);
+                    start = length;
+                } else if (flushPartial && start < length) {
+                    records += append(allocator, maxPayload, out, events, buf, start, length);
+                    start = length;
+                }
+                position += start;
+                if (start == 0) {
+                    break;                  //只剩半行，等写完再读
+                }
+            } finally {
+                PlatformDependent.freeDirectBuffer(mapped);     //不等GC，马上解除映射
+            }
+        }
+        return records;
+    }
+
+    //把buf[start, end)作为一条记录写入current，写不下就换一个新的数据报；events不为null时作为LogEvent加入events
+    private int append(ByteBufAllocator allocator, int maxPayload, List<ByteBuf> out, List<LogEvent> events,
+                       ByteBuf buf, int start, int end) {
+        if (end > start && buf.getByte(end - 1) == CR) {
+            end --;
+        }
+        int length = end - start;
+        if (length == 0) {
+            return 0;                       //空行
+        }
+        if (events != null) {
+            events.add(new LogEvent(logfileString, buf.toString(start, length, CharsetUtil.UTF_8)));
+            return 1;
+        }
+        length = Math.min(length, maxPayload - logfile.length - 3);
+        int recordLength = logfile.length + 1 + length + 1;
+        if (current != null && current.writableBytes() < recordLength) {
+            out.add(current);
+            current = null;
+        }
+        if (current == null) {
+            current = allocator.buffer(maxPayload, maxPayload);
+            current.writeByte(LogEventDecoder.LINES_MARKER);
+        }
+        current.writeBytes(logfile)
+                .writeByte(LogEvent.SEPARATOR)
+                .writeBytes(buf, start, length)
+                .writeByte(LogEventDecoder.LINE_SEPARATOR);
+        return 1;
+    }
+
+    private boolean open() throws IOException {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;                   //轮转的间隙，下次再试
+        }
+        fileKey = currentFileKey();
+        return true;
+    }
+
+    private Object currentFileKey() throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
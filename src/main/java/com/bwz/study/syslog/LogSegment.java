@@ -0,0 +1,415 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.CharsetUtil;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * {@link LogEventStore}的一个段文件，创建时就固定大小并整个mmap进来，文件名是段中第一条记录之前的时间戳(毫秒)。
+ *
+ * 每条记录的格式(大端)：
+ * <pre>
+ * int   length        后面所有字段的字节数，0表示段中的数据到此为止
+ * long  received
+ * byte  addressLength 0(没有来源)、4或者16
+ * byte[] address
+ * short port          无符号
+ * short logfileLength 无符号
+ * byte[] logfile      UTF-8
+ * byte[] msg          UTF-8，长度是剩下的部分
+ * </pre>
+ * length最后写入，所以崩溃时写了一半的记录在重新打开时会被当作末尾。
+ * 写入只在LogEventStore的写线程中进行；读取可以在其他线程，只能读到{@link #writePosition()}之前的记录。
+ *
+ * 每个段有一个{@link LogSegmentIndex}，第一次追加或者查询时才mmap，索引文件不完整时(比如崩溃)从记录中补齐。
+ * 查询线程可能和删除过期段同时进行，所以用引用计数，最后一次release()时才解除映射。
+ */
+final class LogSegment extends AbstractReferenceCounted {
+    static final String SUFFIX = ".seg";
+    static final int MAX_LOGFILE_LENGTH = 0xFFFF;
+    private static final int FIXED_LENGTH = 8 + 1 + 2 + 2;       //received、addressLength、port、logfileLength
+
+    private final Path path;
+    private final long baseTime;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer writeBuffer;      //写入变长字段时用的视图，避免每次duplicate
+    private final ByteBuf view;                //读取用的视图，只使用绝对位置的方法，可以在多个线程中使用
+    private volatile int writePosition;
+    private volatile LogSegmentIndex index;
+
+    //还没有写入索引的块，只在写线程(或者持有锁加载索引时)访问
+    private int blockStart;
+    private long blockMinReceived;
+    private long blockMaxReceived;
+    private long blockBloom;
+
+    private LogSegment(Path path, long baseTime, MappedByteBuffer buffer, int writePosition) {
+        this.path = path;
+        this.baseTime = baseTime;
+        this.buffer = buffer;
+        this.writeBuffer = buffer.duplicate();
+        this.view = Unpooled.wrappedBuffer(buffer.duplicate());
+        this.writePosition = writePosition;
+    }
+
+    static Path path(Path directory, long baseTime) {
+        return directory.resolve(String.format("%020d", baseTime) + SUFFIX);
+    }
+
+    static boolean isSegment(Path file) {
+        return file.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    static long baseTime(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    static LogSegment create(Path directory, long baseTime, int size) throws IOException {
+        Path path = path(directory, baseTime);
+        Files.deleteIfExists(LogSegmentIndex.path(path));
+        return new LogSegment(path, baseTime, map(path, size), 0);
+    }
+
+    /**
+     * 打开已有的段，从索引最后一项的end开始向后扫描到第一条length为0的记录，找到继续写入的位置。
+     * 先从最后一项的position走一遍，确认正好落在end上，索引文件不存在、没有索引项或者和段对不上时从头扫描
+     */
+    static LogSegment open(Path path) throws IOException {
+        MappedByteBuffer buffer = map(path, -1);
+        int position = indexedEnd(buffer, LogSegmentIndex.lastBlock(path));
+        for (;;) {
+            int next = next(buffer, position);
+            if (next < 0) {
+                break;
+            }
+            position = next;
+        }
+        return new LogSegment(path, baseTime(path), buffer, position);
+    }
+
+    //block是索引最后一项的{position, end}，记录能从position正好走到end时返回end，否则返回0
+    private static int indexedEnd(ByteBuffer buffer, int[] block) {
+        if (block == null || block[0] < 0 || block[1] > buffer.capacity()) {
+            return 0;
+        }
+        int position = block[0];
+        while (position >= 0 && position < block[1]) {
+            position = next(buffer, position);
+        }
+        return position == block[1] ? position : 0;
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            if (size >= 0) {
+                file.setLength(size);
+            }
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();       //映射不依赖于FileChannel保持打开
+        }
+    }
+
+    //position处记录的下一条记录的位置，position处没有完整的记录时返回-1
+    private static int next(ByteBuffer buffer, int position) {
+        if (position + 4 > buffer.capacity()) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        if (length < FIXED_LENGTH || position + 4 + length > buffer.capacity()) {
+            return -1;
+        }
+        return position + 4 + length;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long baseTime() {
+        return baseTime;
+    }
+
+    int writePosition() {
+        return writePosition;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 第一次调用时mmap索引文件，并把索引之后、writePosition之前的完整块补进索引
+     */
+    LogSegmentIndex index() throws IOException {
+        LogSegmentIndex index = this.index;
+        if (index != null) {
+            return index;
+        }
+        synchronized (this) {
+            index = this.index;
+            if (index == null) {
+                index = LogSegmentIndex.open(path, buffer.capacity());
+                int size = index.size();
+                int position = size == 0 ? 0 : index.end(size - 1);
+                blockStart = position;
+                int end = writePosition;
+                while (position < end) {
+                    int next = next(buffer, position);
+                    indexRecord(index, position, next, received(position),
+                            LogSegmentIndex.bloom(view, logfileOffset(position) + 2, logfileLength(position)));
+                    position = next;
+                }
+                this.index = index;
+            }
+            return index;
+        }
+    }
+
+    private void indexRecord(LogSegmentIndex index, int position, int end, long received, long bloom) {
+        if (position == blockStart) {
+            blockMinReceived = received;
+            blockMaxReceived = received;
+            blockBloom = 0;
+        } else {
+            blockMinReceived = Math.min(blockMinReceived, received);
+            blockMaxReceived = Math.max(blockMaxReceived, received);
+        }
+        blockBloom |= bloom;
+        if (end - blockStart >= LogSegmentIndex.INTERVAL) {
+            index.add(blockMinReceived, blockMaxReceived, blockBloom, blockStart, end);
+            blockStart = end;
+        }
+    }
+
+    /**
+     * 一条记录在段中占用的字节数，加上末尾至少4个字节的0(标记数据结束)
+     */
+    static long spaceNeeded(InetSocketAddress source, ByteBuf logfile, ByteBuf msg) {
+        int addressLength = source == null ? 0 : source.getAddress().getAddress().length;
+        return 4L + FIXED_LENGTH + addressLength + Math.min(logfile.readableBytes(), MAX_LOGFILE_LENGTH)
+                + msg.readableBytes() + 4;
+    }
+
+    /**
+     * 追加一条记录，logfile和msg的readerIndex不变，logfile超过65535字节的部分被截掉
+     *
+     * @return 写入的位置，段的剩余空间不够时返回-1
+     */
+    int append(InetSocketAddress source, long received, ByteBuf logfile, ByteBuf msg) throws IOException {
+        LogSegmentIndex index = index();
+        int logfileLength = Math.min(logfile.readableBytes(), MAX_LOGFILE_LENGTH);
+        int msgLength = msg.readableBytes();
+        byte[] address = source == null ? null : source.getAddress().getAddress();
+        int length = FIXED_LENGTH + (address == null ? 0 : address.length) + logfileLength + msgLength;
+        int start = writePosition;
+        if ((long) start + 4 + length + 4 > buffer.capacity()) {
+            return -1;
+        }
+
+        int position = start + 4;
+        buffer.putLong(position, received);
+        position += 8;
+        if (address == null) {
+            buffer.put(position ++, (byte) 0);
+        } else {
+            buffer.put(position ++, (byte) address.length);
+            writeBuffer.limit(position + address.length).position(position);
+            writeBuffer.put(address);
+            position += address.length;
+        }
+        buffer.putShort(position, (short) (source == null ? 0 : source.getPort()));
+        position += 2;
+        buffer.putShort(position, (short) logfileLength);
+        position += 2;
+        writeBuffer.limit(position + logfileLength).position(position);
+        logfile.getBytes(logfile.readerIndex(), writeBuffer);
+        position += logfileLength;
+        writeBuffer.limit(position + msgLength).position(position);
+        msg.getBytes(msg.readerIndex(), writeBuffer);
+        position += msgLength;
+
+        buffer.putInt(start, length);           //最后写length，之前的内容对读取方才算完整
+        writePosition = position;
+        indexRecord(index, start, position, received,
+                LogSegmentIndex.bloom(logfile, logfile.readerIndex(), logfileLength));
+        return start;
+    }
+
+    //段不再写入时把最后一个不满的块也写进索引
+    void seal() throws IOException {
+        LogSegmentIndex index = index();
+        if (writePosition > blockStart) {
+            index.add(blockMinReceived, blockMaxReceived, blockBloom, blockStart, writePosition);
+            blockStart = writePosition;
+        }
+    }
+
+    //下一条记录的位置，position已经是最后一条之后时返回-1
+    int next(int position) {
+        return position < writePosition ? next(buffer, position) : -1;
+    }
+
+    long received(int position) {
+        return buffer.getLong(position + 4);
+    }
+
+    //logfileLength字段的位置
+    private int logfileOffset(int position) {
+        int p = position + 4 + 8;
+        return p + 1 + buffer.get(p) + 2;
+    }
+
+    private int logfileLength(int position) {
+        return buffer.getShort(logfileOffset(position)) & 0xFFFF;
+    }
+
+    //读取position处的记录，每次都会创建String，只用于查询
+    LogEvent read(int position) {
+        int end = position + 4 + buffer.getInt(position);
+        long received = received(position);
+        int p = position + 4 + 8;
+        int addressLength = buffer.get(p ++);
+        byte[] address = new byte[addressLength];
+        view.getBytes(p, address);
+        p += addressLength;
+        int port = buffer.getShort(p) & 0xFFFF;
+        p += 2;
+        int logfileLength = buffer.getShort(p) & 0xFFFF;
+        p += 2;
+        String logfile = view.toString(p, logfileLength, CharsetUtil.UTF_8);
+        p += logfileLength;
+        String msg = view.toString(p, end - p, CharsetUtil.UTF_8);
+        InetSocketAddress source = null;
+        if (addressLength != 0) {
+            try {
+                source = new InetSocketAddress(InetAddress.getByAddress(address), port);
+            } catch (IOException e) {
+                //长度只会是4或16，不会发生
+            }
+        }
+        return new LogEvent(source, received, logfile, msg);
+    }
+
+    //position处记录的logfile是否等于给定的UTF-8字节，不创建String
+    boolean logfileEquals(int position, byte[] logfile) {
+        int p = logfileOffset(position);
+        int logfileLength = buffer.getShort(p) & 0xFFFF;
+        if (logfileLength != logfile.length) {
+            return false;
+        }
+        p += 2;
+        for (int i = 0; i < logfileLength; i++) {
+            if (buffer.get(p + i) != logfile[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把position处的记录按"received\tlogfile\tmsg\n"写入out，直接从映射的内存复制，不创建String。
+     * 超过maxLength时截掉msg的末尾
+     *
+     * @return 写入的字节数
+     */
+    int writeLine(int position, ByteBuf out, int maxLength) {
+        int end = position + 4 + buffer.getInt(position);
+        int writerIndex = out.writerIndex();
+        out.writeCharSequence(Long.toString(received(position)), CharsetUtil.US_ASCII);
+        out.writeByte('\t');
+        int p = logfileOffset(position);
+        int logfileLength = buffer.getShort(p) & 0xFFFF;
+        p += 2;
+        out.writeBytes(view, p, logfileLength);
+        out.writeByte('\t');
+        p += logfileLength;
+        int msgLength = Math.max(0, Math.min(end - p, maxLength - (out.writerIndex() - writerIndex) - 1));
+        out.writeBytes(view, p, msgLength);
+        out.writeByte('\n');
+        return out.writerIndex() - writerIndex;
+    }
+
+    interface Visitor {
+        /**
+         * @return false时停止扫描
+         */
+        boolean visit(LogSegment segment, int position);
+    }
+
+    /**
+     * 按received在[from, to]之间、logfile等于给定值(null表示不限)查找记录，用索引跳过不可能命中的块，
+     * 最后一个还没写进索引的块逐条检查
+     *
+     * @return visitor返回false时返回false
+     */
+    boolean scan(long from, long to, byte[] logfile, Visitor visitor) throws IOException {
+        LogSegmentIndex index = index();
+        long bloom = logfile == null ? 0 : LogSegmentIndex.bloom(Unpooled.wrappedBuffer(logfile), 0, logfile.length);
+        int size = index.size();
+        for (int i = 0; i < size; i++) {
+            if (index.maxReceived(i) < from || index.minReceived(i) > to || !index.mightContain(i, bloom)) {
+                continue;
+            }
+            if (!scan(index.position(i), index.end(i), from, to, logfile, visitor)) {
+                return false;
+            }
+        }
+        return scan(size == 0 ? 0 : index.end(size - 1), writePosition, from, to, logfile, visitor);
+    }
+
+    private boolean scan(int position, int end, long from, long to, byte[] logfile, Visitor visitor) {
+        while (position < end) {
+            long received = received(position);
+            if (received >= from && received <= to && (logfile == null || logfileEquals(position, logfile))) {
+                if (!visitor.visit(this, position)) {
+                    return false;
+                }
+            }
+            position = next(buffer, position);
+        }
+        return true;
+    }
+
+    void force() {
+        buffer.force();
+        LogSegmentIndex index = this.index;
+        if (index != null) {
+            index.force();
+        }
+    }
+
+    //删除段文件和索引文件，映射在最后一次release()时才解除
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(LogSegmentIndex.path(path));
+    }
+
+    @Override
+    public LogSegment touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        LogSegmentIndex index = this.index;
+        if (index != null) {
+            index.close();
+        }
+        PlatformDependent.freeDirectBuffer(buffer);
+    }
+}
@@ -0,0 +1,167 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link LogSegment}的稀疏索引，和段文件同名、后缀是.idx，同样固定大小整个mmap进来。
+ *
+ * 段中每连续写满{@link #INTERVAL}字节的记录组成一个块，每个块一条索引项(大端)：
+ * <pre>
+ * long minReceived    块中最小的received
+ * long maxReceived    块中最大的received
+ * long logfileBloom   块中所有logfile的64位布隆过滤器，见{@link #bloom(ByteBuf, int, int)}
+ * int  position       块中第一条记录的位置
+ * int  end            块中最后一条记录之后的位置，0表示没有这一项
+ * </pre>
+ * 查询时先用时间范围和logfile过滤索引项，只扫描可能命中的块。多个EventLoop收到的received不一定单调，
+ * 所以记录的是每个块的最小值和最大值，而不是假设有序后二分查找。
+ * end最后写入，索引项只在写线程中追加，其他线程只能读到{@link #size()}之前的项。
+ */
+final class LogSegmentIndex implements Closeable {
+    static final String SUFFIX = ".idx";
+    static final int INTERVAL = 4096;
+    private static final int ENTRY_SIZE = 8 + 8 + 8 + 4 + 4;
+
+    private final MappedByteBuffer buffer;
+    private volatile int size;
+
+    private LogSegmentIndex(MappedByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    static Path path(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - LogSegment.SUFFIX.length()) + SUFFIX);
+    }
+
+    //打开或者创建segment的索引文件，已有的索引项一直读到第一个end为0的项
+    static LogSegmentIndex open(Path segment, int segmentCapacity) throws IOException {
+        long capacity = ((long) segmentCapacity / INTERVAL + 2) * ENTRY_SIZE;
+        MappedByteBuffer buffer;
+        RandomAccessFile file = new RandomAccessFile(path(segment).toFile(), "rw");
+        try {
+            if (file.length() < capacity) {
+                file.setLength(capacity);
+            }
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        } finally {
+            file.close();
+        }
+        int size = 0;
+        while ((size + 1) * ENTRY_SIZE <= buffer.capacity() && buffer.getInt(size * ENTRY_SIZE + 28) != 0) {
+            size ++;
+        }
+        return new LogSegmentIndex(buffer, size);
+    }
+
+    /**
+     * 不mmap索引文件，读出最后一项的position和end，用于打开段时找到继续写入的位置。
+     * 索引项是连续追加的，所以用二分查找第一个end为0的项
+     *
+     * @return {position, end}，索引文件不存在或者没有索引项时返回null
+     */
+    static int[] lastBlock(Path segment) throws IOException {
+        Path path = path(segment);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer entry = ByteBuffer.allocate(8);
+            int low = 0;
+            int high = (int) (channel.size() / ENTRY_SIZE);     //[low, high)之间是还不确定的项
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (readInt(channel, entry, (long) mid * ENTRY_SIZE + 28) != 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low == 0) {
+                return null;
+            }
+            long offset = (long) (low - 1) * ENTRY_SIZE + 24;
+            return new int[] { readInt(channel, entry, offset), readInt(channel, entry, offset + 4) };
+        }
+    }
+
+    private static int readInt(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        buffer.clear().limit(4);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        return buffer.getInt(0);
+    }
+
+    /**
+     * logfile的64位布隆过滤器，只置两位，一个块里通常只有几个不同的logfile
+     */
+    static long bloom(ByteBuf buf, int index, int length) {
+        long h = 0xcbf29ce484222325L;               //FNV-1a
+        for (int i = 0; i < length; i++) {
+            h ^= buf.getByte(index + i) & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 29;
+        return (1L << (h & 63)) | (1L << ((h >>> 6) & 63));
+    }
+
+    int size() {
+        return size;
+    }
+
+    //写线程调用，空间在open时按段的大小预留，不会不够
+    void add(long minReceived, long maxReceived, long logfileBloom, int position, int end) {
+        int offset = size * ENTRY_SIZE;
+        buffer.putLong(offset, minReceived);
+        buffer.putLong(offset + 8, maxReceived);
+        buffer.putLong(offset + 16, logfileBloom);
+        buffer.putInt(offset + 24, position);
+        buffer.putInt(offset + 28, end);
+        size = size + 1;
+    }
+
+    long minReceived(int i) {
+        return buffer.getLong(i * ENTRY_SIZE);
+    }
+
+    long maxReceived(int i) {
+        return buffer.getLong(i * ENTRY_SIZE + 8);
+    }
+
+    //第i个块中是否可能有bloom对应的logfile
+    boolean mightContain(int i, long bloom) {
+        return (buffer.getLong(i * ENTRY_SIZE + 16) & bloom) == bloom;
+    }
+
+    int position(int i) {
+        return buffer.getInt(i * ENTRY_SIZE + 24);
+    }
+
+    int end(int i) {
+        return buffer.getInt(i * ENTRY_SIZE + 28);
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+        PlatformDependent.freeDirectBuffer(buffer);
+    }
+}
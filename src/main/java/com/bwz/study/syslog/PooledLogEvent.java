@@ -0,0 +1,108 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.echo.RecyclerByCopyed;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.CharsetUtil;
+
+import java.net.InetSocketAddress;
+
+/**
+ * {@link LogEvent}的零拷贝版本，由{@link LogEventDecoder}在zeroCopy模式下产生。
+ * 只持有数据报内容的一个引用和分隔符的位置，logfile和msg在第一次访问时才解码成String并缓存。
+ *
+ * 生命周期由引用计数决定：用完后必须release()(SimpleChannelInboundHandler会自动release)，
+ * 计数归零时释放数据报内容，对象本身回到RecyclerByCopyed中复用；release之后不能再访问。
+ */
+public final class PooledLogEvent extends AbstractReferenceCounted {
+
+    //可以通过-Dio.netty.recycler.maxCapacityPerThread.logEvent等参数单独配置
+    private static final RecyclerByCopyed<PooledLogEvent> RECYCLER = new RecyclerByCopyed<PooledLogEvent>("logEvent") {
+        @Override
+        protected PooledLogEvent newObject(Handle<PooledLogEvent> handle) {
+            return new PooledLogEvent(handle);
+        }
+    };
+
+    private final RecyclerByCopyed.Handle<PooledLogEvent> handle;
+    private InetSocketAddress source;
+    private long received;
+    private ByteBuf content;          //logfile:msg，readerIndex指向logfile的开头
+    private int separatorIndex;       //分隔符相对readerIndex的偏移
+    private String logfile;           //第一次访问时才解码
+    private String msg;
+
+    private PooledLogEvent(RecyclerByCopyed.Handle<PooledLogEvent> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * @param content 所有权转移给返回的对象，调用方如果还要使用需要先retain()
+     * @param separatorIndex {@link LogEvent#SEPARATOR}相对content.readerIndex()的偏移
+     */
+    static PooledLogEvent newInstance(InetSocketAddress source, long received, ByteBuf content, int separatorIndex) {
+        PooledLogEvent event = RECYCLER.get();
+        event.setRefCnt(1);
+        event.source = source;
+        event.received = received;
+        event.content = content;
+        event.separatorIndex = separatorIndex;
+        return event;
+    }
+
+    public InetSocketAddress getSource() {
+        return source;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public String getLogfile() {
+        String logfile = this.logfile;
+        if (logfile == null) {
+            this.logfile = logfile = content.toString(content.readerIndex(), separatorIndex, CharsetUtil.UTF_8);
+        }
+        return logfile;
+    }
+
+    public String getMsg() {
+        String msg = this.msg;
+        if (msg == null) {
+            this.msg = msg = content.toString(content.readerIndex() + separatorIndex + 1,
+                    content.readableBytes() - separatorIndex - 1, CharsetUtil.UTF_8);
+        }
+        return msg;
+    }
+
+    //不解码、不retain的视图，只在这个对象被release之前有效
+    public ByteBuf logfileBytes() {
+        return content.slice(content.readerIndex(), separatorIndex);
+    }
+
+    public ByteBuf msgBytes() {
+        return content.slice(content.readerIndex() + separatorIndex + 1, content.readableBytes() - separatorIndex - 1);
+    }
+
+    //需要在release之后继续使用时，复制成不可变的LogEvent
+    public LogEvent toLogEvent() {
+        return new LogEvent(source, received, getLogfile(), getMsg());
+    }
+
+    @Override
+    public PooledLogEvent touch(Object hint) {
+        content.touch(hint);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        ByteBuf content = this.content;
+        this.content = null;
+        source = null;
+        logfile = null;
+        msg = null;
+        content.release();
+        handle.recycle(this);
+    }
+}
@@ -0,0 +1,103 @@
+package com.bwz.study.transport;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
+
+/**
+ * 所有Bootstrap共用的传输层选择：Linux上能加载netty-transport-native-epoll时使用epoll(默认边缘触发，
+ * 系统调用比NIO少)，否则退回NIO。可以用Netty自带的-Dio.netty.transport.noNative=true强制使用NIO，方便对比。
+ *
+ * EventLoopGroup和Channel类型必须来自同一个Transport，不能混用。
+ */
+public enum Transport {
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannel() {
+            return EpollDatagramChannel.class;
+        }
+    },
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new NioEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannel() {
+            return NioDatagramChannel.class;
+        }
+    };
+
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(Transport.class);
+    private static final Transport BEST;
+
+    static {
+        if (Epoll.isAvailable()) {
+            BEST = EPOLL;
+        } else {
+            BEST = NIO;
+            if (logger.isDebugEnabled()) {
+                logger.debug("epoll unavailable, using NIO", Epoll.unavailabilityCause());
+            }
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Transport: {}", BEST);
+        }
+    }
+
+    //当前平台上可用的最好的传输层
+    public static Transport best() {
+        return BEST;
+    }
+
+    //nThreads为0时使用Netty默认的线程数(CPU核数 * 2)
+    public abstract EventLoopGroup newEventLoopGroup(int nThreads);
+
+    public EventLoopGroup newEventLoopGroup() {
+        return newEventLoopGroup(0);
+    }
+
+    public abstract Class<? extends ServerSocketChannel> serverSocketChannel();
+
+    public abstract Class<? extends SocketChannel> socketChannel();
+
+    public abstract Class<? extends DatagramChannel> datagramChannel();
+}
@@ -1,29 +1,23 @@
 package com.bwz.study.webSocket;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
 public class ChatServer {
 
     public void run(int port) throws Exception{
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup bossGroup = transport.newEventLoopGroup();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup();
         try {
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new ChatServerInitializer(channelGroup))
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
-
             System.out.println("ChatServer 启动了");
 
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = bind(port, transport, bossGroup, workerGroup, ByteBufAllocator.DEFAULT).sync();
 
             future.channel().closeFuture().sync();
         } finally {
@@ -33,6 +27,20 @@ public class ChatServer {
         }
     }
 
+    //在给定的EventLoopGroup上绑定端口，不等待也不负责关闭，EventLoopGroup和allocator可以和其他服务共享
+    public ChannelFuture bind(int port, Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                              ByteBufAllocator allocator) {
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(transport.serverSocketChannel())
+                .childHandler(new ChatServerInitializer(channelGroup))
+                .option(ChannelOption.SO_BACKLOG, 128)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+        return bootstrap.bind(port);
+    }
+
     private final ChannelGroup channelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
 
     public static void main(String[] args) throws Exception{
@@ -1,13 +1,13 @@
 package com.bwz.study.webSocket;
 
+import com.bwz.study.transport.Transport;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
@@ -23,21 +23,13 @@ public class SecureChatServer {
     }
 
     public void run(int port) throws Exception {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport transport = Transport.best();
+        EventLoopGroup bossGroup = transport.newEventLoopGroup();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup();
         try {
-            SelfSignedCertificate cert = new SelfSignedCertificate();
-            SslContext context = SslContextBuilder.forServer(cert.certificate(), cert.privateKey()).build();
-            ServerBootstrap bootstrap = new ServerBootstrap();
-            bootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
-                    .childHandler(new SecureChatServerInitializer(channelGroup, context))
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
-
             System.out.println("ChatServer 启动了");
 
-            ChannelFuture future = bootstrap.bind(port).sync();
+            ChannelFuture future = bind(port, transport, bossGroup, workerGroup, ByteBufAllocator.DEFAULT).sync();
 
             future.channel().closeFuture().sync();
         } finally {
@@ -46,4 +38,23 @@ public class SecureChatServer {
             System.out.println("ChatServer 关闭了");
         }
     }
+
+    //在给定的EventLoopGroup上绑定端口，不等待也不负责关闭；没有传入SslContext时使用自签名证书
+    public ChannelFuture bind(int port, Transport transport, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                              ByteBufAllocator allocator) throws Exception {
+        SslContext context = this.context;
+        if (context == null) {
+            SelfSignedCertificate cert = new SelfSignedCertificate();
+            context = SslContextBuilder.forServer(cert.certificate(), cert.privateKey()).build();
+        }
+        ServerBootstrap bootstrap = new ServerBootstrap();
+        bootstrap.group(bossGroup, workerGroup)
+                .channel(transport.serverSocketChannel())
+                .childHandler(new SecureChatServerInitializer(channelGroup, context))
+                .option(ChannelOption.SO_BACKLOG, 128)
+                .option(ChannelOption.ALLOCATOR, allocator)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, allocator);
+        return bootstrap.bind(port);
+    }
 }
@@ -0,0 +1,63 @@
+package com.bwz.study.echo;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackPressureHandlerTest {
+
+    @Test
+    public void testPausesReadWhileUnwritable() throws Exception {
+        BackPressureHandler.Stats stats = new BackPressureHandler.Stats();
+        BackPressureHandler handler = new BackPressureHandler(stats);
+        EmbeddedChannel channel = new EmbeddedChannel(handler);
+        channel.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+
+        // 没有flush的数据超过高水位
+        channel.write(Unpooled.wrappedBuffer(new byte[32]));
+        channel.runPendingTasks();
+        Assert.assertFalse(channel.isWritable());
+        Assert.assertFalse(channel.config().isAutoRead());
+        Assert.assertTrue(handler.isPaused());
+        Assert.assertEquals(1, handler.pauses());
+        Assert.assertEquals(1, stats.pauses());
+        Assert.assertEquals(1, stats.pausedChannels());
+
+        Thread.sleep(5);
+        channel.flush();
+        channel.runPendingTasks();
+        Assert.assertTrue(channel.isWritable());
+        Assert.assertTrue(channel.config().isAutoRead());
+        Assert.assertFalse(handler.isPaused());
+        Assert.assertTrue(handler.pausedNanos() > 0);
+        Assert.assertEquals(handler.pausedNanos(), stats.pausedNanos());
+        Assert.assertEquals(0, stats.pausedChannels());
+
+        channel.releaseOutbound();
+        channel.finish();
+    }
+
+    @Test
+    public void testStatsSharedByChannels() {
+        BackPressureHandler.Stats stats = new BackPressureHandler.Stats();
+        EmbeddedChannel[] channels = new EmbeddedChannel[3];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = new EmbeddedChannel(new BackPressureHandler(stats));
+            channels[i].config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+            channels[i].write(Unpooled.wrappedBuffer(new byte[32]));
+            channels[i].runPendingTasks();
+        }
+        Assert.assertEquals(3, stats.pauses());
+        Assert.assertEquals(3, stats.pausedChannels());
+
+        // 暂停中的连接关闭时也结束暂停
+        for (EmbeddedChannel channel : channels) {
+            channel.close();
+            channel.releaseOutbound();
+        }
+        Assert.assertEquals(3, stats.pauses());
+        Assert.assertEquals(0, stats.pausedChannels());
+    }
+}
@@ -0,0 +1,40 @@
+package com.bwz.study.echo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = LatencyHistogram.index(value);
+            Assert.assertTrue(LatencyHistogram.highestValue(index) >= value);
+            if (index > 0) {
+                Assert.assertTrue(LatencyHistogram.highestValue(index - 1) < value);
+            }
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValue(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000L);
+        }
+        Assert.assertEquals(100000, histogram.count());
+        Assert.assertEquals(1000, histogram.min());
+        Assert.assertEquals(100000000, histogram.max());
+        // 相对误差不超过1/64
+        Assert.assertEquals(50000000, histogram.percentile(50), 50000000 / 64);
+        Assert.assertEquals(99000000, histogram.percentile(99), 99000000 / 64);
+        Assert.assertEquals(100000000, histogram.percentile(99.99));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(200000000);
+        histogram.add(other);
+        Assert.assertEquals(100001, histogram.count());
+        Assert.assertEquals(200000000, histogram.max());
+    }
+}
@@ -0,0 +1,40 @@
+package com.bwz.study.echo;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PipelinedEchoServerHandlerTest {
+
+    static ByteBuf frame(int value) {
+        return Unpooled.buffer().writeInt(4).writeInt(value);
+    }
+
+    @Test
+    public void testEchoesPipelinedFramesInOrder() {
+        EmbeddedChannel channel = new EmbeddedChannel(EchoServer.newFrameDecoder(), new PipelinedEchoServerHandler());
+
+        // 三个请求放在一次读取里，最后一个只到了一半
+        ByteBuf in = Unpooled.buffer();
+        in.writeBytes(frame(1)).writeBytes(frame(2)).writeBytes(frame(3), 0, 6);
+        channel.writeInbound(in);
+        for (int i = 1; i <= 2; i++) {
+            ByteBuf out = channel.readOutbound();
+            Assert.assertEquals(4, out.readInt());
+            Assert.assertEquals(i, out.readInt());
+            out.release();
+        }
+        Assert.assertNull(channel.readOutbound());
+
+        channel.writeInbound(Unpooled.buffer().writeBytes(frame(3), 6, 2));
+        ByteBuf out = channel.readOutbound();
+        Assert.assertEquals(3, out.getInt(4));
+        out.release();
+
+        // 连接保持打开
+        Assert.assertTrue(channel.isOpen());
+        Assert.assertFalse(channel.finish());
+    }
+}
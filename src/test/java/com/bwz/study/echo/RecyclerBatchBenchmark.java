@@ -0,0 +1,86 @@
+package com.bwz.study.echo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量get/recycle与逐个get/recycle的单个对象耗时对比，每次调用都借出并归还OBJECTS个对象，
+ * 按batchSize分批，所以结果(ns/op)可以直接当作每个对象的成本来比较。
+ *
+ * 运行: mvn -Pjmh test-compile exec:exec -Djmh.args="RecyclerBatchBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecyclerBatchBenchmark {
+
+    static final int OBJECTS = 256;
+
+    @Param({"1", "16", "256"})
+    public int batchSize;
+
+    private RecyclerByCopyed<RecyclerBenchmark.Pooled> recycler;
+    private final RecyclerBenchmark.Pooled[] objects = new RecyclerBenchmark.Pooled[OBJECTS];
+    @SuppressWarnings("unchecked")
+    private final RecyclerByCopyed.Handle<RecyclerBenchmark.Pooled>[] handles = new RecyclerByCopyed.Handle[OBJECTS];
+
+    @Setup
+    public void setup() {
+        recycler = new RecyclerByCopyed<RecyclerBenchmark.Pooled>(4096, 2, 1, 16) {
+            @Override
+            protected RecyclerBenchmark.Pooled newObject(Handle<RecyclerBenchmark.Pooled> handle) {
+                return new RecyclerBenchmark.Pooled(handle, null);
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public void single() {
+        for (int offset = 0; offset < OBJECTS; offset += batchSize) {
+            for (int i = offset; i < offset + batchSize; i++) {
+                objects[i] = recycler.get();
+            }
+            for (int i = offset; i < offset + batchSize; i++) {
+                objects[i].copyedHandle.recycle(objects[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public void batch() {
+        for (int offset = 0; offset < OBJECTS; offset += batchSize) {
+            recycler.get(objects, offset, batchSize);
+            for (int i = offset; i < offset + batchSize; i++) {
+                handles[i] = objects[i].copyedHandle;
+            }
+            recycler.recycle(handles, offset, batchSize);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(RecyclerBatchBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,198 @@
+package com.bwz.study.echo;
+
+import io.netty.util.Recycler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecyclerByCopyed 与直接 new、Netty 自带 Recycler 的对比基准测试。
+ *
+ * 运行: mvn -Pjmh test-compile exec:exec -Djmh.args="RecyclerBenchmark -prof gc"
+ * 或者直接在 IDE 中运行 {@link #main(String[])}，会自动带上 GC 分析器输出分配速率(gc.alloc.rate.norm)。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecyclerBenchmark {
+
+    static final int BURST_SIZE = 1024;     //一次突发借出的对象数量，大于较小的maxCapacityPerThread，用来观察丢弃的情况
+
+    public enum Impl { NEW, NETTY, COPYED, COPYED_MPSC }
+
+    //被池化的对象，同时持有两种回收器的Handle，payload用来让分配速率有可比性
+    static final class Pooled {
+        final RecyclerByCopyed.Handle<Pooled> copyedHandle;
+        final Recycler.Handle<Pooled> nettyHandle;
+        final byte[] payload = new byte[64];
+
+        Pooled(RecyclerByCopyed.Handle<Pooled> copyedHandle, Recycler.Handle<Pooled> nettyHandle) {
+            this.copyedHandle = copyedHandle;
+            this.nettyHandle = nettyHandle;
+        }
+    }
+
+    interface Pool {
+        Pooled get();
+
+        void recycle(Pooled pooled);
+    }
+
+    static Pool newPool(Impl impl, int maxCapacityPerThread, int ratio) {
+        switch (impl) {
+            case NEW:
+                return new Pool() {
+                    @Override
+                    public Pooled get() {
+                        return new Pooled(null, null);
+                    }
+
+                    @Override
+                    public void recycle(Pooled pooled) {
+                        // 交给GC
+                    }
+                };
+            case NETTY:
+                final Recycler<Pooled> recycler = new Recycler<Pooled>(maxCapacityPerThread, 2, ratio,
+                        Runtime.getRuntime().availableProcessors() * 2) {
+                    @Override
+                    protected Pooled newObject(Handle<Pooled> handle) {
+                        return new Pooled(null, handle);
+                    }
+                };
+                return new Pool() {
+                    @Override
+                    public Pooled get() {
+                        return recycler.get();
+                    }
+
+                    @Override
+                    public void recycle(Pooled pooled) {
+                        pooled.nettyHandle.recycle(pooled);
+                    }
+                };
+            case COPYED:
+            case COPYED_MPSC:
+                final RecyclerByCopyed<Pooled> copyed = new RecyclerByCopyed<Pooled>(maxCapacityPerThread, 2, ratio,
+                        Runtime.getRuntime().availableProcessors() * 2, impl == Impl.COPYED_MPSC ?
+                        RecyclerByCopyed.CrossThreadMode.MPSC_QUEUE : RecyclerByCopyed.CrossThreadMode.WEAK_ORDER_QUEUE) {
+                    @Override
+                    protected Pooled newObject(Handle<Pooled> handle) {
+                        return new Pooled(handle, null);
+                    }
+                };
+                return new Pool() {
+                    @Override
+                    public Pooled get() {
+                        return copyed.get();
+                    }
+
+                    @Override
+                    public void recycle(Pooled pooled) {
+                        pooled.copyedHandle.recycle(pooled);
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("unknown impl: " + impl);
+        }
+    }
+
+    //整个基准共享一个回收器实例，和业务里static final RECYCLER的用法一致
+    @State(Scope.Benchmark)
+    public static class PoolState {
+        @Param({"NEW", "NETTY", "COPYED", "COPYED_MPSC"})
+        public Impl impl;
+
+        @Param({"256", "4096"})
+        public int maxCapacityPerThread;
+
+        @Param({"1", "8"})
+        public int ratio;
+
+        Pool pool;
+
+        @Setup
+        public void setup() {
+            pool = newPool(impl, maxCapacityPerThread, ratio);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BurstState {
+        final Pooled[] objects = new Pooled[BURST_SIZE];
+    }
+
+    //跨线程回收时，借出线程把对象交给归还线程；队列满了就由借出线程自己回收，避免对象被丢给GC
+    @State(Scope.Group)
+    public static class Handoff {
+        final Queue<Pooled> queue = new ArrayBlockingQueue<Pooled>(BURST_SIZE);
+    }
+
+    @Benchmark
+    public Pooled sameThread(PoolState state) {
+        Pooled pooled = state.pool.get();
+        state.pool.recycle(pooled);
+        return pooled;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void burstThenDrain(PoolState state, BurstState burst) {
+        Pooled[] objects = burst.objects;
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = state.pool.get();
+        }
+        for (int i = 0; i < objects.length; i++) {
+            state.pool.recycle(objects[i]);
+            objects[i] = null;
+        }
+    }
+
+    @Benchmark
+    @Group("crossThread")
+    @GroupThreads(1)
+    public Pooled crossThreadAcquire(PoolState state, Handoff handoff) {
+        Pooled pooled = state.pool.get();
+        if (!handoff.queue.offer(pooled)) {
+            state.pool.recycle(pooled);
+        }
+        return pooled;
+    }
+
+    @Benchmark
+    @Group("crossThread")
+    @GroupThreads(1)
+    public void crossThreadRelease(PoolState state, Handoff handoff) {
+        Pooled pooled = handoff.queue.poll();
+        if (pooled != null) {
+            state.pool.recycle(pooled);         //不是借出线程，走pushLater/WeakOrderQueue或MPSC队列
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(RecyclerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,632 @@
+package com.bwz.study.echo;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class RecyclerByCopyedTest {
+
+    static final class HandledObject {
+        final RecyclerByCopyed.Handle<HandledObject> handle;
+
+        HandledObject(RecyclerByCopyed.Handle<HandledObject> handle) {
+            this.handle = handle;
+        }
+
+        void recycle() {
+            handle.recycle(this);
+        }
+    }
+
+    static RecyclerByCopyed<HandledObject> newRecycler(int maxCapacityPerThread, long trimIntervalMillis) {
+        return new RecyclerByCopyed<HandledObject>(maxCapacityPerThread, 2, 1, 16,
+                RecyclerByCopyed.CrossThreadMode.WEAK_ORDER_QUEUE, trimIntervalMillis) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+    }
+
+    //Stack自适应调整容量的周期由测试手动推进
+    static final class ManualClockRecycler extends RecyclerByCopyed<HandledObject> {
+        private long nanoTime;
+
+        ManualClockRecycler(int maxCapacityPerThread, long trimIntervalMillis) {
+            super(maxCapacityPerThread, 2, 1, 16, CrossThreadMode.WEAK_ORDER_QUEUE, trimIntervalMillis);
+        }
+
+        @Override
+        protected HandledObject newObject(Handle<HandledObject> handle) {
+            return new HandledObject(handle);
+        }
+
+        @Override
+        long nanoTime() {
+            return nanoTime;
+        }
+
+        void advanceMillis(long millis) {
+            nanoTime += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    @Test
+    public void testTrimIdleHandles() {
+        ManualClockRecycler recycler = new ManualClockRecycler(4096, 10);
+        HandledObject[] objects = new HandledObject[1000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = recycler.get();
+        }
+        for (HandledObject object : objects) {
+            object.recycle();
+        }
+        Assert.assertEquals(1000, recycler.threadLocalSize());
+        Assert.assertTrue(recycler.threadLocalCapacity() >= 1000);
+
+        // 第一个周期里几乎全是未命中，不会释放；每64次get()才检查一次周期是否结束
+        recycler.advanceMillis(10);
+        for (int i = 0; i < 64; i++) {
+            recycler.get().recycle();
+        }
+        Assert.assertEquals(1000, recycler.threadLocalSize());
+
+        // 第二个周期里只用到了一个对象，其余的都被释放
+        recycler.advanceMillis(10);
+        for (int i = 0; i < 64; i++) {
+            recycler.get().recycle();
+        }
+        Assert.assertEquals(1, recycler.threadLocalSize());
+        Assert.assertEquals(256, recycler.threadLocalCapacity());
+    }
+
+    @Test
+    public void testTrimOnRecycle() {
+        ManualClockRecycler recycler = new ManualClockRecycler(4096, 10);
+        HandledObject[] objects = new HandledObject[1064];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = recycler.get();
+        }
+        for (int i = 0; i < 1000; i++) {
+            objects[i].recycle();
+        }
+
+        // 第一个周期全是未命中，由回收触发周期结束，但不释放
+        recycler.advanceMillis(10);
+        for (int i = 1000; i < objects.length; i++) {
+            objects[i].recycle();
+        }
+        Assert.assertEquals(1064, recycler.threadLocalSize());
+
+        // 第二个周期只借出64个，之后不再get()，周期到了以后单靠回收也会释放一直闲置的1000个
+        for (int i = 0; i < 64; i++) {
+            objects[i] = recycler.get();
+        }
+        recycler.advanceMillis(10);
+        for (int i = 0; i < 64; i++) {
+            objects[i].recycle();
+        }
+        Assert.assertEquals(64, recycler.threadLocalSize());
+        Assert.assertEquals(256, recycler.threadLocalCapacity());
+    }
+
+    @Test
+    public void testNoTrimWhenDisabled() {
+        ManualClockRecycler recycler = new ManualClockRecycler(4096, 0);
+        HandledObject[] objects = new HandledObject[1000];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = recycler.get();
+        }
+        for (HandledObject object : objects) {
+            object.recycle();
+        }
+        recycler.advanceMillis(20);
+        for (int i = 0; i < 64; i++) {
+            recycler.get().recycle();
+        }
+        Assert.assertEquals(1000, recycler.threadLocalSize());
+    }
+
+    @SuppressWarnings("unchecked")
+    static RecyclerByCopyed.Handle<HandledObject>[] handlesOf(HandledObject[] objects) {
+        RecyclerByCopyed.Handle<HandledObject>[] handles = new RecyclerByCopyed.Handle[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            handles[i] = objects[i].handle;
+        }
+        return handles;
+    }
+
+    @Test
+    public void testBatchGetAndRecycle() {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(4096, 0);
+        HandledObject[] objects = new HandledObject[16];
+        Assert.assertEquals(0, recycler.get(objects, 0, objects.length));
+        recycler.recycle(handlesOf(objects), 0, objects.length);
+        Assert.assertEquals(16, recycler.threadLocalSize());
+
+        HandledObject[] reused = new HandledObject[32];
+        Assert.assertEquals(16, recycler.get(reused, 0, reused.length));
+        for (HandledObject object : reused) {
+            Assert.assertNotNull(object);
+        }
+        Assert.assertEquals(0, recycler.threadLocalSize());
+    }
+
+    @Test
+    public void testBatchGetRefillsFromOtherThreads() throws Exception {
+        for (final RecyclerByCopyed.CrossThreadMode mode : RecyclerByCopyed.CrossThreadMode.values()) {
+            final RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(4096, 2, 1, 16, mode) {
+                @Override
+                protected HandledObject newObject(Handle<HandledObject> handle) {
+                    return new HandledObject(handle);
+                }
+            };
+            final HandledObject[] objects = new HandledObject[100];
+            recycler.get(objects, 0, objects.length);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recycler.recycle(handlesOf(objects), 0, objects.length);
+                }
+            });
+            thread.start();
+            thread.join();
+
+            Assert.assertEquals(mode.name(), 100, recycler.get(new HandledObject[100], 0, 100));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBatchRecycleTwice() {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(4096, 0);
+        HandledObject[] objects = new HandledObject[4];
+        recycler.get(objects, 0, objects.length);
+        objects[3] = objects[0];
+        recycler.recycle(handlesOf(objects), 0, objects.length);
+    }
+
+    static RecyclerByCopyed<HandledObject> newMpscRecycler() {
+        return new RecyclerByCopyed<HandledObject>(1024, 2, 1, 16, RecyclerByCopyed.CrossThreadMode.MPSC_QUEUE) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+    }
+
+    //在新线程中执行task，返回它抛出的异常
+    static Throwable runInOtherThread(final Runnable task) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    error[0] = t;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        return error[0];
+    }
+
+    @Test
+    public void testMpscDifferentThreadRecycle() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newMpscRecycler();
+        final HandledObject[] instances = new HandledObject[8];
+        for (int i = 0; i < instances.length; i++) {
+            instances[i] = recycler.get();
+        }
+
+        Assert.assertNull(runInOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                for (HandledObject instance : instances) {
+                    instance.recycle();
+                }
+            }
+        }));
+
+        Set<HandledObject> reused = Collections.newSetFromMap(new IdentityHashMap<HandledObject, Boolean>());
+        for (int i = 0; i < instances.length; i++) {
+            reused.add(recycler.get());
+        }
+        Assert.assertEquals(new HashSet<HandledObject>(Arrays.asList(instances)), reused);
+    }
+
+    @Test
+    public void testMpscRecycleTwice() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newMpscRecycler();
+        final HandledObject instance = recycler.get();
+        instance.recycle();
+
+        // 已经在所属线程的Stack里，其他线程再回收直接失败
+        Assert.assertTrue(runInOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                instance.recycle();
+            }
+        }) instanceof IllegalStateException);
+
+        Assert.assertSame(instance, recycler.get());
+        Assert.assertNotSame(instance, recycler.get());
+    }
+
+    @Test
+    public void testMpscRecycleTwiceFromOtherThreads() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newMpscRecycler();
+        final HandledObject instance = recycler.get();
+        Runnable recycle = new Runnable() {
+            @Override
+            public void run() {
+                instance.recycle();
+            }
+        };
+        Assert.assertNull(runInOtherThread(recycle));
+        // 第二次回收在放进队列之前就被拒绝
+        Assert.assertTrue(runInOtherThread(recycle) instanceof IllegalStateException);
+
+        Assert.assertSame(instance, recycler.get());
+        Assert.assertNotSame(instance, recycler.get());
+    }
+
+    static RecyclerByCopyed<HandledObject> newScavengeRecycler(int scavengeBudget) {
+        return new RecyclerByCopyed<HandledObject>(RecyclerConfig.builder().ratio(1).maxDelayedQueuesPerThread(16)
+                .crossThreadMode(RecyclerByCopyed.CrossThreadMode.WEAK_ORDER_QUEUE)
+                .scavengeBudget(scavengeBudget).build()) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+    }
+
+    //每个线程回收一个对象，各自有一个WeakOrderQueue
+    static void recycleInOtherThreads(HandledObject[] objects) throws InterruptedException {
+        for (final HandledObject object : objects) {
+            Assert.assertNull(runInOtherThread(new Runnable() {
+                @Override
+                public void run() {
+                    object.recycle();
+                }
+            }));
+        }
+    }
+
+    @Test
+    public void testScavengeBudget() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newScavengeRecycler(1);
+        HandledObject[] objects = new HandledObject[4];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = recycler.get();
+        }
+        recycleInOtherThreads(objects);
+        List<HandledObject> recycled = Arrays.asList(objects);
+
+        // 每次get()最多调用一次transfer：从一个queue取到对象就命中，遇到已经取空的queue就先记下cursor，这次未命中
+        Assert.assertTrue(recycled.contains(recycler.get()));
+        for (int i = 1; i < objects.length; i++) {
+            Assert.assertFalse(recycled.contains(recycler.get()));
+            Assert.assertEquals(0, recycler.threadLocalSize());
+            Assert.assertTrue(recycled.contains(recycler.get()));
+        }
+    }
+
+    @Test
+    public void testScavengeUnbounded() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newScavengeRecycler(0);
+        HandledObject[] objects = new HandledObject[4];
+        for (int i = 0; i < objects.length; i++) {
+            objects[i] = recycler.get();
+        }
+        recycleInOtherThreads(objects);
+        List<HandledObject> recycled = Arrays.asList(objects);
+
+        // 不限制时一次scavenge会跳过取空的queue，直到取到对象
+        for (int i = 0; i < objects.length; i++) {
+            Assert.assertTrue(recycled.contains(recycler.get()));
+        }
+    }
+
+    @Test
+    public void testConfigForType() {
+        RecyclerConfig.register("testConfigForType", RecyclerConfig.builder().maxCapacityPerThread(8).ratio(1).build());
+        try {
+            RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>("testConfigForType") {
+                @Override
+                protected HandledObject newObject(Handle<HandledObject> handle) {
+                    return new HandledObject(handle);
+                }
+            };
+            HandledObject[] objects = new HandledObject[16];
+            recycler.get(objects, 0, objects.length);
+            recycler.recycle(handlesOf(objects), 0, objects.length);
+            Assert.assertEquals(8, recycler.threadLocalSize());
+        } finally {
+            RecyclerConfig.unregister("testConfigForType");
+        }
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        long reservedBefore = RecyclerMemoryBudget.reservedBytes();
+        RecyclerMemoryBudget.setMaxPooledBytes(reservedBefore + 64 * 1024);
+        try {
+            RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(
+                    RecyclerConfig.builder().ratio(1).estimatedObjectSize(1024).build()) {
+                @Override
+                protected HandledObject newObject(Handle<HandledObject> handle) {
+                    return new HandledObject(handle);
+                }
+            };
+            HandledObject[] objects = new HandledObject[100];
+            recycler.get(objects, 0, objects.length);
+            recycler.recycle(handlesOf(objects), 0, objects.length);
+            Assert.assertEquals(64, recycler.threadLocalSize());
+            Assert.assertEquals(reservedBefore + 64 * 1024, RecyclerMemoryBudget.reservedBytes());
+
+            // 对象都被借出后，只保留一块(16个对象)的预约
+            Assert.assertEquals(64, recycler.get(objects, 0, 64));
+            Assert.assertEquals(reservedBefore + 16 * 1024, RecyclerMemoryBudget.reservedBytes());
+        } finally {
+            RecyclerMemoryBudget.setMaxPooledBytes(0);
+        }
+    }
+
+    static RecyclerByCopyed<HandledObject> newSharedPoolRecycler() {
+        return new RecyclerByCopyed<HandledObject>(RecyclerConfig.builder().ratio(1).sharedPoolCapacity(1024).build()) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+    }
+
+    @Test
+    public void testReclaimFromDeadThread() throws Exception {
+        final RecyclerByCopyed<HandledObject> recycler = newSharedPoolRecycler();
+        final HandledObject[] objects = new HandledObject[16];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recycler.get(objects, 0, objects.length);
+                recycler.recycle(handlesOf(objects), 0, objects.length);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // 线程结束后它Stack里的对象被转移到共享池，当前线程可以直接复用
+        HandledObject[] reused = new HandledObject[16];
+        Assert.assertEquals(16, recycler.get(reused, 0, reused.length));
+        Assert.assertTrue(Arrays.asList(objects).containsAll(Arrays.asList(reused)));
+
+        // 复用的对象回收到当前线程的Stack
+        recycler.recycle(handlesOf(reused), 0, reused.length);
+        Assert.assertEquals(16, recycler.threadLocalSize());
+    }
+
+    @Test
+    public void testRecycleAfterOwnerDied() throws Exception {
+        final RecyclerByCopyed<HandledObject> recycler = newSharedPoolRecycler();
+        final HandledObject[] objects = new HandledObject[16];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                recycler.get(objects, 0, objects.length);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // 借出的线程已经结束，归还的对象直接进入共享池
+        recycler.recycle(handlesOf(objects), 0, objects.length);
+        Assert.assertEquals(0, recycler.threadLocalSize());
+        Assert.assertSame(objects[15], recycler.get());
+
+        try {
+            objects[0].recycle();
+            objects[0].recycle();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // 在共享池中的对象不能再次回收
+        }
+    }
+
+    @Test
+    public void testRecycleAfterThreadLocalRemoved() throws Exception {
+        final RecyclerByCopyed<HandledObject> recycler = newSharedPoolRecycler();
+        Assert.assertNull(runInOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                HandledObject object = recycler.get();
+                // 线程还活着，Stack已经被转移到共享池，之后的回收直接进入共享池
+                FastThreadLocal.removeAll();
+                object.recycle();
+                Assert.assertSame(object, recycler.get());
+                object.recycle();
+                Assert.assertEquals(1, recycler.threadLocalSize());
+            }
+        }));
+    }
+
+    @Test
+    public void testSharedPoolMemoryBudget() throws Exception {
+        long reservedBefore = RecyclerMemoryBudget.reservedBytes();
+        RecyclerMemoryBudget.setMaxPooledBytes(reservedBefore + 16 * 1024);
+        try {
+            final RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(RecyclerConfig.builder()
+                    .ratio(1).sharedPoolCapacity(1024).estimatedObjectSize(1024).build()) {
+                @Override
+                protected HandledObject newObject(Handle<HandledObject> handle) {
+                    return new HandledObject(handle);
+                }
+            };
+            final HandledObject[] objects = new HandledObject[16];
+            Assert.assertNull(runInOtherThread(new Runnable() {
+                @Override
+                public void run() {
+                    recycler.get(objects, 0, objects.length);
+                    recycler.recycle(handlesOf(objects), 0, objects.length);
+                }
+            }));
+            Assert.assertEquals(reservedBefore + 16 * 1024, RecyclerMemoryBudget.reservedBytes());
+
+            // 结束的线程的Stack把预约还给全局，对象转移到共享池时由共享池重新预约，整个预算刚好够用
+            HandledObject[] reused = new HandledObject[16];
+            Assert.assertTrue(Arrays.asList(objects).contains(recycler.get()));
+            Assert.assertEquals(reservedBefore + 15 * 1024, RecyclerMemoryBudget.reservedBytes());
+            Assert.assertEquals(15, recycler.get(reused, 0, 15));
+            Assert.assertEquals(reservedBefore, RecyclerMemoryBudget.reservedBytes());
+        } finally {
+            RecyclerMemoryBudget.setMaxPooledBytes(0);
+        }
+    }
+
+    @Test
+    public void testStripedModeSharesAcrossThreads() throws Exception {
+        final RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(
+                RecyclerConfig.builder().poolMode(RecyclerByCopyed.PoolMode.STRIPED).maxCapacityPerThread(64).build()) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+        final HandledObject[] objects = new HandledObject[2];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                objects[0] = recycler.get();
+                objects[0].recycle();
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // 新线程不需要预热，直接拿到其他线程归还的对象
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                objects[1] = recycler.get();
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertSame(objects[0], objects[1]);
+
+        objects[1].recycle();
+        try {
+            objects[1].recycle();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            // 已经在分段池中
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testStripedModeDeprecatedRecycle() {
+        RecyclerConfig config = RecyclerConfig.builder()
+                .poolMode(RecyclerByCopyed.PoolMode.STRIPED).maxCapacityPerThread(64).build();
+        RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(config) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+        RecyclerByCopyed<HandledObject> other = new RecyclerByCopyed<HandledObject>(config) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+        HandledObject object = recycler.get();
+        // 不属于other的Handle不回收
+        Assert.assertFalse(other.recycle(object, object.handle));
+        Assert.assertTrue(recycler.recycle(object, object.handle));
+        Assert.assertSame(object, recycler.get());
+    }
+
+    @Test
+    public void testStripedModeMemoryBudget() {
+        long reservedBefore = RecyclerMemoryBudget.reservedBytes();
+        RecyclerMemoryBudget.setMaxPooledBytes(reservedBefore + 8 * 1024);
+        try {
+            RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(RecyclerConfig.builder()
+                    .poolMode(RecyclerByCopyed.PoolMode.STRIPED).maxCapacityPerThread(64)
+                    .estimatedObjectSize(1024).build()) {
+                @Override
+                protected HandledObject newObject(Handle<HandledObject> handle) {
+                    return new HandledObject(handle);
+                }
+            };
+            HandledObject[] objects = new HandledObject[16];
+            recycler.get(objects, 0, objects.length);
+            recycler.recycle(handlesOf(objects), 0, objects.length);
+            // 预算只够8个，其余的交给GC
+            Assert.assertEquals(reservedBefore + 8 * 1024, RecyclerMemoryBudget.reservedBytes());
+
+            Assert.assertEquals(8, recycler.get(objects, 0, objects.length));
+            Assert.assertEquals(reservedBefore, RecyclerMemoryBudget.reservedBytes());
+        } finally {
+            RecyclerMemoryBudget.setMaxPooledBytes(0);
+        }
+    }
+
+    @Test
+    public void testLeakDetection() throws Exception {
+        RecyclerLeakDetector.Level level = RecyclerLeakDetector.getLevel();
+        RecyclerLeakDetector.setLevel(RecyclerLeakDetector.Level.PARANOID);
+        try {
+            RecyclerByCopyed<HandledObject> recycler = newRecycler(256, 0);
+            recycler.get().recycle();
+            recycler.get();       //没有回收就丢掉了
+
+            // 泄漏只在之后的get()中被发现
+            for (int i = 0; i < 100 && recycler.leaks() == 0; i++) {
+                System.gc();
+                Thread.sleep(10);
+                recycler.get().recycle();
+            }
+            Assert.assertEquals(1, recycler.leaks());
+        } finally {
+            RecyclerLeakDetector.setLevel(level);
+        }
+    }
+
+    @Test
+    public void testDoubleRecycleReportsFirstRecycle() {
+        RecyclerLeakDetector.Level level = RecyclerLeakDetector.getLevel();
+        RecyclerLeakDetector.setLevel(RecyclerLeakDetector.Level.PARANOID);
+        try {
+            RecyclerByCopyed<HandledObject> recycler = newRecycler(256, 0);
+            HandledObject object = recycler.get();
+            object.recycle();
+            try {
+                object.recycle();
+                Assert.fail();
+            } catch (IllegalStateException expected) {
+                Assert.assertEquals("first recycled here", expected.getCause().getMessage());
+            }
+
+            // 再次借出后Tracker被替换，可以正常回收
+            RecyclerLeakDetector.setLevel(RecyclerLeakDetector.Level.DISABLED);
+            Assert.assertSame(object, recycler.get());
+            object.recycle();
+            Assert.assertEquals(0, recycler.leaks());
+        } finally {
+            RecyclerLeakDetector.setLevel(level);
+        }
+    }
+}
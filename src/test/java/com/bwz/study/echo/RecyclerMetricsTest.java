@@ -0,0 +1,128 @@
+package com.bwz.study.echo;
+
+import com.bwz.study.echo.RecyclerByCopyedTest.HandledObject;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class RecyclerMetricsTest {
+
+    //同一个类的回收器共享计数器，每个测试开始时清零
+    private static RecyclerByCopyed<HandledObject> newRecycler(RecyclerConfig.Builder config) {
+        RecyclerByCopyed<HandledObject> recycler = new RecyclerByCopyed<HandledObject>(
+                config.crossThreadMode(RecyclerByCopyed.CrossThreadMode.WEAK_ORDER_QUEUE).trimIntervalMillis(0).build()) {
+            @Override
+            protected HandledObject newObject(Handle<HandledObject> handle) {
+                return new HandledObject(handle);
+            }
+        };
+        // 开关是static final的，没有-Dio.netty.recycler.metrics=true时跳过
+        Assume.assumeNotNull(recycler.metrics());
+        recycler.metrics().reset();
+        return recycler;
+    }
+
+    private static HandledObject[] getAll(RecyclerByCopyed<HandledObject> recycler, int n) {
+        HandledObject[] objects = new HandledObject[n];
+        for (int i = 0; i < n; i++) {
+            objects[i] = recycler.get();
+        }
+        return objects;
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(RecyclerConfig.builder().ratio(1));
+        HandledObject object = recycler.get();
+        object.recycle();
+        Assert.assertSame(object, recycler.get());
+
+        RecyclerMetricsMXBean metrics = recycler.metrics();
+        Assert.assertEquals(1, metrics.getHits());
+        Assert.assertEquals(1, metrics.getMisses());
+        Assert.assertEquals(0.5, metrics.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void testDroppedByRatio() {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(RecyclerConfig.builder().ratio(4));
+        // 没有回收过的Handle每4个只留1个
+        for (HandledObject object : getAll(recycler, 8)) {
+            object.recycle();
+        }
+        Assert.assertEquals(6, recycler.metrics().getDroppedByRatio());
+        Assert.assertEquals(0, recycler.metrics().getDroppedByMaxCapacity());
+    }
+
+    @Test
+    public void testDroppedByMaxCapacity() {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(
+                RecyclerConfig.builder().ratio(1).maxCapacityPerThread(4));
+        for (HandledObject object : getAll(recycler, 8)) {
+            object.recycle();
+        }
+        Assert.assertEquals(4, recycler.metrics().getDroppedByMaxCapacity());
+        Assert.assertEquals(0, recycler.metrics().getDroppedByRatio());
+    }
+
+    @Test
+    public void testDelayedQueueRejected() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(
+                RecyclerConfig.builder().ratio(1).maxDelayedQueuesPerThread(0));
+        final HandledObject[] objects = getAll(recycler, 2);
+        // 不允许有WeakOrderQueue，第一次放入DUMMY，之后遇到DUMMY，都被丢弃
+        Assert.assertNull(RecyclerByCopyedTest.runInOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                for (HandledObject object : objects) {
+                    object.recycle();
+                }
+            }
+        }));
+        Assert.assertEquals(2, recycler.metrics().getDelayedQueueRejected());
+        Assert.assertNotSame(objects[0], recycler.get());
+        Assert.assertEquals(0, recycler.metrics().getTransfers());
+    }
+
+    @Test
+    public void testTransferSizes() throws Exception {
+        RecyclerByCopyed<HandledObject> recycler = newRecycler(RecyclerConfig.builder().ratio(1));
+        final HandledObject[] objects = getAll(recycler, 10);
+        Assert.assertNull(RecyclerByCopyedTest.runInOtherThread(new Runnable() {
+            @Override
+            public void run() {
+                for (HandledObject object : objects) {
+                    object.recycle();
+                }
+            }
+        }));
+        // 一次scavenge把WeakOrderQueue中的10个一起转移回Stack
+        recycler.get();
+        RecyclerMetricsMXBean metrics = recycler.metrics();
+        Assert.assertEquals(1, metrics.getTransfers());
+        Assert.assertEquals(10, metrics.getTransferredHandles());
+        Assert.assertEquals(10, metrics.getMaxTransferBatch());
+        Assert.assertEquals(10.0, metrics.getAverageTransferBatch(), 0.0);
+        Assert.assertEquals(1, metrics.getHits());
+    }
+
+    @Test
+    public void testRegisteredOncePerClass() throws Exception {
+        RecyclerByCopyed<HandledObject> first = newRecycler(RecyclerConfig.builder());
+        RecyclerByCopyed<HandledObject> second = newRecycler(RecyclerConfig.builder());
+        Assert.assertSame(first.metrics(), second.metrics());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = RecyclerMetrics.objectName(first.getClass().getName());
+        Assert.assertTrue(server.isRegistered(name));
+        Assert.assertEquals(1, server.queryNames(name, null).size());
+
+        first.get();
+        second.get();
+        Assert.assertEquals(2L, server.getAttribute(name, "Misses"));
+    }
+}
@@ -0,0 +1,95 @@
+package com.bwz.study.echo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个请求一个线程的场景：每次调用启动THREADS个短生命周期线程，每个线程借出并归还OBJECTS_PER_THREAD个对象后退出，
+ * 同时最多有CONCURRENCY个线程在运行。对比THREAD_LOCAL(每个新线程都从空的Stack开始)和STRIPED两种模式，
+ * 结果(us/op)是每个对象的平均成本，-prof gc的gc.alloc.rate.norm可以看出对象有没有被复用。
+ *
+ * 运行: mvn -Pjmh test-compile exec:exec -Djmh.args="RecyclerShortLivedThreadBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecyclerShortLivedThreadBenchmark {
+
+    static final int THREADS = 10000;
+    static final int CONCURRENCY = 64;
+    static final int OBJECTS_PER_THREAD = 8;
+
+    @Param({"THREAD_LOCAL", "STRIPED"})
+    public RecyclerByCopyed.PoolMode poolMode;
+
+    private RecyclerByCopyed<RecyclerBenchmark.Pooled> recycler;
+
+    @Setup
+    public void setup() {
+        recycler = new RecyclerByCopyed<RecyclerBenchmark.Pooled>(RecyclerConfig.builder()
+                .poolMode(poolMode).maxCapacityPerThread(4096).ratio(1).build()) {
+            @Override
+            protected RecyclerBenchmark.Pooled newObject(Handle<RecyclerBenchmark.Pooled> handle) {
+                return new RecyclerBenchmark.Pooled(handle, null);
+            }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(THREADS * OBJECTS_PER_THREAD)
+    public void shortLivedThreads() throws InterruptedException {
+        final RecyclerByCopyed<RecyclerBenchmark.Pooled> recycler = this.recycler;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                RecyclerBenchmark.Pooled[] objects = new RecyclerBenchmark.Pooled[OBJECTS_PER_THREAD];
+                for (int i = 0; i < objects.length; i++) {
+                    objects[i] = recycler.get();
+                }
+                for (RecyclerBenchmark.Pooled pooled : objects) {
+                    pooled.copyedHandle.recycle(pooled);
+                }
+            }
+        };
+        Thread[] running = new Thread[CONCURRENCY];
+        for (int i = 0; i < THREADS; i++) {
+            Thread previous = running[i % CONCURRENCY];
+            if (previous != null) {
+                previous.join();
+            }
+            Thread thread = new Thread(task);
+            thread.start();
+            running[i % CONCURRENCY] = thread;
+        }
+        for (Thread thread : running) {
+            if (thread != null) {
+                thread.join();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(RecyclerShortLivedThreadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,100 @@
+package com.bwz.study.launcher;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ServerChannel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+public class ServerLauncherTest {
+    //secureChat用SelfSignedCertificate，新版本JDK上要有BouncyCastle才能生成证书，这里不启动
+    private static final String[] SERVICES = { "echo", "chat", "syslog" };
+
+    @Before
+    public void setUp() {
+        // 都用临时端口，不和本机已经启动的服务冲突
+        for (String service : SERVICES) {
+            System.setProperty("launcher." + service + "Port", "0");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (String service : SERVICES) {
+            System.clearProperty("launcher." + service + "Port");
+        }
+    }
+
+    @Test
+    public void testServicesShareGroupsAndAllocator() throws Exception {
+        ServerLauncher launcher = new ServerLauncher(2);
+        try {
+            for (String service : SERVICES) {
+                launcher.start(service);
+            }
+            List<Channel> channels = launcher.channels();
+            Assert.assertEquals(SERVICES.length, channels.size());
+            for (Channel channel : channels) {
+                // TCP服务的ServerChannel在boss中，syslog的DatagramChannel直接在worker中
+                Assert.assertSame(channel instanceof ServerChannel ? launcher.bossGroup() : launcher.workerGroup(),
+                        channel.eventLoop().parent());
+                Assert.assertSame(launcher.allocator(), channel.config().getOption(ChannelOption.ALLOCATOR));
+            }
+
+            // echo确实在服务
+            int echoPort = ((InetSocketAddress) channels.get(0).localAddress()).getPort();
+            try (Socket socket = new Socket("127.0.0.1", echoPort)) {
+                socket.setSoTimeout(5000);
+                OutputStream out = socket.getOutputStream();
+                out.write(new byte[] { 'p', 'i', 'n', 'g' });
+                out.flush();
+                InputStream in = socket.getInputStream();
+                byte[] echoed = new byte[4];
+                for (int n = 0; n < echoed.length; ) {
+                    int read = in.read(echoed, n, echoed.length - n);
+                    Assert.assertTrue(read > 0);
+                    n += read;
+                }
+                Assert.assertEquals("ping", new String(echoed, "US-ASCII"));
+            }
+        } finally {
+            launcher.shutdown();
+        }
+        Assert.assertTrue(launcher.bossGroup().isTerminated());
+        Assert.assertTrue(launcher.workerGroup().isTerminated());
+        Assert.assertTrue(launcher.channels().isEmpty());
+    }
+
+    @Test
+    public void testShutdownIsIdempotent() throws Exception {
+        final ServerLauncher launcher = new ServerLauncher(1);
+        launcher.start("echo");
+        Channel channel = launcher.channels().get(0);
+        // 和shutdown hook同时关闭，两次调用都要等到关闭完成才返回
+        Thread hook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    launcher.shutdown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        hook.start();
+        launcher.shutdown();
+        Assert.assertTrue(launcher.workerGroup().isTerminated());
+        hook.join();
+        launcher.shutdown();
+        Assert.assertFalse(channel.isOpen());
+        Assert.assertTrue(launcher.bossGroup().isTerminated());
+    }
+}
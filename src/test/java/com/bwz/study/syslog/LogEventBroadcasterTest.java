@@ -0,0 +1,126 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class LogEventBroadcasterTest {
+    private static final InetSocketAddress TARGET = new InetSocketAddress("127.0.0.1", LogEventReceiver.DEFAULT_PORT);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    //执行一次轮询，把发出的数据报解码
+    private static List<LogEvent> pollAndDecode(EmbeddedChannel channel, boolean batch) {
+        channel.runPendingTasks();
+        EmbeddedChannel decoder = new EmbeddedChannel(new LogEventDecoder());
+        DatagramPacket packet;
+        while ((packet = channel.readOutbound()) != null) {
+            Assert.assertEquals(TARGET, packet.recipient());
+            Assert.assertTrue(packet.content().readableBytes() <= LogEventBroadcaster.DEFAULT_MAX_PAYLOAD);
+            Assert.assertEquals(batch, LogEventBatch.isBatch(packet.content()));
+            decoder.writeInbound(LogEventDecoderTest.packet(packet.content()));
+        }
+        List<LogEvent> events = new ArrayList<LogEvent>();
+        LogEvent event;
+        while ((event = decoder.readInbound()) != null) {
+            events.add(event);
+        }
+        Assert.assertFalse(decoder.finish());
+        return events;
+    }
+
+    private void assertTailed(EmbeddedChannel channel, boolean batch) throws Exception {
+        Path file = folder.newFile("app-" + batch + ".log").toPath();
+        LogFileTailer tailer = new LogFileTailer(file, true);
+        LogEventBroadcaster.startTailing(channel, Collections.singletonList(tailer), TARGET, batch);
+
+        LogFileTailerTest.append(file, "first\nsecond\n");
+        List<LogEvent> events = pollAndDecode(channel, batch);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(file.toString(), events.get(0).getLogfile());
+        Assert.assertEquals("first", events.get(0).getMsg());
+        Assert.assertEquals("second", events.get(1).getMsg());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testTailPackedLines() throws Exception {
+        assertTailed(new EmbeddedChannel(new ChannelInboundHandlerAdapter()), false);
+    }
+
+    @Test
+    public void testTailBatches() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventBatchEncoder(TARGET, true));
+        assertTailed(channel, true);
+    }
+
+    @Sharable
+    private static final class Collector extends ChannelInboundHandlerAdapter {
+        final List<String> events = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            PooledLogEvent event = (PooledLogEvent) msg;
+            events.add(event.getLogfile() + ":" + event.getMsg());
+            event.release();
+        }
+    }
+
+    @Test
+    public void testTailToReceiver() throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Collector collector = new Collector();
+        Transport transport = Transport.best();
+        EventLoopGroup group = transport.newEventLoopGroup(2);
+        try {
+            new LogEventReceiver(port, 1, collector).bind(transport, group, ByteBufAllocator.DEFAULT).get(0).sync();
+            Path file = folder.newFile("app.log").toPath();
+            Channel channel = new Bootstrap().group(group)
+                    .channel(transport.datagramChannel())
+                    .handler(new ChannelInboundHandlerAdapter())
+                    .bind(0).sync().channel();
+            LogEventBroadcaster.startTailing(channel, Collections.singletonList(new LogFileTailer(file, true)),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+            LogFileTailerTest.append(file, "first\nsecond\n");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (collector.events.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(Arrays.asList(file + ":first", file + ":second"), collector.events);
+            channel.close().sync();
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchRequiresEncoder() {
+        LogEventBroadcaster.startTailing(new EmbeddedChannel(), Collections.<LogFileTailer>emptyList(), TARGET, true);
+    }
+}
@@ -0,0 +1,196 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogEventDecoderTest {
+
+    static DatagramPacket packet(ByteBuf content) {
+        return new DatagramPacket(content, new InetSocketAddress(0), new InetSocketAddress("127.0.0.1", 514));
+    }
+
+    @Test
+    public void testDecode() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder());
+        channel.writeInbound(packet(Unpooled.copiedBuffer("/var/log/messages:启动完成", CharsetUtil.UTF_8)));
+        LogEvent event = channel.readInbound();
+        Assert.assertEquals("/var/log/messages", event.getLogfile());
+        Assert.assertEquals("启动完成", event.getMsg());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testMultiLineMsgIsOneEvent() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder());
+        String trace = "java.lang.IllegalStateException: boom\n\tat a.B.c(B.java:1)\n";
+        channel.writeInbound(packet(Unpooled.copiedBuffer("app.log:" + trace, CharsetUtil.UTF_8)));
+        LogEvent event = channel.readInbound();
+        Assert.assertEquals("app.log", event.getLogfile());
+        Assert.assertEquals(trace, event.getMsg());
+        Assert.assertNull(channel.readInbound());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testTailerDatagramIsSplit() {
+        for (boolean zeroCopy : new boolean[] { false, true }) {
+            EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder(zeroCopy));
+            ByteBuf content = Unpooled.buffer().writeByte(LogEventDecoder.LINES_MARKER)
+                    .writeBytes("a.log:one\nb.log:two\nno separator\n".getBytes(CharsetUtil.UTF_8));
+            channel.writeInbound(packet(content));
+            List<LogEvent> events = new ArrayList<LogEvent>();
+            Object event;
+            while ((event = channel.readInbound()) != null) {
+                if (event instanceof PooledLogEvent) {
+                    events.add(((PooledLogEvent) event).toLogEvent());
+                    ((PooledLogEvent) event).release();
+                } else {
+                    events.add((LogEvent) event);
+                }
+            }
+            // 没有分隔符的一行被丢弃
+            Assert.assertEquals(2, events.size());
+            Assert.assertEquals("a.log", events.get(0).getLogfile());
+            Assert.assertEquals("one", events.get(0).getMsg());
+            Assert.assertEquals("b.log", events.get(1).getLogfile());
+            Assert.assertEquals("two", events.get(1).getMsg());
+            Assert.assertEquals(0, content.refCnt());
+            Assert.assertFalse(channel.finish());
+        }
+    }
+
+    @Test
+    public void testZeroCopyDecode() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder(true));
+        ByteBuf content = Unpooled.copiedBuffer("/var/log/messages:启动完成", CharsetUtil.UTF_8);
+        channel.writeInbound(packet(content));
+        PooledLogEvent event = channel.readInbound();
+
+        // 数据报被decoder释放，内容由event持有
+        Assert.assertEquals(1, content.refCnt());
+        Assert.assertEquals(514, event.getSource().getPort());
+        Assert.assertEquals("/var/log/messages", event.getLogfile());
+        Assert.assertEquals("启动完成", event.getMsg());
+        Assert.assertEquals("/var/log/messages", event.logfileBytes().toString(CharsetUtil.UTF_8));
+
+        Assert.assertTrue(event.release());
+        Assert.assertEquals(0, content.refCnt());
+
+        // 对象被复用
+        channel.writeInbound(packet(Unpooled.copiedBuffer("a:b", CharsetUtil.UTF_8)));
+        PooledLogEvent reused = channel.readInbound();
+        Assert.assertSame(event, reused);
+        Assert.assertEquals(1, reused.refCnt());
+        Assert.assertEquals("a", reused.getLogfile());
+        Assert.assertEquals("b", reused.getMsg());
+        reused.release();
+        Assert.assertFalse(channel.finish());
+    }
+
+    private static List<DatagramPacket> encodeBatches(boolean compress, List<LogEvent> events) {
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new LogEventBatchEncoder(new InetSocketAddress("127.0.0.1", 514), compress));
+        for (LogEvent event : events) {
+            channel.write(event);
+        }
+        channel.flush();
+        List<DatagramPacket> packets = new ArrayList<DatagramPacket>();
+        DatagramPacket packet;
+        while ((packet = channel.readOutbound()) != null) {
+            Assert.assertTrue(packet.content().readableBytes() <= LogEventBroadcaster.DEFAULT_MAX_PAYLOAD);
+            packets.add(packet);
+        }
+        Assert.assertFalse(channel.finish());
+        return packets;
+    }
+
+    private static List<LogEvent> decodeAll(List<DatagramPacket> packets) {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder());
+        for (DatagramPacket packet : packets) {
+            channel.writeInbound(packet(packet.content()));
+        }
+        List<LogEvent> events = new ArrayList<LogEvent>();
+        LogEvent event;
+        while ((event = channel.readInbound()) != null) {
+            events.add(event);
+        }
+        Assert.assertFalse(channel.finish());
+        return events;
+    }
+
+    private static int countAndRelease(List<DatagramPacket> packets) {
+        for (DatagramPacket packet : packets) {
+            packet.release();
+        }
+        return packets.size();
+    }
+
+    private static List<LogEvent> chattyEvents(int n) {
+        List<LogEvent> events = new ArrayList<LogEvent>();
+        for (int i = 0; i < n; i++) {
+            events.add(new LogEvent("/var/log/app" + (i % 3) + ".log",
+                    "2018-03-01 12:00:00 INFO [worker-" + (i % 8) + "] request " + i + " completed in 12ms"));
+        }
+        return events;
+    }
+
+    @Test
+    public void testBatchRoundTrip() {
+        List<LogEvent> events = chattyEvents(300);
+        events.add(new LogEvent("C:\\logs\\app.log", "带冒号的文件名: ok"));
+        for (boolean compress : new boolean[] { false, true }) {
+            List<LogEvent> decoded = decodeAll(encodeBatches(compress, events));
+            Assert.assertEquals(events.size(), decoded.size());
+            for (int i = 0; i < events.size(); i++) {
+                Assert.assertEquals(events.get(i).getLogfile(), decoded.get(i).getLogfile());
+                Assert.assertEquals(events.get(i).getMsg(), decoded.get(i).getMsg());
+                Assert.assertEquals(514, decoded.get(i).getSource().getPort());
+            }
+        }
+    }
+
+    @Test
+    public void testBatchPacksMoreEventsPerDatagram() {
+        int plain = countAndRelease(encodeBatches(false, chattyEvents(1000)));
+        int compressed = countAndRelease(encodeBatches(true, chattyEvents(1000)));
+        // 旧格式一个事件一个数据报
+        Assert.assertTrue("plain: " + plain, plain * 10 < 1000);
+        Assert.assertTrue("plain: " + plain + ", compressed: " + compressed, compressed * 3 < plain);
+    }
+
+    @Test
+    public void testZeroCopyBatchDecode() {
+        List<DatagramPacket> packets = encodeBatches(true, chattyEvents(20));
+        Assert.assertEquals(1, packets.size());
+        ByteBuf content = packets.get(0).content();
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder(true));
+        channel.writeInbound(packet(content));
+        for (int i = 0; i < 20; i++) {
+            PooledLogEvent event = channel.readInbound();
+            Assert.assertEquals("/var/log/app" + (i % 3) + ".log", event.getLogfile());
+            Assert.assertEquals("/var/log/app" + (i % 3) + ".log", event.logfileBytes().toString(CharsetUtil.UTF_8));
+            Assert.assertTrue(event.getMsg().endsWith("request " + i + " completed in 12ms"));
+            event.release();
+        }
+        Assert.assertEquals(0, content.refCnt());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testMalformedBatchIsDropped() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventDecoder());
+        ByteBuf content = Unpooled.wrappedBuffer(new byte[] { 0, 'L', 9, 0, 0, 0 });
+        channel.writeInbound(packet(content));
+        Assert.assertEquals(0, content.refCnt());
+        Assert.assertFalse(channel.finish());
+    }
+}
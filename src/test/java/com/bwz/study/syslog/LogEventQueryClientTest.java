@@ -0,0 +1,97 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class LogEventQueryClientTest {
+    private static final InetSocketAddress A = new InetSocketAddress("127.0.0.1", 8081);
+    private static final InetSocketAddress B = new InetSocketAddress("127.0.0.1", 8082);
+    private static final InetSocketAddress C = new InetSocketAddress("127.0.0.1", 8083);
+
+    static void reply(EmbeddedChannel channel, InetSocketAddress sender, String content) {
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(content, CharsetUtil.UTF_8),
+                new InetSocketAddress("127.0.0.1", 40000), sender));
+    }
+
+    @Test
+    public void testScatterGatherUntilQuorum() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LogEventQueryClient client = new LogEventQueryClient(channel);
+        final List<String> lines = new ArrayList<String>();
+        LogEventQueryClient.Listener listener = new LogEventQueryClient.Listener() {
+            @Override
+            public void onResult(InetSocketAddress source, String line) {
+                lines.add(source.getPort() + " " + line);
+            }
+        };
+
+        Future<LogEventQueryClient.Result> first = client.query(new LogEventQuery(0, 100, "app.log"),
+                Arrays.asList(A, B, C), 2, 1, TimeUnit.MINUTES, listener);
+        // EmbeddedChannel的write会顺带执行排队的任务，每个查询之后都执行一次，保证请求按查询的顺序发出
+        channel.runPendingTasks();
+        Future<LogEventQueryClient.Result> second = client.query(new LogEventQuery(0, 100, null),
+                Arrays.asList(A), 1, 1, TimeUnit.MINUTES, listener);
+        channel.runPendingTasks();
+
+        List<String> requests = new ArrayList<String>();
+        DatagramPacket packet;
+        while ((packet = channel.readOutbound()) != null) {
+            requests.add(packet.recipient().getPort() + " " + packet.content().toString(CharsetUtil.UTF_8));
+            packet.release();
+        }
+        Assert.assertEquals(Arrays.asList("8081 query 0 0 100 app.log", "8082 query 0 0 100 app.log",
+                "8083 query 0 0 100 app.log", "8081 query 1 0 100"), requests);
+
+        // 结果按id分给各自的查询，边收边交给listener
+        reply(channel, A, "0\n1\tapp.log\ta1\n2\tapp.log\ta2\n");
+        reply(channel, B, "1\n3\tother.log\tb1\n");
+        reply(channel, A, "0\nend 2\n");
+        Assert.assertEquals(Arrays.asList("8081 1\tapp.log\ta1", "8081 2\tapp.log\ta2", "8082 3\tother.log\tb1"),
+                lines);
+        Assert.assertFalse(first.isDone());
+
+        reply(channel, B, "0\nend 0\n");
+        Assert.assertTrue(first.isSuccess());
+        Assert.assertEquals(2, first.getNow().responders().size());
+        Assert.assertEquals(2, first.getNow().lines());
+        Assert.assertFalse(first.getNow().isTimedOut());
+
+        // 已经完成的查询的迟到回复被丢弃
+        reply(channel, C, "0\n9\tapp.log\tlate\n");
+        Assert.assertEquals(3, lines.size());
+        Assert.assertFalse(second.isDone());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        LogEventQueryClient client = new LogEventQueryClient(channel);
+        Future<LogEventQueryClient.Result> future = client.query(new LogEventQuery(0, 100, null),
+                Arrays.asList(A, B), 2, 10, TimeUnit.MILLISECONDS, new LogEventQueryClient.Listener() {
+                    @Override
+                    public void onResult(InetSocketAddress source, String line) {
+                    }
+                });
+        channel.runPendingTasks();
+        reply(channel, A, "0\nend 0\n");
+        Thread.sleep(50);
+        channel.runScheduledPendingTasks();
+
+        Assert.assertTrue(future.isSuccess());
+        Assert.assertTrue(future.getNow().isTimedOut());
+        Assert.assertEquals(1, future.getNow().responders().size());
+        channel.finishAndReleaseAll();
+    }
+}
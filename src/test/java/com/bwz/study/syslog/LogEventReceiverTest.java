@@ -0,0 +1,85 @@
+package com.bwz.study.syslog;
+
+import com.bwz.study.transport.Transport;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+
+public class LogEventReceiverTest {
+
+    @Test
+    public void testShardCountsAndDropsTruncated() {
+        LogEventReceiver.Shard shard = new LogEventReceiver.Shard(0);
+        EmbeddedChannel channel = new EmbeddedChannel(shard, new LogEventDecoder(true));
+
+        channel.writeInbound(LogEventDecoderTest.packet(Unpooled.copiedBuffer("a:b", CharsetUtil.UTF_8)));
+        channel.writeInbound(LogEventDecoderTest.packet(
+                Unpooled.wrappedBuffer(new byte[LogEventReceiver.DEFAULT_MAX_DATAGRAM_SIZE])));
+
+        PooledLogEvent event = channel.readInbound();
+        Assert.assertEquals("a", event.getLogfile());
+        event.release();
+        Assert.assertNull(channel.readInbound());
+
+        Assert.assertEquals(2, shard.packets());
+        Assert.assertEquals(3 + LogEventReceiver.DEFAULT_MAX_DATAGRAM_SIZE, shard.bytes());
+        Assert.assertEquals(1, shard.truncated());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testReusePortShards() throws Exception {
+        Assume.assumeTrue(Transport.best() == Transport.EPOLL);
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        LogEventReceiver receiver = new LogEventReceiver(port, 2, new LogEventReceiver.DiscardHandler());
+        EventLoopGroup group = Transport.EPOLL.newEventLoopGroup(2);
+        try {
+            for (ChannelFuture future : receiver.bind(Transport.EPOLL, group, ByteBufAllocator.DEFAULT)) {
+                future.sync();
+            }
+            List<LogEventReceiver.Shard> shards = receiver.shards();
+            Assert.assertEquals(2, shards.size());
+
+            // 两个shard在/proc/net/udp中各有一行，按inode对应
+            Map<Long, Long> kernelDrops = LogEventReceiver.kernelDrops(port);
+            Assert.assertEquals(2, kernelDrops.size());
+            for (LogEventReceiver.Shard shard : shards) {
+                Assert.assertTrue(kernelDrops.containsKey(shard.inode()));
+            }
+
+            // 每个数据报从不同的源端口发出，内核按四元组散列到两个shard
+            byte[] data = "app.log:hello".getBytes(CharsetUtil.UTF_8);
+            int sent = 64;
+            for (int i = 0; i < sent; i++) {
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    socket.send(new DatagramPacket(data, data.length, InetAddress.getLoopbackAddress(), port));
+                }
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (shards.get(0).packets() + shards.get(1).packets() < sent && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(sent, shards.get(0).packets() + shards.get(1).packets());
+            Assert.assertTrue(shards.get(0).packets() > 0);
+            Assert.assertTrue(shards.get(1).packets() > 0);
+            Assert.assertTrue(receiver.statsString().contains("kernelDrops: 0)"));
+        } finally {
+            group.shutdownGracefully().sync();
+        }
+    }
+}
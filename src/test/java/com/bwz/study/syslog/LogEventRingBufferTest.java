@@ -0,0 +1,108 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LogEventRingBufferTest {
+
+    //第一个事件在latch打开之前一直阻塞消费线程
+    static final class BlockingConsumer implements LogEventRingBuffer.EventConsumer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Object> events = new CopyOnWriteArrayList<Object>();
+
+        @Override
+        public void consume(Object event) throws Exception {
+            started.countDown();
+            latch.await();
+            events.add(event);
+        }
+    }
+
+    private static List<Object> fill(LogEventRingBuffer.OverflowPolicy policy, int expectedDropped) throws Exception {
+        BlockingConsumer consumer = new BlockingConsumer();
+        LogEventRingBuffer ringBuffer = LogEventRingBuffer.builder(consumer)
+                .capacity(4)
+                .overflowPolicy(policy)
+                .waitStrategy(LogEventRingBuffer.WaitStrategy.YIELD)
+                .build();
+        ringBuffer.offer(0);
+        Assert.assertTrue(consumer.started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 6; i++) {
+            ringBuffer.offer(i);
+        }
+        Assert.assertEquals(4, ringBuffer.depth());
+        Assert.assertEquals(expectedDropped, ringBuffer.dropped());
+        consumer.latch.countDown();
+        ringBuffer.close();
+        Assert.assertEquals(0, ringBuffer.depth());
+        Assert.assertEquals(5, ringBuffer.consumed());
+        return consumer.events;
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        Assert.assertEquals(Arrays.<Object>asList(0, 1, 2, 3, 4), fill(LogEventRingBuffer.OverflowPolicy.DROP_NEWEST, 2));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Assert.assertEquals(Arrays.<Object>asList(0, 3, 4, 5, 6), fill(LogEventRingBuffer.OverflowPolicy.DROP_OLDEST, 2));
+    }
+
+    @Test
+    public void testManyConsumers() throws Exception {
+        final List<Object> events = new CopyOnWriteArrayList<Object>();
+        LogEventRingBuffer ringBuffer = LogEventRingBuffer.builder(new LogEventRingBuffer.EventConsumer() {
+            @Override
+            public void consume(Object event) {
+                events.add(event);
+            }
+        }).capacity(64).consumers(4).waitStrategy(LogEventRingBuffer.WaitStrategy.BUSY_SPIN).build();
+        int offered = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (ringBuffer.offer(i)) {
+                offered ++;
+            }
+        }
+        ringBuffer.close();
+        Assert.assertEquals(100000, offered + ringBuffer.dropped());
+        Assert.assertEquals(offered, ringBuffer.consumed());
+        Assert.assertEquals(offered, events.size());
+    }
+
+    @Test
+    public void testHandlerHandsOffAndReleases() throws Exception {
+        final List<Object> contents = new CopyOnWriteArrayList<Object>();
+        LogEventRingBuffer ringBuffer = LogEventRingBuffer.builder(new LogEventRingBuffer.EventConsumer() {
+            @Override
+            public void consume(Object event) {
+                contents.add(((DatagramPacket) event).content().toString(CharsetUtil.UTF_8));
+            }
+        }).build();
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventHandler(ringBuffer));
+        ByteBuf content = Unpooled.copiedBuffer("结果:hello", CharsetUtil.UTF_8);
+        channel.writeInbound(LogEventDecoderTest.packet(content));
+        // 广播查询会有多个回复，收到一个之后channel不能关闭
+        Assert.assertTrue(channel.isOpen());
+        ByteBuf second = Unpooled.copiedBuffer("结果:world", CharsetUtil.UTF_8);
+        channel.writeInbound(LogEventDecoderTest.packet(second));
+        Assert.assertFalse(channel.finish());
+        ringBuffer.close();
+
+        Assert.assertEquals(Arrays.<Object>asList("结果:hello", "结果:world"), contents);
+        Assert.assertEquals(0, content.refCnt());
+        Assert.assertEquals(0, second.refCnt());
+    }
+}
@@ -0,0 +1,166 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class LogEventStatsTest {
+    private static final InetSocketAddress HOST_A = new InetSocketAddress("10.0.0.1", 514);
+    private static final InetSocketAddress HOST_B = new InetSocketAddress("10.0.0.2", 514);
+
+    @Test
+    public void testTopK() {
+        LogEventStats stats = new LogEventStats(2, 1000, false);
+        for (int i = 0; i < 1000; i++) {
+            stats.record("hot.log", HOST_A, 10);
+        }
+        for (int i = 0; i < 100; i++) {
+            stats.record("warm.log", HOST_B, 10);
+        }
+        for (int i = 0; i < 50; i++) {
+            stats.record("cold" + i + ".log", HOST_B, 10);
+        }
+        stats.tick(System.currentTimeMillis());
+        stats.record(new LogEvent(HOST_A, 0, "hot.log", "消息"));
+
+        LogEventStats.Snapshot snapshot = stats.snapshot();
+        List<LogEventStats.KeyStats> top = snapshot.topLogfiles();
+        Assert.assertEquals(2, top.size());
+        Assert.assertEquals("hot.log", top.get(0).key());
+        Assert.assertEquals(1001, top.get(0).events());
+        Assert.assertTrue(top.get(0).estimatedEvents() >= 1001);
+        Assert.assertEquals("warm.log", top.get(1).key());
+        Assert.assertTrue(top.get(1).estimatedEvents() >= 100);
+
+        Assert.assertEquals("10.0.0.1", snapshot.topSources().get(0).key());
+        Assert.assertEquals(1001, snapshot.topSources().get(0).events());
+        Assert.assertEquals(150, snapshot.topSources().get(1).events());
+        stats.close();
+    }
+
+    @Test
+    public void testSlidingWindows() {
+        long t0 = System.currentTimeMillis();
+        LogEventStats stats = new LogEventStats(10, 1000, false);
+        long tick = LogEventStats.TICK_MILLIS;
+        for (int i = 0; i < 100; i++) {
+            stats.record("app.log", HOST_A, 10);
+        }
+        stats.tick(t0 + tick);
+        for (int i = 0; i < 200; i++) {
+            stats.record("app.log", HOST_A, 10);
+        }
+        stats.tick(t0 + 2 * tick);
+        stats.tick(t0 + 3 * tick);
+        stats.tick(t0 + 4 * tick);
+
+        // 1分钟的窗口从第1个tick开始，5分钟和15分钟的窗口还不满，从启动时开始
+        LogEventStats.Snapshot snapshot = stats.snapshot(t0 + 4 * tick);
+        Assert.assertEquals(200 * 1000.0 / (3 * tick), snapshot.eventRate(1), 0.01);
+        Assert.assertEquals(2000 * 1000.0 / (3 * tick), snapshot.byteRate(1), 0.1);
+        Assert.assertEquals(300 * 1000.0 / (4 * tick), snapshot.eventRate(5), 0.01);
+        Assert.assertEquals(snapshot.eventRate(5), snapshot.eventRate(15), 0.0);
+        Assert.assertEquals(snapshot.eventRate(1), snapshot.topLogfiles().get(0).eventRate(1), 0.0);
+        stats.close();
+    }
+
+    @Test
+    public void testUntrackedKeys() {
+        LogEventStats stats = new LogEventStats(1, 2, false);
+        stats.record("a.log", HOST_A, 1);
+        stats.record("b.log", HOST_A, 1);
+        for (int i = 0; i < 100; i++) {
+            stats.record("heavy.log", HOST_A, 1);
+        }
+        stats.tick(System.currentTimeMillis());
+        LogEventStats.KeyStats heavy = stats.snapshot().topLogfiles().get(0);
+        Assert.assertEquals("heavy.log", heavy.key());
+        Assert.assertTrue(heavy.estimatedEvents() >= 100);
+        Assert.assertEquals(-1, heavy.events());
+        Assert.assertEquals(-1, heavy.eventRate(1), 0.0);
+        stats.close();
+    }
+
+    @Test
+    public void testPooledEventKeys() {
+        LogEventStats stats = new LogEventStats(2, 1000, false);
+        for (int i = 0; i < 3; i++) {
+            ByteBuf content = Unpooled.directBuffer().writeBytes("中文.log:消息".getBytes(CharsetUtil.UTF_8));
+            PooledLogEvent event = PooledLogEvent.newInstance(HOST_A, 0, content,
+                    "中文.log".getBytes(CharsetUtil.UTF_8).length);
+            stats.record(event);
+            // 统计不持有事件的内容
+            event.release();
+            Assert.assertEquals(0, content.refCnt());
+        }
+        stats.record(new LogEvent(HOST_A, 0, "中文.log", "消息"));
+        stats.tick(System.currentTimeMillis());
+        LogEventStats.KeyStats top = stats.snapshot().topLogfiles().get(0);
+        Assert.assertEquals("中文.log", top.key());
+        Assert.assertEquals(4, top.events());
+        stats.close();
+    }
+
+    @Test
+    public void testCandidatesAreCapped() {
+        LogEventStats stats = new LogEventStats(2, 10, false);
+        // 还没有tick，门槛是0，每个新key都超过门槛
+        for (int i = 0; i < 1000; i++) {
+            stats.record("app" + i + ".log", HOST_A, 1);
+        }
+        Assert.assertEquals(2 * LogEventStats.CANDIDATES_PER_TOP_K, stats.logfileCandidates());
+        stats.tick(System.currentTimeMillis());
+        Assert.assertEquals(2, stats.logfileCandidates());
+        stats.close();
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        final LogEventStats stats = new LogEventStats(4, 1000, false);
+        final int threads = 4;
+        final int perThread = 50000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        stats.record("app" + (i % 4) + ".log", HOST_A, 1);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        // 接收的同时可以取快照
+        for (int i = 0; i < 10; i++) {
+            stats.tick(System.currentTimeMillis());
+            stats.snapshot();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        stats.tick(System.currentTimeMillis());
+
+        LogEventStats.Snapshot snapshot = stats.snapshot();
+        Assert.assertEquals(4, snapshot.topLogfiles().size());
+        for (LogEventStats.KeyStats key : snapshot.topLogfiles()) {
+            Assert.assertEquals(threads * perThread / 4, key.events());
+            Assert.assertTrue(key.estimatedEvents() >= key.events());
+        }
+        Assert.assertEquals(threads * perThread, snapshot.topSources().get(0).events());
+        stats.close();
+    }
+}
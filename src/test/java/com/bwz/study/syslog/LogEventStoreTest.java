@@ -0,0 +1,300 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+public class LogEventStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static List<LogEvent> readAll(LogEventStore store) {
+        List<LogEvent> events = new ArrayList<LogEvent>();
+        for (LogSegment segment : store.segments()) {
+            for (int p = 0; p < segment.writePosition(); p = segment.next(p)) {
+                events.add(segment.read(p));
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testAppendAndReopen() throws Exception {
+        Path dir = folder.newFolder("store").toPath();
+        InetSocketAddress source = new InetSocketAddress("127.0.0.1", 5140);
+        LogEventStore store = LogEventStore.builder(dir).fsyncPolicy(LogEventStore.FsyncPolicy.EVERY_BATCH).build();
+
+        ByteBuf content = Unpooled.copiedBuffer("/var/log/app.log:pooled", CharsetUtil.UTF_8);
+        PooledLogEvent pooled = PooledLogEvent.newInstance(source, 1000, content, "/var/log/app.log".length());
+        Assert.assertTrue(store.offer(pooled));
+        Assert.assertTrue(store.offer(new LogEvent(null, 2000, "/var/log/中文.log", "消息")));
+        store.close();
+
+        Assert.assertEquals(0, content.refCnt());
+        Assert.assertEquals(2, store.appended());
+        Assert.assertFalse(store.offer(new LogEvent("late", "dropped")));
+        Assert.assertEquals(1, store.dropped());
+
+        store = LogEventStore.builder(dir).build();
+        List<LogEvent> events = readAll(store);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals(source, events.get(0).getSource());
+        Assert.assertEquals(1000, events.get(0).getReceived());
+        Assert.assertEquals("/var/log/app.log", events.get(0).getLogfile());
+        Assert.assertEquals("pooled", events.get(0).getMsg());
+        Assert.assertNull(events.get(1).getSource());
+        Assert.assertEquals("/var/log/中文.log", events.get(1).getLogfile());
+        Assert.assertEquals("消息", events.get(1).getMsg());
+
+        // 重新打开后接着最后一个段继续写
+        store.offer(new LogEvent(null, 3000, "/var/log/app.log", "after reopen"));
+        store.close();
+        store = LogEventStore.builder(dir).build();
+        events = readAll(store);
+        Assert.assertEquals(1, store.segments().size());
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("after reopen", events.get(2).getMsg());
+        store.close();
+    }
+
+    private static void await(String what, long expected, Callable<Long> actual) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (actual.call() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(what, expected, (long) actual.call());
+    }
+
+    @Test
+    public void testIntervalFsyncWhenIdle() throws Exception {
+        final LogEventStore store = LogEventStore.builder(folder.newFolder("store").toPath())
+                .fsyncPolicy(LogEventStore.FsyncPolicy.INTERVAL).fsyncIntervalMillis(300).build();
+        Callable<Long> appended = new Callable<Long>() {
+            @Override
+            public Long call() {
+                return store.appended();
+            }
+        };
+        Callable<Long> forces = new Callable<Long>() {
+            @Override
+            public Long call() {
+                return store.forces();
+            }
+        };
+        // 第一批距离上次force()已经超过间隔，马上落盘
+        store.offer(new LogEvent("app.log", "1"));
+        await("appended", 1, appended);
+        await("forces", 1, forces);
+
+        // 间隔之内的一批先不落盘，之后没有新的事件也要在间隔到了之后落盘
+        store.offer(new LogEvent("app.log", "2"));
+        await("appended", 2, appended);
+        Assert.assertEquals(1, store.forces());
+        await("forces", 2, forces);
+        store.close();
+    }
+
+    @Test
+    public void testOfferRacingClose() throws Exception {
+        final LogEventStore store = LogEventStore.builder(folder.newFolder("store").toPath()).build();
+        final int perThread = 2000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        store.offer(new LogEvent("app.log", "msg " + j));
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        Thread.sleep(1);
+        store.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // 每个事件要么被写入，要么被计为丢弃，不会留在队列里
+        Assert.assertEquals(threads.length * perThread, store.appended() + store.dropped());
+        Assert.assertEquals(0, store.queueSize());
+    }
+
+    @Test
+    public void testRollAndRetention() throws Exception {
+        Path dir = folder.newFolder("store").toPath();
+        LogEventStore store = LogEventStore.builder(dir).segmentSize(1024).retentionMillis(0).build();
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'x');
+        String msg = new String(chars);
+        for (int i = 0; i < 10; i++) {
+            store.offer(new LogEvent(null, i, "app", msg));
+        }
+        // 比整个段还大的事件被丢弃
+        store.offer(new LogEvent(null, 10, "app", msg + msg + msg + msg));
+        store.close();
+        Assert.assertEquals(10, store.appended());
+        Assert.assertEquals(1, store.dropped());
+
+        store = LogEventStore.builder(dir).segmentSize(1024).retentionMillis(0).build();
+        List<LogSegment> segments = store.segments();
+        Assert.assertEquals(4, segments.size());       //每个段放3条
+        long previous = -1;
+        for (LogSegment segment : segments) {
+            Assert.assertTrue(segment.baseTime() > previous);
+            previous = segment.baseTime();
+        }
+        List<LogEvent> events = readAll(store);
+        Assert.assertEquals(10, events.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, events.get(i).getReceived());
+        }
+        store.close();
+
+        // 写线程启动时就检查一次retention，只留下当前段
+        store = LogEventStore.builder(dir).segmentSize(1024).retentionMillis(1).build();
+        Thread.sleep(100);
+        Assert.assertEquals(1, store.segments().size());
+        store.close();
+    }
+
+    static List<String> scan(LogEventStore store, long from, long to, String logfile) throws Exception {
+        final List<String> results = new ArrayList<String>();
+        store.scan(from, to, logfile, new LogSegment.Visitor() {
+            @Override
+            public boolean visit(LogSegment segment, int position) {
+                LogEvent event = segment.read(position);
+                results.add(event.getReceived() + " " + event.getLogfile());
+                return true;
+            }
+        });
+        return results;
+    }
+
+    @Test
+    public void testIndexedScan() throws Exception {
+        Path dir = folder.newFolder("store").toPath();
+        LogEventStore store = LogEventStore.builder(dir).segmentSize(64 * 1024).retentionMillis(0).build();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            String logfile = "app" + (i % 7) + ".log";
+            store.offer(new LogEvent(null, i, logfile, "message " + i));
+            if (i >= 1200 && i <= 3800 && logfile.equals("app3.log")) {
+                expected.add(i + " " + logfile);
+            }
+        }
+        store.close();
+
+        store = LogEventStore.builder(dir).segmentSize(64 * 1024).retentionMillis(0).build();
+        Assert.assertTrue(store.segments().size() > 1);
+        Assert.assertEquals(expected, scan(store, 1200, 3800, "app3.log"));
+        Assert.assertEquals(11, scan(store, 100, 110, null).size());
+        Assert.assertEquals(0, scan(store, 100, 110, "missing.log").size());
+        LogSegment first = store.segments().get(0);
+        Assert.assertTrue(first.index().size() > 0);
+        store.close();
+
+        // 索引文件丢失时从记录中重建
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LogSegmentIndex.SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        store = LogEventStore.builder(dir).segmentSize(64 * 1024).retentionMillis(0).build();
+        Assert.assertEquals(expected, scan(store, 1200, 3800, "app3.log"));
+        store.close();
+    }
+
+    @Test
+    public void testReopenStartsFromIndex() throws Exception {
+        Path dir = folder.newFolder("store").toPath();
+        LogSegment segment = LogSegment.create(dir, 0, 64 * 1024);
+        ByteBuf logfile = Unpooled.copiedBuffer("app.log", CharsetUtil.UTF_8);
+        for (int i = 0; i < 500; i++) {
+            ByteBuf msg = Unpooled.copiedBuffer("message " + i, CharsetUtil.UTF_8);
+            Assert.assertTrue(segment.append(null, i, logfile, msg) >= 0);
+        }
+        int writePosition = segment.writePosition();
+        int indexed = segment.index().end(segment.index().size() - 1);
+        Assert.assertTrue(indexed > 0 && indexed < writePosition);      //最后一个块还没写进索引
+        segment.force();
+        segment.release();
+
+        // 把第一条记录的length清零：从头扫描会停在0，从索引最后一项开始则不受影响
+        Path path = LogSegment.path(dir, 0);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+        segment = LogSegment.open(path);
+        Assert.assertEquals(writePosition, segment.writePosition());
+        segment.release();
+
+        // 没有索引文件时从头扫描
+        Files.delete(LogSegmentIndex.path(path));
+        segment = LogSegment.open(path);
+        Assert.assertEquals(0, segment.writePosition());
+        segment.release();
+    }
+
+    @Test
+    public void testQueryHandlerStreamsChunks() throws Exception {
+        Path dir = folder.newFolder("store").toPath();
+        LogEventStore store = LogEventStore.builder(dir).build();
+        for (int i = 0; i < 100; i++) {
+            store.offer(new LogEvent(null, i, "app.log", "message " + i));
+        }
+        store.close();
+        store = LogEventStore.builder(dir).build();
+
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventQueryHandler(store, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }));
+        InetSocketAddress monitor = new InetSocketAddress("127.0.0.1", 40000);
+        String request = new LogEventQuery(10, 99, "app.log").toRequest(7);
+        Assert.assertEquals(7, LogEventQuery.requestId(request));
+        channel.writeInbound(new DatagramPacket(Unpooled.copiedBuffer(request, CharsetUtil.UTF_8),
+                new InetSocketAddress("127.0.0.1", 8080), monitor));
+
+        StringBuilder lines = new StringBuilder();
+        int chunks = 0;
+        DatagramPacket packet;
+        String last = null;
+        while ((packet = channel.readOutbound()) != null) {
+            Assert.assertEquals(monitor, packet.recipient());
+            Assert.assertTrue(packet.content().readableBytes() <= LogEventBroadcaster.DEFAULT_MAX_PAYLOAD);
+            last = packet.content().toString(CharsetUtil.UTF_8);
+            Assert.assertTrue(last.startsWith("7\n"));
+            lines.append(last.substring(2));
+            packet.release();
+            chunks ++;
+        }
+        Assert.assertEquals("7\n" + LogEventQuery.END + "90\n", last);
+        Assert.assertTrue(chunks > 2);
+        Assert.assertTrue(lines.toString().startsWith("10\tapp.log\tmessage 10\n11\tapp.log\tmessage 11\n"));
+        channel.finish();
+        store.close();
+    }
+}
@@ -0,0 +1,156 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogEventTcpDecoderTest {
+
+    private static void write(EmbeddedChannel channel, String data) {
+        channel.writeInbound(Unpooled.copiedBuffer(data, CharsetUtil.UTF_8));
+    }
+
+    @Test
+    public void testMixedFraming() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventTcpDecoder(false));
+        // 一帧被拆成多次读取，octet-counting和换行分帧混用
+        write(channel, "/var/log/a:first\r\n18 /var/log/b:se");
+        write(channel, "c\nond/var/log/c:third\n\n");
+        write(channel, "14 /var/log/d:");
+
+        LogEvent event = channel.readInbound();
+        Assert.assertEquals("/var/log/a", event.getLogfile());
+        Assert.assertEquals("first", event.getMsg());
+        event = channel.readInbound();
+        Assert.assertEquals("/var/log/b", event.getLogfile());
+        Assert.assertEquals("sec\nond", event.getMsg());
+        event = channel.readInbound();
+        Assert.assertEquals("/var/log/c", event.getLogfile());
+        Assert.assertEquals("third", event.getMsg());
+        Assert.assertNull(channel.readInbound());
+
+        write(channel, "4th");
+        event = channel.readInbound();
+        Assert.assertEquals("/var/log/d", event.getLogfile());
+        Assert.assertEquals("4th", event.getMsg());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testZeroCopy() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventTcpDecoder(true));
+        ByteBuf data = Unpooled.copiedBuffer("12 /var/log/a:1/var/log/b:2\n", CharsetUtil.UTF_8);
+        channel.writeInbound(data);
+        PooledLogEvent a = channel.readInbound();
+        PooledLogEvent b = channel.readInbound();
+        Assert.assertEquals("/var/log/a", a.getLogfile());
+        Assert.assertEquals("2", b.getMsg());
+        // 累积缓冲只被两个切片引用
+        Assert.assertEquals(2, data.refCnt());
+        a.release();
+        b.release();
+        Assert.assertEquals(0, data.refCnt());
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testTooLongFrame() {
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventTcpDecoder(false, 16));
+        try {
+            write(channel, "100 /var/log/a:x");
+            Assert.fail();
+        } catch (TooLongFrameException expected) {
+            // 期望的异常
+        }
+        try {
+            write(channel, "/var/log/a:no newline after 16 bytes");
+            Assert.fail();
+        } catch (TooLongFrameException expected) {
+            // 期望的异常
+        }
+        Assert.assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testReadThrottle() throws Exception {
+        final boolean[] full = { true };
+        LogEventTcpReceiver.Backlog backlog = new LogEventTcpReceiver.Backlog() {
+            @Override
+            public boolean isFull() {
+                return full[0];
+            }
+        };
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventTcpDecoder(false));
+        EmbeddedChannel other = new EmbeddedChannel(new LogEventTcpDecoder(false));
+        // 同一个EventLoop上的连接共用一个ResumeCheck，EmbeddedChannel各有自己的EventLoop，这里直接共用一个
+        LogEventTcpReceiver.ResumeCheck resumeCheck = new LogEventTcpReceiver.ResumeCheck(backlog, channel.eventLoop());
+        LogEventTcpReceiver.ReadThrottle throttle = new LogEventTcpReceiver.ReadThrottle(resumeCheck);
+        LogEventTcpReceiver.ReadThrottle otherThrottle = new LogEventTcpReceiver.ReadThrottle(resumeCheck);
+        channel.pipeline().addLast(throttle);
+        other.pipeline().addLast(otherThrottle);
+        Assert.assertFalse(resumeCheck.isScheduled());
+
+        write(channel, "/var/log/a:1\n/var/log/a:2\n");
+        write(other, "/var/log/b:1\n");
+        // 已经读进来的数据照常解码
+        Assert.assertNotNull(channel.readInbound());
+        Assert.assertNotNull(channel.readInbound());
+        Assert.assertNotNull(other.readInbound());
+        Assert.assertFalse(channel.config().isAutoRead());
+        Assert.assertFalse(other.config().isAutoRead());
+        Assert.assertTrue(throttle.isPaused());
+        Assert.assertTrue(otherThrottle.isPaused());
+        Assert.assertTrue(resumeCheck.isScheduled());
+
+        Thread.sleep(10);
+        channel.runScheduledPendingTasks();
+        Assert.assertFalse(channel.config().isAutoRead());
+
+        full[0] = false;
+        Thread.sleep(10);
+        channel.runScheduledPendingTasks();
+        Assert.assertTrue(channel.config().isAutoRead());
+        Assert.assertTrue(other.config().isAutoRead());
+        Assert.assertFalse(throttle.isPaused());
+        Assert.assertFalse(otherThrottle.isPaused());
+        Assert.assertFalse(resumeCheck.isScheduled());
+        Assert.assertEquals(1, throttle.pauses());
+        Assert.assertFalse(channel.finish());
+        Assert.assertFalse(other.finish());
+    }
+
+    @Test
+    public void testClosedConnectionStopsResumeCheck() {
+        LogEventTcpReceiver.Backlog full = new LogEventTcpReceiver.Backlog() {
+            @Override
+            public boolean isFull() {
+                return true;
+            }
+        };
+        EmbeddedChannel channel = new EmbeddedChannel(new LogEventTcpDecoder(false));
+        LogEventTcpReceiver.ResumeCheck resumeCheck = new LogEventTcpReceiver.ResumeCheck(full, channel.eventLoop());
+        channel.pipeline().addLast(new LogEventTcpReceiver.ReadThrottle(resumeCheck));
+        write(channel, "/var/log/a:1\n");
+        Assert.assertTrue(resumeCheck.isScheduled());
+        channel.readInbound();
+        Assert.assertFalse(channel.finish());
+        Assert.assertFalse(resumeCheck.isScheduled());
+    }
+
+    @Test
+    public void testMemoryBacklog() {
+        PooledByteBufAllocator allocator = new PooledByteBufAllocator(true);
+        LogEventTcpReceiver.Backlog backlog = LogEventTcpReceiver.backlogOf(allocator, 1024 * 1024);
+        Assert.assertFalse(backlog.isFull());
+        // 还没有release的数据占用的内存超过上限时算积压
+        ByteBuf held = allocator.directBuffer(4 * 1024 * 1024);
+        Assert.assertTrue(backlog.isFull());
+        held.release();
+        Assert.assertFalse(backlog.isFull());
+    }
+}
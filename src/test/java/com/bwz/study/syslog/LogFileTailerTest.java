@@ -0,0 +1,97 @@
+package com.bwz.study.syslog;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.CharsetUtil;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LogFileTailerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static void append(Path file, String text) throws Exception {
+        Files.write(file, text.getBytes(CharsetUtil.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    static String poll(LogFileTailer tailer, int maxPayload, List<ByteBuf> out) throws Exception {
+        tailer.poll(UnpooledByteBufAllocator.DEFAULT, maxPayload, out);
+        StringBuilder buf = new StringBuilder();
+        for (ByteBuf datagram : out) {
+            Assert.assertTrue(datagram.readableBytes() <= maxPayload);
+            Assert.assertEquals(LogEventDecoder.LINES_MARKER, datagram.readByte());
+            buf.append(datagram.toString(CharsetUtil.UTF_8)).append('|');
+            datagram.release();
+        }
+        out.clear();
+        return buf.toString();
+    }
+
+    @Test
+    public void testTailCompleteLines() throws Exception {
+        Path file = folder.newFile("app.log").toPath();
+        append(file, "old\n");
+        LogFileTailer tailer = new LogFileTailer(file, true);
+        List<ByteBuf> out = new ArrayList<ByteBuf>();
+        String p = file.toString();
+
+        append(file, "first\r\n\nsecond\nhalf");
+        Assert.assertEquals(p + ":first\n" + p + ":second\n|", poll(tailer, 1472, out));
+
+        // 半行写完之后才发出
+        append(file, " line\n");
+        Assert.assertEquals(p + ":half line\n|", poll(tailer, 1472, out));
+        Assert.assertEquals("", poll(tailer, 1472, out));
+        tailer.close();
+    }
+
+    @Test
+    public void testPackUpToMaxPayload() throws Exception {
+        Path file = folder.newFile("app.log").toPath();
+        LogFileTailer tailer = new LogFileTailer(file, true);
+        List<ByteBuf> out = new ArrayList<ByteBuf>();
+        String p = file.toString();
+        int record = p.length() + ":aaaa\n".length();
+
+        append(file, "aaaa\naaaa\naaaa\n");
+        tailer.poll(UnpooledByteBufAllocator.DEFAULT, 1 + 2 * record, out);
+        Assert.assertEquals(2, out.size());
+        Assert.assertEquals(1 + 2 * record, out.get(0).readableBytes());
+        Assert.assertEquals(1 + record, out.get(1).readableBytes());
+        for (ByteBuf datagram : out) {
+            datagram.release();
+        }
+        tailer.close();
+    }
+
+    @Test
+    public void testTruncateAndRotate() throws Exception {
+        Path file = folder.newFile("app.log").toPath();
+        LogFileTailer tailer = new LogFileTailer(file, false);
+        List<ByteBuf> out = new ArrayList<ByteBuf>();
+        String p = file.toString();
+
+        append(file, "one\ntwo\n");
+        Assert.assertEquals(p + ":one\n" + p + ":two\n|", poll(tailer, 1472, out));
+
+        // copytruncate
+        Files.write(file, "x\n".getBytes(CharsetUtil.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+        Assert.assertEquals(p + ":x\n|", poll(tailer, 1472, out));
+
+        // mv之后重新创建，旧文件最后的半行也要发出去
+        append(file, "tail");
+        Files.move(file, folder.getRoot().toPath().resolve("app.log.1"));
+        append(file, "new\n");
+        Assert.assertEquals(p + ":tail\n" + p + ":new\n|", poll(tailer, 1472, out));
+        tailer.close();
+    }
+}